@@ -27,9 +27,14 @@ import com.fonguard.guardservice.settings.actions.HttpAction;
 import com.fonguard.guardservice.settings.actions.PhoneCallAction;
 import com.fonguard.guardservice.settings.actions.PhoneMmsAction;
 import com.fonguard.guardservice.settings.actions.PhoneSmsAction;
+import com.fonguard.guardservice.settings.governor.Governor;
 import com.fonguard.guardservice.settings.rules.Rule;
+import com.fonguard.guardservice.settings.triggers.CascadeTrigger;
+import com.fonguard.guardservice.settings.triggers.HeartbeatTrigger;
 import com.fonguard.guardservice.settings.triggers.MotionTrigger;
+import com.fonguard.guardservice.settings.triggers.NoiseTrigger;
 import com.fonguard.guardservice.settings.triggers.Triggers;
+import com.fonguard.guardservice.settings.triggers.VibrationTrigger;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
@@ -71,6 +76,61 @@ public final class Preferences {
         mSettings.Triggers.Motion.CameraId = "";
         mSettings.Triggers.Motion.PixelValueDiffThreshold = 10;
         mSettings.Triggers.Motion.PixelNumberDiffThreshold = 10;
+        mSettings.Triggers.Motion.GridColumns = 1;
+        mSettings.Triggers.Motion.GridRows = 1;
+        mSettings.Triggers.Motion.MaskedTiles = new ArrayList<>();
+        mSettings.Triggers.Motion.Zones = new ArrayList<>();
+        mSettings.Triggers.Motion.DetectionModel = "frame_diff";
+        mSettings.Triggers.Motion.BackgroundLearningRate = 0.05f;
+        mSettings.Triggers.Motion.BackgroundSigmaThreshold = 3;
+        mSettings.Triggers.Motion.Backend = "renderscript";
+        mSettings.Triggers.Motion.DiffParallelism = 1;
+        mSettings.Triggers.Motion.LumaOnly = true;
+        mSettings.Triggers.Motion.AdaptiveRate = false;
+        mSettings.Triggers.Motion.IdleFps = 2;
+        mSettings.Triggers.Motion.ActiveHoldSeconds = 10;
+        mSettings.Triggers.Motion.StandbyIntervalSeconds = 0;
+        mSettings.Triggers.Motion.StandbyBurstSeconds = 3;
+        mSettings.Triggers.Motion.StandbyContinuousSeconds = 60;
+        mSettings.Triggers.Motion.PayloadSource = "still";
+        mSettings.Triggers.Motion.ClipDurationSeconds = 5;
+        mSettings.Triggers.Motion.ClipBitrateKbps = 2000;
+        mSettings.Triggers.Motion.PreRollSeconds = 0;
+        mSettings.Triggers.Motion.PreRollFps = 2;
+        mSettings.Triggers.Motion.PostRollFrames = 2;
+        mSettings.Triggers.Motion.PreRollMemoryBudgetKb = 2048;
+        mSettings.Triggers.Noise = new NoiseTrigger();
+        mSettings.Triggers.Noise.Enabled = false;
+        mSettings.Triggers.Noise.SampleRateHz = 16000;
+        mSettings.Triggers.Noise.RmsThreshold = 1000;
+        mSettings.Triggers.Noise.BandLowHz = 300;
+        mSettings.Triggers.Noise.BandHighHz = 3400;
+        mSettings.Triggers.Noise.BandRmsThreshold = 500;
+        mSettings.Triggers.Noise.HoldMs = 300;
+        mSettings.Triggers.Noise.PreTriggerSeconds = 3;
+        mSettings.Triggers.Noise.ClipBitrateKbps = 32;
+        mSettings.Triggers.Vibration = new VibrationTrigger();
+        mSettings.Triggers.Vibration.Enabled = false;
+        mSettings.Triggers.Vibration.SamplingRateHz = 100;
+        mSettings.Triggers.Vibration.BatchLatencyMs = 1000;
+        mSettings.Triggers.Vibration.StaMs = 100;
+        mSettings.Triggers.Vibration.LtaMs = 10000;
+        mSettings.Triggers.Vibration.TriggerRatio = 4;
+        mSettings.Triggers.Vibration.DetriggerRatio = 1.5f;
+        mSettings.Triggers.Vibration.MinPeakMg = 20;
+        mSettings.Triggers.Vibration.WaveformSeconds = 4;
+        mSettings.Triggers.Heartbeat = new HeartbeatTrigger();
+        mSettings.Triggers.Heartbeat.Enabled = false;
+        mSettings.Triggers.Heartbeat.SampleIntervalSeconds = 60;
+        mSettings.Triggers.Heartbeat.ReportIntervalSeconds = 900;
+        mSettings.Triggers.Cascade = new CascadeTrigger();
+        mSettings.Triggers.Cascade.Enabled = false;
+        mSettings.Triggers.Cascade.Stages = new ArrayList<>();
+        mSettings.Triggers.Cascade.WindowSeconds = 30;
+        mSettings.Triggers.Cascade.CameraBetweenWindows = "closed";
+        mSettings.Triggers.Cascade.VibrationThresholdMg = 50;
+        mSettings.Triggers.Cascade.VibrationBatchLatencyMs = 1000;
+        mSettings.Triggers.Cascade.NoiseThresholdRms = 1000;
         mSettings.Actions = new Actions();
         mSettings.Actions.Http = new ArrayList<>();
         mSettings.Actions.AwsS3 = new ArrayList<>();
@@ -78,6 +138,10 @@ public final class Preferences {
         mSettings.Actions.PhoneSms = new ArrayList<>();
         mSettings.Actions.PhoneCall = new ArrayList<>();
         mSettings.Rules = new ArrayList<>();
+        mSettings.Governor = new Governor();
+        mSettings.Governor.Enabled = false;
+        mSettings.Governor.BatteryEconomyPercent = 30;
+        mSettings.Governor.BatteryMinimalPercent = 15;
     }
 
     private void loadSettings() {
@@ -113,6 +177,236 @@ public final class Preferences {
         return mSettings.Triggers.Motion.PixelNumberDiffThreshold;
     }
 
+    public int getMotionGridColumns() {
+        return mSettings.Triggers.Motion.GridColumns;
+    }
+
+    public int getMotionGridRows() {
+        return mSettings.Triggers.Motion.GridRows;
+    }
+
+    // Lists missing from the imported settings are treated as empty
+    public List<Integer> getMotionMaskedTiles() {
+        return mSettings.Triggers.Motion.MaskedTiles != null ?
+                mSettings.Triggers.Motion.MaskedTiles : new ArrayList<Integer>();
+    }
+
+    public List<MotionTrigger.MotionZone> getMotionZones() {
+        return mSettings.Triggers.Motion.Zones != null ?
+                mSettings.Triggers.Motion.Zones : new ArrayList<MotionTrigger.MotionZone>();
+    }
+
+    public String getMotionDetectionModel() {
+        return mSettings.Triggers.Motion.DetectionModel;
+    }
+
+    public float getBackgroundLearningRate() {
+        return mSettings.Triggers.Motion.BackgroundLearningRate;
+    }
+
+    public float getBackgroundSigmaThreshold() {
+        return mSettings.Triggers.Motion.BackgroundSigmaThreshold;
+    }
+
+    public String getMotionBackend() {
+        return mSettings.Triggers.Motion.Backend;
+    }
+
+    public int getDiffParallelism() {
+        return mSettings.Triggers.Motion.DiffParallelism;
+    }
+
+    public boolean isLumaOnly() {
+        return mSettings.Triggers.Motion.LumaOnly;
+    }
+
+    public boolean isAdaptiveRate() {
+        return mSettings.Triggers.Motion.AdaptiveRate;
+    }
+
+    public int getIdleFps() {
+        return mSettings.Triggers.Motion.IdleFps;
+    }
+
+    public int getActiveHoldSeconds() {
+        return mSettings.Triggers.Motion.ActiveHoldSeconds;
+    }
+
+    public int getStandbyIntervalSeconds() {
+        return mSettings.Triggers.Motion.StandbyIntervalSeconds;
+    }
+
+    public int getStandbyBurstSeconds() {
+        return mSettings.Triggers.Motion.StandbyBurstSeconds;
+    }
+
+    public int getStandbyContinuousSeconds() {
+        return mSettings.Triggers.Motion.StandbyContinuousSeconds;
+    }
+
+    public String getMotionPayloadSource() {
+        return mSettings.Triggers.Motion.PayloadSource;
+    }
+
+    public int getClipDurationSeconds() {
+        return mSettings.Triggers.Motion.ClipDurationSeconds;
+    }
+
+    public int getClipBitrateKbps() {
+        return mSettings.Triggers.Motion.ClipBitrateKbps;
+    }
+
+    public int getPreRollSeconds() {
+        return mSettings.Triggers.Motion.PreRollSeconds;
+    }
+
+    public int getPreRollFps() {
+        return mSettings.Triggers.Motion.PreRollFps;
+    }
+
+    public int getPostRollFrames() {
+        return mSettings.Triggers.Motion.PostRollFrames;
+    }
+
+    public int getPreRollMemoryBudgetKb() {
+        return mSettings.Triggers.Motion.PreRollMemoryBudgetKb;
+    }
+
+    public boolean isNoiseTriggerEnabled() {
+        return mSettings.Triggers.Noise != null && mSettings.Triggers.Noise.Enabled;
+    }
+
+    public int getNoiseSampleRateHz() {
+        return mSettings.Triggers.Noise != null ? mSettings.Triggers.Noise.SampleRateHz : 0;
+    }
+
+    public int getNoiseRmsThreshold() {
+        return mSettings.Triggers.Noise != null ? mSettings.Triggers.Noise.RmsThreshold : 0;
+    }
+
+    public int getNoiseBandLowHz() {
+        return mSettings.Triggers.Noise != null ? mSettings.Triggers.Noise.BandLowHz : 0;
+    }
+
+    public int getNoiseBandHighHz() {
+        return mSettings.Triggers.Noise != null ? mSettings.Triggers.Noise.BandHighHz : 0;
+    }
+
+    public int getNoiseBandRmsThreshold() {
+        return mSettings.Triggers.Noise != null ? mSettings.Triggers.Noise.BandRmsThreshold : 0;
+    }
+
+    public int getNoiseHoldMs() {
+        return mSettings.Triggers.Noise != null ? mSettings.Triggers.Noise.HoldMs : 0;
+    }
+
+    public int getNoisePreTriggerSeconds() {
+        return mSettings.Triggers.Noise != null ? mSettings.Triggers.Noise.PreTriggerSeconds : 0;
+    }
+
+    public int getNoiseClipBitrateKbps() {
+        return mSettings.Triggers.Noise != null ? mSettings.Triggers.Noise.ClipBitrateKbps : 0;
+    }
+
+    public boolean isVibrationTriggerEnabled() {
+        return mSettings.Triggers.Vibration != null && mSettings.Triggers.Vibration.Enabled;
+    }
+
+    public int getVibrationSamplingRateHz() {
+        return mSettings.Triggers.Vibration != null ?
+                mSettings.Triggers.Vibration.SamplingRateHz : 0;
+    }
+
+    public int getVibrationBatchLatencyMs() {
+        return mSettings.Triggers.Vibration != null ?
+                mSettings.Triggers.Vibration.BatchLatencyMs : 0;
+    }
+
+    public int getVibrationStaMs() {
+        return mSettings.Triggers.Vibration != null ? mSettings.Triggers.Vibration.StaMs : 0;
+    }
+
+    public int getVibrationLtaMs() {
+        return mSettings.Triggers.Vibration != null ? mSettings.Triggers.Vibration.LtaMs : 0;
+    }
+
+    public float getVibrationTriggerRatio() {
+        return mSettings.Triggers.Vibration != null ? mSettings.Triggers.Vibration.TriggerRatio : 0;
+    }
+
+    public float getVibrationDetriggerRatio() {
+        return mSettings.Triggers.Vibration != null ?
+                mSettings.Triggers.Vibration.DetriggerRatio : 0;
+    }
+
+    public int getVibrationMinPeakMg() {
+        return mSettings.Triggers.Vibration != null ? mSettings.Triggers.Vibration.MinPeakMg : 0;
+    }
+
+    public int getVibrationWaveformSeconds() {
+        return mSettings.Triggers.Vibration != null ?
+                mSettings.Triggers.Vibration.WaveformSeconds : 0;
+    }
+
+    public boolean isHeartbeatTriggerEnabled() {
+        return mSettings.Triggers.Heartbeat != null && mSettings.Triggers.Heartbeat.Enabled;
+    }
+
+    public int getHeartbeatSampleIntervalSeconds() {
+        return mSettings.Triggers.Heartbeat != null ?
+                mSettings.Triggers.Heartbeat.SampleIntervalSeconds : 0;
+    }
+
+    public int getHeartbeatReportIntervalSeconds() {
+        return mSettings.Triggers.Heartbeat != null ?
+                mSettings.Triggers.Heartbeat.ReportIntervalSeconds : 0;
+    }
+
+    public boolean isCascadeEnabled() {
+        return mSettings.Triggers.Cascade != null && mSettings.Triggers.Cascade.Enabled;
+    }
+
+    public List<String> getCascadeStages() {
+        return mSettings.Triggers.Cascade != null ? mSettings.Triggers.Cascade.Stages : null;
+    }
+
+    public int getCascadeWindowSeconds() {
+        return mSettings.Triggers.Cascade != null ? mSettings.Triggers.Cascade.WindowSeconds : 0;
+    }
+
+    public String getCascadeCameraBetweenWindows() {
+        return mSettings.Triggers.Cascade != null ?
+                mSettings.Triggers.Cascade.CameraBetweenWindows : null;
+    }
+
+    public int getCascadeVibrationThresholdMg() {
+        return mSettings.Triggers.Cascade != null ?
+                mSettings.Triggers.Cascade.VibrationThresholdMg : 0;
+    }
+
+    public int getCascadeVibrationBatchLatencyMs() {
+        return mSettings.Triggers.Cascade != null ?
+                mSettings.Triggers.Cascade.VibrationBatchLatencyMs : 0;
+    }
+
+    public int getCascadeNoiseThresholdRms() {
+        return mSettings.Triggers.Cascade != null ?
+                mSettings.Triggers.Cascade.NoiseThresholdRms : 0;
+    }
+
+    // The governor block may be missing from the imported settings, it is then disabled
+    public boolean isGovernorEnabled() {
+        return mSettings.Governor != null && mSettings.Governor.Enabled;
+    }
+
+    public int getGovernorBatteryEconomyPercent() {
+        return mSettings.Governor != null ? mSettings.Governor.BatteryEconomyPercent : 0;
+    }
+
+    public int getGovernorBatteryMinimalPercent() {
+        return mSettings.Governor != null ? mSettings.Governor.BatteryMinimalPercent : 0;
+    }
+
     public List<HttpAction> getHttpActions() {
         return mSettings.Actions.Http;
     }
@@ -35,12 +35,24 @@ import android.util.Log;
 import androidx.annotation.Nullable;
 
 import com.fonguard.MainActivity;
+import com.fonguard.Preferences;
 import com.fonguard.R;
+import com.fonguard.guardservice.governor.ProcessingGovernor;
+import com.fonguard.guardservice.governor.ProcessingProfile;
+import com.fonguard.guardservice.standby.StandbyScheduler;
+import com.fonguard.guardservice.triggers.HeartbeatTrigger;
 import com.fonguard.guardservice.triggers.MotionTrigger;
+import com.fonguard.guardservice.triggers.NoiseTrigger;
+import com.fonguard.guardservice.triggers.VibrationTrigger;
+import com.fonguard.guardservice.triggers.cascade.CascadeCameraMode;
+import com.fonguard.guardservice.triggers.cascade.CascadeStage;
+import com.fonguard.guardservice.triggers.cascade.TriggerCascade;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 
-public class GuardService extends Service {
+public class GuardService extends Service implements
+        ProcessingGovernor.ProfileChangedListener, StandbyScheduler.BurstDueListener,
+        MotionTrigger.StandbyListener, TriggerCascade.ArmedListener {
     public enum ServiceAction {
         START,
         STOP
@@ -51,8 +63,19 @@ public class GuardService extends Service {
 
     private PowerManager.WakeLock mWakeLock;
     private MotionTrigger mMotionTrigger;
+    private ProcessingGovernor mProcessingGovernor;
+    // Accessed from the motion thread when a burst finishes
+    private volatile StandbyScheduler mStandbyScheduler;
+    private TriggerCascade mTriggerCascade;
+
+    private NoiseTrigger mNoiseTrigger;
+    private VibrationTrigger mVibrationTrigger;
+    private HeartbeatTrigger mHeartbeatTrigger;
 
     private HandlerThread mMotionTriggerHandlerThread;
+    private HandlerThread mNoiseTriggerHandlerThread;
+    private HandlerThread mVibrationTriggerHandlerThread;
+    private HandlerThread mHeartbeatTriggerHandlerThread;
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
@@ -115,11 +138,61 @@ public class GuardService extends Service {
         return sIsServiceStarted.get();
     }
 
+    @Override
+    public void onProcessingProfileChanged(ProcessingProfile profile) {
+        Message msg = mMotionTrigger.obtainMessage(
+                MotionTrigger.HANDLER_MSG_SET_PROCESSING_PROFILE);
+
+        msg.obj = profile;
+        mMotionTrigger.sendMessage(msg);
+    }
+
+    // With standby, or a cascade keeping the camera closed, the device is only kept awake during
+    // the standby bursts and the cascade windows
+    @Override
+    public void onStandbyBurstDue() {
+        if (!mWakeLock.isHeld()) {
+            mWakeLock.acquire();
+        }
+
+        mMotionTrigger.sendMessage(mMotionTrigger.obtainMessage(
+                MotionTrigger.HANDLER_MSG_START_STANDBY_BURST));
+    }
+
+    // Called from the threads of the cascade stages
+    @Override
+    public void onCascadeArmed(CascadeStage stage) {
+        Message msg = mMotionTrigger.obtainMessage(MotionTrigger.HANDLER_MSG_ARM_CASCADE);
+
+        // Same as a standby burst: the device may sleep again once the window is over
+        if (!mWakeLock.isHeld()) {
+            mWakeLock.acquire();
+        }
+
+        msg.obj = stage;
+        mMotionTrigger.sendMessage(msg);
+    }
+
+    @Override
+    public void onStandbyBurstFinished() {
+        StandbyScheduler standbyScheduler = mStandbyScheduler;
+
+        // Also called when a cascade window ends, which may happen without standby
+        if (standbyScheduler != null) {
+            standbyScheduler.scheduleNextBurst();
+        }
+
+        if (mWakeLock.isHeld()) {
+            mWakeLock.release();
+        }
+    }
+
 
     private void startService() {
         Notification notification;
         PowerManager powerManager;
         Message motionTriggerStartMsg;
+        Preferences preferences;
 
         Log.i(LOG_TAG, "starting service...");
 
@@ -130,19 +203,85 @@ public class GuardService extends Service {
 
         notification = createNotification();
         powerManager = (PowerManager)getSystemService(Context.POWER_SERVICE);
+        preferences = Preferences.getInstance(this);
 
         startForeground(1, notification);
 
         mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
                 "FonGuard:GuardService");
-        mWakeLock.acquire();
+        // Acquired and released once per standby burst or cascade window, held all along otherwise
+        mWakeLock.setReferenceCounted(false);
 
         mMotionTriggerHandlerThread = new HandlerThread("MotionTriggerHandlerThread");
         mMotionTriggerHandlerThread.start();
         mMotionTrigger = new MotionTrigger(mMotionTriggerHandlerThread.getLooper(),
                 this);
-        motionTriggerStartMsg = mMotionTrigger.obtainMessage(MotionTrigger.HANDLER_MSG_RESTART);
-        mMotionTrigger.sendMessage(motionTriggerStartMsg);
+
+        if (preferences.isCascadeEnabled()) {
+            mTriggerCascade = new TriggerCascade(this, preferences, this);
+            mMotionTrigger.setCascade(mTriggerCascade.getCameraMode(),
+                    mTriggerCascade.getWindowMs());
+        }
+
+        if (preferences.getStandbyIntervalSeconds() > 0) {
+            mStandbyScheduler = new StandbyScheduler(this,
+                    preferences.getStandbyIntervalSeconds() * 1000L, this);
+            mStandbyScheduler.start();
+            mMotionTrigger.setStandbyListener(this);
+            motionTriggerStartMsg = mMotionTrigger.obtainMessage(
+                    MotionTrigger.HANDLER_MSG_START_STANDBY_BURST);
+        } else if (mTriggerCascade != null &&
+                mTriggerCascade.getCameraMode() == CascadeCameraMode.CLOSED) {
+            // The camera waits for the first cascade window, and the device may sleep until then
+            mMotionTrigger.setStandbyListener(this);
+            motionTriggerStartMsg = null;
+        } else {
+            motionTriggerStartMsg = mMotionTrigger.obtainMessage(
+                    MotionTrigger.HANDLER_MSG_RESTART);
+        }
+        if (motionTriggerStartMsg != null) {
+            mWakeLock.acquire();
+            mMotionTrigger.sendMessage(motionTriggerStartMsg);
+        }
+
+        if (mTriggerCascade != null) {
+            mTriggerCascade.start();
+        }
+
+        if (preferences.isNoiseTriggerEnabled()) {
+            mNoiseTriggerHandlerThread = new HandlerThread("NoiseTriggerHandlerThread");
+            mNoiseTriggerHandlerThread.start();
+            mNoiseTrigger = new NoiseTrigger(mNoiseTriggerHandlerThread.getLooper(), this);
+            // A second capture of the microphone would only get silence before Android 10
+            if (mTriggerCascade != null) {
+                mNoiseTrigger.setCascadeNoiseStage(mTriggerCascade.getNoiseStage());
+            }
+            mNoiseTrigger.sendMessage(mNoiseTrigger.obtainMessage(
+                    NoiseTrigger.HANDLER_MSG_START));
+        }
+
+        if (preferences.isVibrationTriggerEnabled()) {
+            mVibrationTriggerHandlerThread = new HandlerThread("VibrationTriggerHandlerThread");
+            mVibrationTriggerHandlerThread.start();
+            mVibrationTrigger = new VibrationTrigger(mVibrationTriggerHandlerThread.getLooper(),
+                    this);
+            mVibrationTrigger.sendMessage(mVibrationTrigger.obtainMessage(
+                    VibrationTrigger.HANDLER_MSG_START));
+        }
+
+        if (preferences.isHeartbeatTriggerEnabled()) {
+            mHeartbeatTriggerHandlerThread = new HandlerThread("HeartbeatTriggerHandlerThread");
+            mHeartbeatTriggerHandlerThread.start();
+            mHeartbeatTrigger = new HeartbeatTrigger(mHeartbeatTriggerHandlerThread.getLooper(),
+                    this, mMotionTrigger);
+            mHeartbeatTrigger.sendMessage(mHeartbeatTrigger.obtainMessage(
+                    HeartbeatTrigger.HANDLER_MSG_START));
+        }
+
+        if (preferences.isGovernorEnabled()) {
+            mProcessingGovernor = new ProcessingGovernor(this, preferences, this);
+            mProcessingGovernor.start();
+        }
 
         sIsServiceStarted.set(true);
 
@@ -157,6 +296,44 @@ public class GuardService extends Service {
             return;
         }
 
+        if (mProcessingGovernor != null) {
+            mProcessingGovernor.stop();
+            mProcessingGovernor = null;
+        }
+
+        if (mTriggerCascade != null) {
+            mTriggerCascade.stop();
+            mTriggerCascade = null;
+        }
+
+        if (mNoiseTrigger != null) {
+            mNoiseTrigger.sendMessage(mNoiseTrigger.obtainMessage(NoiseTrigger.HANDLER_MSG_STOP));
+            mNoiseTriggerHandlerThread.quitSafely();
+            mNoiseTrigger = null;
+            mNoiseTriggerHandlerThread = null;
+        }
+
+        if (mVibrationTrigger != null) {
+            mVibrationTrigger.sendMessage(mVibrationTrigger.obtainMessage(
+                    VibrationTrigger.HANDLER_MSG_STOP));
+            mVibrationTriggerHandlerThread.quitSafely();
+            mVibrationTrigger = null;
+            mVibrationTriggerHandlerThread = null;
+        }
+
+        if (mHeartbeatTrigger != null) {
+            mHeartbeatTrigger.sendMessage(mHeartbeatTrigger.obtainMessage(
+                    HeartbeatTrigger.HANDLER_MSG_STOP));
+            mHeartbeatTriggerHandlerThread.quitSafely();
+            mHeartbeatTrigger = null;
+            mHeartbeatTriggerHandlerThread = null;
+        }
+
+        if (mStandbyScheduler != null) {
+            mStandbyScheduler.stop();
+            mStandbyScheduler = null;
+        }
+
         if (mWakeLock.isHeld()) {
             mWakeLock.release();
         }
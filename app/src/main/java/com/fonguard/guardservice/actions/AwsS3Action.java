@@ -26,10 +26,14 @@ import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.regions.Region;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.fonguard.guardservice.payloads.EventPayload;
+import com.fonguard.guardservice.payloads.MultiImagePayload;
+import com.fonguard.guardservice.payloads.PayloadEncoder;
 import com.fonguard.guardservice.rules.RulesManager;
 import com.fonguard.guardservice.triggers.Trigger;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -47,7 +51,8 @@ public class AwsS3Action implements IAction {
 
     @Override
     public boolean perform(RulesManager rulesManager, Context context, Trigger source,
-                           boolean includePayload, Object payload) {
+                           boolean includePayload, EventPayload eventPayload) {
+        Object payload = eventPayload.Payload;
         AWSCredentials credentials = new BasicAWSCredentials(mSettings.AwsAccessKeyId,
                 mSettings.AwsSecretAccessKey);
         Region region = Region.getRegion(mSettings.AwsRegion);
@@ -55,15 +60,44 @@ public class AwsS3Action implements IAction {
         SimpleDateFormat dateTimeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ",
                 Locale.US);
         String dateTime = dateTimeFormat.format(new Date());
-        String s3Key = mSettings.KeyPrefix + dateTime + ".jpg";
-        byte[] payloadBytes = rulesManager.getBytesFromPayloadObject(payload);
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(payloadBytes);
+        String s3KeyBase = mSettings.KeyPrefix + dateTime;
 
         Log.i(LOG_TAG, "Performing AWS S3 action \"" + mSettings.Id + "\" (" + source +
                 " trigger, include payload [IGNORED]: " + includePayload + ")...");
 
         try {
-            s3Client.putObject(mSettings.BucketName, s3Key, inputStream, new ObjectMetadata());
+            if (payload instanceof MultiImagePayload) {
+                MultiImagePayload multiImagePayload = (MultiImagePayload)payload;
+
+                if (multiImagePayload.Image instanceof File) {
+                    putFile(s3Client, s3KeyBase + ".mp4", (File)multiImagePayload.Image);
+                } else if (multiImagePayload.Image != null) {
+                    putObject(s3Client,
+                            s3KeyBase + PayloadEncoder.getFileExtension(mSettings.PayloadProfile),
+                            rulesManager.getBytesFromPayloadObject(eventPayload,
+                                    multiImagePayload.Image, mSettings.PayloadProfile));
+                }
+
+                if (multiImagePayload.Thumbnail != null) {
+                    putObject(s3Client, s3KeyBase + "-thumbnail" +
+                                    PayloadEncoder.getFileExtension(mSettings.PayloadProfile),
+                            rulesManager.getBytesFromPayloadObject(eventPayload,
+                                    multiImagePayload.Thumbnail, mSettings.PayloadProfile));
+                }
+
+                for (int i = 0; i < multiImagePayload.Frames.size(); i++) {
+                    putObject(s3Client, s3KeyBase + "-frame" + i + ".jpg",
+                            multiImagePayload.Frames.get(i));
+                }
+            } else if (payload instanceof File) {
+                putFile(s3Client, s3KeyBase + (source == Trigger.NOISE ? ".m4a" : ".mp4"),
+                        (File)payload);
+            } else {
+                putObject(s3Client, s3KeyBase + getObjectExtension(source),
+                        rulesManager.getBytesFromPayloadObject(eventPayload, payload,
+                                mSettings.PayloadProfile));
+            }
+
             Log.i(LOG_TAG, "Performed AWS S3 action \"" + mSettings.Id + "\" successfully");
             return true;
         } catch (AmazonClientException ex) {
@@ -72,4 +106,31 @@ public class AwsS3Action implements IAction {
             return false;
         }
     }
+
+
+    private void putObject(AmazonS3Client s3Client, String s3Key, byte[] bytes) {
+        if (bytes == null) {
+            Log.w(LOG_TAG, "Nothing to upload to \"" + s3Key + "\", skipping");
+            return;
+        }
+
+        s3Client.putObject(mSettings.BucketName, s3Key, new ByteArrayInputStream(bytes),
+                new ObjectMetadata());
+    }
+
+    private String getObjectExtension(Trigger source) {
+        switch (source) {
+            case VIBRATION:
+                return ".json";
+            case HEARTBEAT:
+                return ".json.gz";
+            default:
+                return PayloadEncoder.getFileExtension(mSettings.PayloadProfile);
+        }
+    }
+
+    // The SDK streams the file, so clips are never fully loaded in memory
+    private void putFile(AmazonS3Client s3Client, String s3Key, File file) {
+        s3Client.putObject(mSettings.BucketName, s3Key, file);
+    }
 }
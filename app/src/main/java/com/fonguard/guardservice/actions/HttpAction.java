@@ -20,12 +20,19 @@ package com.fonguard.guardservice.actions;
 import android.content.Context;
 import android.util.Log;
 
+import com.fonguard.guardservice.payloads.EventPayload;
+import com.fonguard.guardservice.payloads.HeartbeatPayload;
+import com.fonguard.guardservice.payloads.MultiImagePayload;
+import com.fonguard.guardservice.payloads.PayloadEncoder;
 import com.fonguard.guardservice.rules.RulesManager;
+import com.fonguard.guardservice.settings.actions.PayloadProfile;
 import com.fonguard.guardservice.triggers.Trigger;
 
+import java.io.File;
 import java.io.IOException;
 
 import okhttp3.MediaType;
+import okhttp3.MultipartBody;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
@@ -36,6 +43,9 @@ public class HttpAction implements IAction {
 
     private static final MediaType MEDIA_TYPE_BINARY = MediaType.parse("application/octet-stream");
     private static final MediaType MEDIA_TYPE_JPG = MediaType.parse("image/jpeg");
+    private static final MediaType MEDIA_TYPE_MP4 = MediaType.parse("video/mp4");
+    private static final MediaType MEDIA_TYPE_M4A = MediaType.parse("audio/mp4");
+    private static final MediaType MEDIA_TYPE_JSON = MediaType.parse("application/json");
 
     private com.fonguard.guardservice.settings.actions.HttpAction mSettings;
 
@@ -47,7 +57,8 @@ public class HttpAction implements IAction {
 
     @Override
     public boolean perform(RulesManager rulesManager, Context context, Trigger source,
-                           boolean includePayload, Object payload) {
+                           boolean includePayload, EventPayload eventPayload) {
+        Object payload = eventPayload.Payload;
         OkHttpClient client = new OkHttpClient();
         Request.Builder requestBuilder = new Request.Builder();
         Request request;
@@ -59,9 +70,25 @@ public class HttpAction implements IAction {
         } else if (mSettings.Method.equals("POST")) {
             RequestBody requestBody;
 
-            if (includePayload && payload != null) {
-                byte[] payloadBytes = rulesManager.getBytesFromPayloadObject(payload);
-                requestBody = RequestBody.create(payloadBytes, mediaTypeFromTrigger(source));
+            if (includePayload && payload instanceof MultiImagePayload) {
+                requestBody = buildMultiImageRequestBody(rulesManager, eventPayload,
+                        (MultiImagePayload)payload, mSettings.PayloadProfile);
+            } else if (includePayload && payload instanceof File) {
+                // Clips are streamed from disk instead of being loaded in memory
+                requestBody = RequestBody.create((File)payload,
+                        source == Trigger.NOISE ? MEDIA_TYPE_M4A : MEDIA_TYPE_MP4);
+            } else if (includePayload && payload != null) {
+                byte[] payloadBytes = rulesManager.getBytesFromPayloadObject(eventPayload,
+                        payload, mSettings.PayloadProfile);
+
+                // Decoding failures are mostly a lack of memory, worth a retry
+                if (payloadBytes == null) {
+                    Log.e(LOG_TAG, "Failed to perform HTTP action \"" + mSettings.Id + "\": " +
+                            "payload could not be encoded");
+                    return false;
+                }
+                requestBody = RequestBody.create(payloadBytes,
+                        mediaTypeFromTrigger(source, mSettings.PayloadProfile));
             } else {
                 requestBody = RequestBody.create("", MEDIA_TYPE_BINARY);
             }
@@ -78,6 +105,12 @@ public class HttpAction implements IAction {
             requestBuilder.addHeader(httpHeader.Name, httpHeader.Value);
         }
 
+        // Heartbeat reports are gzipped JSON
+        if (includePayload && payload instanceof HeartbeatPayload &&
+                mSettings.Method.equals("POST")) {
+            requestBuilder.addHeader("Content-Encoding", "gzip");
+        }
+
         request = requestBuilder.build();
 
         Log.i(LOG_TAG, "Performing HTTP action \"" + mSettings.Id + "\" (" + source +
@@ -95,10 +128,66 @@ public class HttpAction implements IAction {
     }
 
 
-    private static MediaType mediaTypeFromTrigger(Trigger trigger) {
+    // One "image" or "clip" part (if any), a "thumbnail" part when the image is a crop, then the
+    // "frame<N>" parts, oldest frame first
+    private static RequestBody buildMultiImageRequestBody(RulesManager rulesManager,
+                                                          EventPayload eventPayload,
+                                                          MultiImagePayload payload,
+                                                          PayloadProfile profile) {
+        MultipartBody.Builder multipartBuilder = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM);
+        boolean hasParts = false;
+
+        if (payload.Image instanceof File) {
+            multipartBuilder.addFormDataPart("clip", "clip.mp4",
+                    RequestBody.create((File)payload.Image, MEDIA_TYPE_MP4));
+            hasParts = true;
+        } else if (payload.Image != null) {
+            hasParts = addPicturePart(multipartBuilder, "image",
+                    rulesManager.getBytesFromPayloadObject(eventPayload, payload.Image, profile),
+                    profile);
+        }
+
+        if (payload.Thumbnail != null) {
+            hasParts |= addPicturePart(multipartBuilder, "thumbnail",
+                    rulesManager.getBytesFromPayloadObject(eventPayload, payload.Thumbnail,
+                            profile), profile);
+        }
+
+        for (int i = 0; i < payload.Frames.size(); i++) {
+            multipartBuilder.addFormDataPart("frame" + i, "frame" + i + ".jpg",
+                    RequestBody.create(payload.Frames.get(i), MEDIA_TYPE_JPG));
+            hasParts = true;
+        }
+
+        // A multipart body needs at least one part
+        if (!hasParts) {
+            return RequestBody.create("", MEDIA_TYPE_BINARY);
+        }
+
+        return multipartBuilder.build();
+    }
+
+    // Pictures that could not be encoded (e.g. a crop whose region failed to decode) are left out
+    private static boolean addPicturePart(MultipartBody.Builder multipartBuilder, String name,
+                                          byte[] bytes, PayloadProfile profile) {
+        if (bytes == null) {
+            Log.w(LOG_TAG, "Could not encode the \"" + name + "\" part, skipping it");
+            return false;
+        }
+
+        multipartBuilder.addFormDataPart(name, name + PayloadEncoder.getFileExtension(profile),
+                RequestBody.create(bytes, MediaType.parse(PayloadEncoder.getMimeType(profile))));
+        return true;
+    }
+
+    private static MediaType mediaTypeFromTrigger(Trigger trigger, PayloadProfile profile) {
         switch (trigger) {
             case MOTION:
-                return MEDIA_TYPE_JPG;
+                return MediaType.parse(PayloadEncoder.getMimeType(profile));
+            case VIBRATION:
+            case HEARTBEAT:
+                return MEDIA_TYPE_JSON;
             default:
                 return MEDIA_TYPE_BINARY;
         }
@@ -19,10 +19,11 @@ package com.fonguard.guardservice.actions;
 
 import android.content.Context;
 
+import com.fonguard.guardservice.payloads.EventPayload;
 import com.fonguard.guardservice.rules.RulesManager;
 import com.fonguard.guardservice.triggers.Trigger;
 
 public interface IAction {
     boolean perform(RulesManager rulesManager, Context context, Trigger source,
-                    boolean includePayload, Object payload);
+                    boolean includePayload, EventPayload payload);
 }
@@ -20,6 +20,7 @@ package com.fonguard.guardservice.actions;
 import android.content.Context;
 import android.util.Log;
 
+import com.fonguard.guardservice.payloads.EventPayload;
 import com.fonguard.guardservice.rules.RulesManager;
 import com.fonguard.guardservice.triggers.Trigger;
 import com.fonguard.utils.android.telephony.CallManager;
@@ -37,8 +38,8 @@ public class PhoneCallAction implements IAction {
 
     @Override
     public boolean perform(RulesManager rulesManager, Context context, Trigger source,
-                           boolean includePayload, Object payload) {
-        if (includePayload && payload != null) {
+                           boolean includePayload, EventPayload payload) {
+        if (includePayload && payload.Payload != null) {
             Log.w(LOG_TAG, "Payload is non-null but it can't be sent over a call, skipping " +
                     "it");
         }
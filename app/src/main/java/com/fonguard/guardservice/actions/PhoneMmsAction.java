@@ -21,29 +21,44 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.util.Log;
 
+import com.fonguard.guardservice.payloads.CroppedImage;
+import com.fonguard.guardservice.payloads.EventPayload;
+import com.fonguard.guardservice.payloads.MultiImagePayload;
+import com.fonguard.guardservice.payloads.PayloadEncoder;
 import com.fonguard.guardservice.rules.RulesManager;
+import com.fonguard.guardservice.settings.actions.PayloadProfile;
 import com.fonguard.guardservice.triggers.Trigger;
 import com.fonguard.utils.android.telephony.MmsManager;
 
 public class PhoneMmsAction implements IAction {
     private static final String LOG_TAG = PhoneMmsAction.class.getName();
 
+    // Most carriers reject MMS above 300 KB, so MMS pictures always have a budget
+    private static final int DEFAULT_PAYLOAD_MAX_DIMENSION = 1280;
+    private static final int DEFAULT_PAYLOAD_MAX_BYTES = 300 * 1024;
+
     private com.fonguard.guardservice.settings.actions.PhoneMmsAction mSettings;
+    private PayloadProfile mPayloadProfile;
 
 
     public PhoneMmsAction(com.fonguard.guardservice.settings.actions.PhoneMmsAction settings) {
         mSettings = settings;
+        mPayloadProfile = getPayloadProfile(settings.PayloadProfile);
     }
 
 
     @Override
     public boolean perform(RulesManager rulesManager, Context context, Trigger source,
-                           boolean includePayload, Object payload) {
-        Bitmap img = null;
+                           boolean includePayload, EventPayload eventPayload) {
+        Object payload = eventPayload.Payload;
+        byte[] img = null;
 
         if (includePayload && payload != null) {
-            if (payload instanceof Bitmap) {
-                img = (Bitmap)payload;
+            // Carriers cap MMS sizes so only one picture is sent
+            if (payload instanceof MultiImagePayload || payload instanceof Bitmap ||
+                    payload instanceof byte[] || payload instanceof CroppedImage) {
+                img = rulesManager.getBytesFromPayloadObject(eventPayload, payload,
+                        mPayloadProfile);
             } else {
                 Log.w(LOG_TAG, "Unsupported MMS payload type " +
                         payload.getClass().getName() + ", skipping it");
@@ -55,8 +70,30 @@ public class PhoneMmsAction implements IAction {
                 ")...");
 
         MmsManager.sendMmsAsync(context, mSettings.RecipientPhoneNumber,
-                "A " + source.name() + " was detected", img);
+                "A " + source.name() + " was detected", img,
+                PayloadEncoder.getMimeType(mPayloadProfile));
 
         return true;
     }
+
+
+    private static PayloadProfile getPayloadProfile(PayloadProfile settingsProfile) {
+        PayloadProfile profile = new PayloadProfile();
+
+        if (settingsProfile != null) {
+            profile.Format = settingsProfile.Format;
+            profile.Quality = settingsProfile.Quality;
+            profile.MaxDimension = settingsProfile.MaxDimension;
+            profile.MaxBytes = settingsProfile.MaxBytes;
+        }
+
+        if (profile.MaxDimension <= 0) {
+            profile.MaxDimension = DEFAULT_PAYLOAD_MAX_DIMENSION;
+        }
+        if (profile.MaxBytes <= 0) {
+            profile.MaxBytes = DEFAULT_PAYLOAD_MAX_BYTES;
+        }
+
+        return profile;
+    }
 }
@@ -22,6 +22,7 @@ import android.graphics.Bitmap;
 import android.telephony.SmsManager;
 import android.util.Log;
 
+import com.fonguard.guardservice.payloads.EventPayload;
 import com.fonguard.guardservice.rules.RulesManager;
 import com.fonguard.guardservice.triggers.Trigger;
 import com.fonguard.utils.android.telephony.MmsManager;
@@ -39,10 +40,10 @@ public class PhoneSmsAction implements IAction {
 
     @Override
     public boolean perform(RulesManager rulesManager, Context context, Trigger source,
-                           boolean includePayload, Object payload) {
+                           boolean includePayload, EventPayload payload) {
         SmsManager smsManager = SmsManager.getDefault();
 
-        if (includePayload && payload != null) {
+        if (includePayload && payload.Payload != null) {
             Log.w(LOG_TAG, "Payload is non-null but it can't be sent in an SMS, skipping it");
         }
 
@@ -0,0 +1,205 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.governor;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.fonguard.Preferences;
+
+// Picks the processing profile from the thermal status (Android 10+), the battery temperature and
+// the battery level when not charging. Profiles are degraded as soon as a limit is reached but only
+// restored once the conditions have been better for PROFILE_RESTORE_DELAY_MS, so that a value
+// oscillating around a limit does not restart the camera over and over.
+// Runs on the main thread of the service.
+public class ProcessingGovernor {
+    private static final String LOG_TAG = ProcessingGovernor.class.getName();
+
+    private static final long PROFILE_RESTORE_DELAY_MS = 5 * 60 * 1000;
+    private static final int DEFAULT_BATTERY_ECONOMY_PERCENT = 30;
+    private static final int DEFAULT_BATTERY_MINIMAL_PERCENT = 15;
+    // Battery temperatures in tenths of a degree Celsius, as reported by BatteryManager
+    private static final int BATTERY_TEMPERATURE_ECONOMY = 400;
+    private static final int BATTERY_TEMPERATURE_MINIMAL = 450;
+
+    public interface ProfileChangedListener {
+        void onProcessingProfileChanged(ProcessingProfile profile);
+    }
+
+    private final Context mContext;
+    private final ProfileChangedListener mProfileChangedListener;
+    private final Handler mHandler = new Handler();
+    private final int mBatteryEconomyPercent;
+    private final int mBatteryMinimalPercent;
+    private PowerManager.OnThermalStatusChangedListener mThermalStatusListener;
+    private ProcessingProfile mProfile = ProcessingProfile.FULL;
+    private ProcessingProfile mPendingProfile;
+    private long mPendingProfileSinceMs;
+    private int mThermalStatus = 0;
+    private int mBatteryPercent = 100;
+    private int mBatteryTemperature = 0;
+    private boolean mIsCharging = true;
+
+    private final BroadcastReceiver mBatteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+
+            if (level >= 0 && scale > 0) {
+                mBatteryPercent = level * 100 / scale;
+            }
+            mIsCharging = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            mBatteryTemperature = intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0);
+
+            updateProfile();
+        }
+    };
+
+    private final Runnable mUpdateProfileRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateProfile();
+        }
+    };
+
+
+    public ProcessingGovernor(Context context, Preferences preferences,
+                              ProfileChangedListener profileChangedListener) {
+        mContext = context;
+        mProfileChangedListener = profileChangedListener;
+        mBatteryEconomyPercent = preferences.getGovernorBatteryEconomyPercent() > 0 ?
+                preferences.getGovernorBatteryEconomyPercent() : DEFAULT_BATTERY_ECONOMY_PERCENT;
+        mBatteryMinimalPercent = preferences.getGovernorBatteryMinimalPercent() > 0 ?
+                preferences.getGovernorBatteryMinimalPercent() : DEFAULT_BATTERY_MINIMAL_PERCENT;
+    }
+
+
+    public void start() {
+        PowerManager powerManager = (PowerManager)mContext.getSystemService(Context.POWER_SERVICE);
+
+        Log.i(LOG_TAG, "starting governor (battery economy below " + mBatteryEconomyPercent +
+                "%, minimal below " + mBatteryMinimalPercent + "%)");
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            mThermalStatus = powerManager.getCurrentThermalStatus();
+            mThermalStatusListener = new PowerManager.OnThermalStatusChangedListener() {
+                @Override
+                public void onThermalStatusChanged(int status) {
+                    mThermalStatus = status;
+                    updateProfile();
+                }
+            };
+            powerManager.addThermalStatusListener(mThermalStatusListener);
+        }
+
+        // ACTION_BATTERY_CHANGED is sticky, the current state is received right away
+        mContext.registerReceiver(mBatteryReceiver,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+    }
+
+    public void stop() {
+        PowerManager powerManager = (PowerManager)mContext.getSystemService(Context.POWER_SERVICE);
+
+        mContext.unregisterReceiver(mBatteryReceiver);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && mThermalStatusListener != null) {
+            powerManager.removeThermalStatusListener(mThermalStatusListener);
+            mThermalStatusListener = null;
+        }
+        mHandler.removeCallbacks(mUpdateProfileRunnable);
+
+        Log.i(LOG_TAG, "governor stopped");
+    }
+
+    public ProcessingProfile getProfile() {
+        return mProfile;
+    }
+
+
+    private void updateProfile() {
+        ProcessingProfile profile = findTargetProfile();
+        long now = SystemClock.elapsedRealtime();
+
+        mHandler.removeCallbacks(mUpdateProfileRunnable);
+
+        if (profile == mProfile) {
+            mPendingProfile = null;
+            return;
+        }
+
+        // Less expensive profiles have a higher ordinal
+        if (profile.ordinal() < mProfile.ordinal()) {
+            if (profile != mPendingProfile) {
+                mPendingProfile = profile;
+                mPendingProfileSinceMs = now;
+            }
+
+            if (now - mPendingProfileSinceMs < PROFILE_RESTORE_DELAY_MS) {
+                mHandler.postDelayed(mUpdateProfileRunnable,
+                        PROFILE_RESTORE_DELAY_MS - (now - mPendingProfileSinceMs));
+                return;
+            }
+        }
+
+        Log.i(LOG_TAG, "processing profile " + mProfile + " -> " + profile + " (thermal status " +
+                mThermalStatus + ", battery " + mBatteryPercent + "% " +
+                (mIsCharging ? "charging" : "discharging") + ", " + mBatteryTemperature / 10 +
+                "°C)");
+
+        mProfile = profile;
+        mPendingProfile = null;
+        mProfileChangedListener.onProcessingProfileChanged(profile);
+    }
+
+    private ProcessingProfile findTargetProfile() {
+        ProcessingProfile profile = ProcessingProfile.FULL;
+
+        if (mThermalStatus >= PowerManager.THERMAL_STATUS_SEVERE ||
+                mBatteryTemperature >= BATTERY_TEMPERATURE_MINIMAL) {
+            profile = mostDegraded(profile, ProcessingProfile.MINIMAL);
+        } else if (mThermalStatus >= PowerManager.THERMAL_STATUS_MODERATE ||
+                mBatteryTemperature >= BATTERY_TEMPERATURE_ECONOMY) {
+            profile = mostDegraded(profile, ProcessingProfile.ECONOMY);
+        } else if (mThermalStatus >= PowerManager.THERMAL_STATUS_LIGHT) {
+            profile = mostDegraded(profile, ProcessingProfile.BALANCED);
+        }
+
+        if (!mIsCharging) {
+            if (mBatteryPercent <= mBatteryMinimalPercent) {
+                profile = mostDegraded(profile, ProcessingProfile.MINIMAL);
+            } else if (mBatteryPercent <= mBatteryEconomyPercent) {
+                profile = mostDegraded(profile, ProcessingProfile.ECONOMY);
+            }
+        }
+
+        return profile;
+    }
+
+    private static ProcessingProfile mostDegraded(ProcessingProfile profile1,
+                                                  ProcessingProfile profile2) {
+        return profile1.ordinal() >= profile2.ordinal() ? profile1 : profile2;
+    }
+}
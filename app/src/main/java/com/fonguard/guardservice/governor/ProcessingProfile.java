@@ -0,0 +1,69 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.governor;
+
+import com.fonguard.guardservice.triggers.motion.MotionBackend;
+
+// Processing profiles applied by the governor, from the most to the least expensive
+public enum ProcessingProfile {
+    FULL(true, 0, 0, null, true),
+    BALANCED(true, 15, 0, null, true),
+    ECONOMY(false, 5, 1, null, true),
+    MINIMAL(false, 2, 1, MotionBackend.RENDERSCRIPT, false);
+
+    private final boolean mIsHdPayload;
+    private final int mMaxFps;
+    private final int mBlurRadius;
+    private final MotionBackend mBackend;
+    private final boolean mIsPreRollKept;
+
+
+    ProcessingProfile(boolean isHdPayload, int maxFps, int blurRadius, MotionBackend backend,
+                      boolean isPreRollKept) {
+        mIsHdPayload = isHdPayload;
+        mMaxFps = maxFps;
+        mBlurRadius = blurRadius;
+        mBackend = backend;
+        mIsPreRollKept = isPreRollKept;
+    }
+
+
+    // false uses the lowest camera output size for frame and clip payloads instead of HD
+    public boolean isHdPayload() {
+        return mIsHdPayload;
+    }
+
+    // Maximum number of frames analysed per second, 0 means no limit
+    public int getMaxFps() {
+        return mMaxFps;
+    }
+
+    // 0 keeps the default blur radius of the backend
+    public int getBlurRadius() {
+        return mBlurRadius;
+    }
+
+    // null keeps the backend of the settings
+    public MotionBackend getBackend() {
+        return mBackend;
+    }
+
+    public boolean isPreRollKept() {
+        return mIsPreRollKept;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.payloads;
+
+import android.graphics.RectF;
+
+// Part of a picture (Bitmap or encoded JPEG) shrunk to at most MaxDimension pixels, it is only
+// decoded and encoded when an action needs it (see PayloadEncoder)
+public class CroppedImage {
+    public final Object Source;
+    // In fractions of the source size, null for the whole picture
+    public final RectF Region;
+    // 0 keeps the size of the region, pictures are never upscaled
+    public final int MaxDimension;
+
+
+    public CroppedImage(Object source, RectF region, int maxDimension) {
+        Source = source;
+        Region = region;
+        MaxDimension = maxDimension;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.payloads;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+// Payload shared by all the actions of one event and by their retries. Each part (the payload
+// itself or one of its members, e.g. MultiImagePayload.Image) is encoded at most once per
+// encoding, the encoded bytes must not be modified and are dropped when the last action is done.
+public class EventPayload {
+    public final Object Payload;
+
+    private final IPayloadSupplier mSupplier;
+    private final Map<Object, Map<String, byte[]>> mEncodedParts;
+    private int mConsumersNb;
+    private boolean mIsReleased;
+
+
+    // The payload is built right away, EventPayloads are only created for events with actions
+    public EventPayload(IPayloadSupplier supplier) {
+        Payload = supplier.get();
+        mSupplier = supplier;
+        mEncodedParts = new IdentityHashMap<>();
+    }
+
+
+    public synchronized void acquire() {
+        mConsumersNb++;
+    }
+
+    public synchronized void release() {
+        if (--mConsumersNb > 0 || mIsReleased) {
+            return;
+        }
+
+        mIsReleased = true;
+        mEncodedParts.clear();
+        mSupplier.release(Payload);
+    }
+
+    // Callers encode under the EventPayload lock so that concurrent actions wait for the first
+    // encoding instead of running their own
+    public synchronized byte[] getEncodedBytes(Object part, String encoding) {
+        Map<String, byte[]> encodings = mEncodedParts.get(part);
+
+        return encodings != null ? encodings.get(encoding) : null;
+    }
+
+    public synchronized void putEncodedBytes(Object part, String encoding, byte[] bytes) {
+        Map<String, byte[]> encodings = mEncodedParts.get(part);
+
+        if (mConsumersNb <= 0 || bytes == null) {
+            return;
+        }
+
+        if (encodings == null) {
+            encodings = new HashMap<>();
+            mEncodedParts.put(part, encodings);
+        }
+
+        encodings.put(encoding, bytes);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.payloads;
+
+import com.google.gson.annotations.SerializedName;
+
+// Health samples of one report, one array per metric (same index = same sample). Sent as gzipped
+// JSON by the actions taking a body (HTTP, AWS S3).
+public class HeartbeatPayload {
+    // Wall clock time the service started at, a new value means it was restarted
+    @SerializedName("service_started_at_ms")
+    public final long ServiceStartedAtMs;
+
+    @SerializedName("time_ms")
+    public final long[] TimesMs;
+
+    @SerializedName("fps")
+    public final float[] Fps;
+
+    // -1 until the first frame
+    @SerializedName("last_frame_age_ms")
+    public final int[] LastFrameAgesMs;
+
+    @SerializedName("dropped_frames")
+    public final int[] DroppedFramesNb;
+
+    @SerializedName("pending_actions")
+    public final int[] PendingActionsNb;
+
+    @SerializedName("failed_actions")
+    public final int[] FailedActionsNb;
+
+    @SerializedName("battery_percent")
+    public final byte[] BatteryPercents;
+
+    @SerializedName("charging")
+    public final boolean[] IsCharging;
+
+    // Tenths of a degree Celsius
+    @SerializedName("battery_temperature")
+    public final short[] BatteryTemperatures;
+
+
+    public HeartbeatPayload(long serviceStartedAtMs, long[] timesMs, float[] fps,
+                            int[] lastFrameAgesMs, int[] droppedFramesNb, int[] pendingActionsNb,
+                            int[] failedActionsNb, byte[] batteryPercents, boolean[] isCharging,
+                            short[] batteryTemperatures) {
+        ServiceStartedAtMs = serviceStartedAtMs;
+        TimesMs = timesMs;
+        Fps = fps;
+        LastFrameAgesMs = lastFrameAgesMs;
+        DroppedFramesNb = droppedFramesNb;
+        PendingActionsNb = pendingActionsNb;
+        FailedActionsNb = failedActionsNb;
+        BatteryPercents = batteryPercents;
+        IsCharging = isCharging;
+        BatteryTemperatures = batteryTemperatures;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.payloads;
+
+// Builds the payload of an event only once at least one rule is known to run, so events
+// happening during the cooldowns cost nothing
+public interface IPayloadSupplier {
+    Object get();
+
+    // Variant of payload cropped to where the event happened (e.g. the changed tiles of a
+    // motion), with a thumbnail of the whole picture if thumbnailMaxDimension > 0. Returns
+    // payload itself if it can't be cropped.
+    Object crop(Object payload, int thumbnailMaxDimension);
+
+    // Called once all the actions are done with the payload (e.g. to recycle its buffers)
+    void release(Object payload);
+}
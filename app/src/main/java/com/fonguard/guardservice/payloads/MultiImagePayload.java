@@ -0,0 +1,40 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.payloads;
+
+import java.util.List;
+
+public class MultiImagePayload {
+    // Main picture or clip of the event (e.g. still capture, clip File), can be null
+    public final Object Image;
+    // Small picture of the whole scene when Image is a crop, can be null
+    public final Object Thumbnail;
+    // Encoded frames surrounding the event, from the oldest to the newest
+    public final List<byte[]> Frames;
+
+
+    public MultiImagePayload(Object image, List<byte[]> frames) {
+        this(image, null, frames);
+    }
+
+    public MultiImagePayload(Object image, Object thumbnail, List<byte[]> frames) {
+        Image = image;
+        Thumbnail = thumbnail;
+        Frames = frames;
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.payloads;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.Log;
+
+import com.fonguard.guardservice.settings.actions.PayloadProfile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+// Encodes the pictures of the payloads following the payload profile of an action. A null
+// profile (or missing values) keeps the original behavior: full size JPEG at quality 100.
+public class PayloadEncoder {
+    private static final String LOG_TAG = PayloadEncoder.class.getName();
+
+    private static final String FORMAT_JPEG = "jpeg";
+    private static final String FORMAT_WEBP = "webp";
+    private static final int DEFAULT_QUALITY = 100;
+    private static final int MIN_QUALITY = 10;
+    // The picture is downscaled by this factor until it fits the byte budget at MIN_QUALITY
+    private static final float BUDGET_DOWNSCALE_FACTOR = 0.75f;
+    private static final int BUDGET_MIN_DIMENSION = 160;
+
+
+    // Cache key of the encoded parts, two profiles with the same values share their encodings
+    public static String getCacheKey(PayloadProfile profile) {
+        return getFormat(profile) + ":" + getQuality(profile) + ":" + getMaxDimension(profile) +
+                ":" + getMaxBytes(profile);
+    }
+
+    public static String getMimeType(PayloadProfile profile) {
+        return FORMAT_WEBP.equals(getFormat(profile)) ? "image/webp" : "image/jpeg";
+    }
+
+    public static String getFileExtension(PayloadProfile profile) {
+        return FORMAT_WEBP.equals(getFormat(profile)) ? ".webp" : ".jpg";
+    }
+
+
+    public static byte[] encode(Bitmap bitmap, PayloadProfile profile) {
+        Bitmap.CompressFormat format = getCompressFormat(profile);
+        int quality = getQuality(profile);
+        int maxBytes = getMaxBytes(profile);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        Bitmap scaledBitmap = scaleDown(bitmap, getMaxDimension(profile));
+        Bitmap smallerBitmap;
+        byte[] bytes = compress(scaledBitmap, format, quality, outputStream);
+
+        // The highest quality fitting the budget is searched first, then the picture shrinks
+        while (maxBytes > 0 && bytes.length > maxBytes) {
+            bytes = compressToBudget(scaledBitmap, format, quality, maxBytes, outputStream);
+            if (bytes.length <= maxBytes) {
+                break;
+            }
+
+            if (Math.max(scaledBitmap.getWidth(), scaledBitmap.getHeight()) *
+                    BUDGET_DOWNSCALE_FACTOR < BUDGET_MIN_DIMENSION) {
+                Log.w(LOG_TAG, "Could not fit the picture in " + maxBytes + " bytes, sending " +
+                        bytes.length + " bytes");
+                break;
+            }
+
+            smallerBitmap = scale(scaledBitmap, BUDGET_DOWNSCALE_FACTOR);
+            if (scaledBitmap != bitmap) {
+                scaledBitmap.recycle();
+            }
+            scaledBitmap = smallerBitmap;
+            bytes = compress(scaledBitmap, format, quality, outputStream);
+        }
+
+        if (scaledBitmap != bitmap) {
+            scaledBitmap.recycle();
+        }
+
+        return bytes;
+    }
+
+    // Already encoded JPEGs (e.g. still captures) are only decoded again if they break the profile
+    public static byte[] encode(byte[] jpeg, PayloadProfile profile) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        int maxDimension = getMaxDimension(profile);
+        int maxBytes = getMaxBytes(profile);
+        int dimension;
+        Bitmap bitmap;
+        byte[] bytes;
+
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        dimension = Math.max(options.outWidth, options.outHeight);
+
+        if (FORMAT_JPEG.equals(getFormat(profile)) && (maxBytes <= 0 || jpeg.length <= maxBytes) &&
+                (maxDimension <= 0 || dimension <= maxDimension)) {
+            return jpeg;
+        }
+
+        // Subsampling while decoding avoids allocating the full size picture when shrinking it
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = getSampleSize(dimension, maxDimension);
+
+        bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        if (bitmap == null) {
+            Log.w(LOG_TAG, "Could not decode the payload picture, sending it as is");
+            return jpeg;
+        }
+
+        bytes = encode(bitmap, profile);
+        bitmap.recycle();
+
+        return bytes;
+    }
+
+
+    public static byte[] encode(CroppedImage image, PayloadProfile profile) {
+        Bitmap bitmap = decodeRegion(image);
+        Bitmap scaledBitmap;
+        byte[] bytes;
+
+        if (bitmap == null) {
+            Log.w(LOG_TAG, "Could not crop the payload picture, skipping it");
+            return null;
+        }
+
+        scaledBitmap = scaleDown(bitmap, image.MaxDimension);
+        bytes = encode(scaledBitmap, profile);
+
+        if (scaledBitmap != bitmap) {
+            scaledBitmap.recycle();
+        }
+        if (bitmap != image.Source) {
+            bitmap.recycle();
+        }
+
+        return bytes;
+    }
+
+
+    // Only the region of JPEG sources is decoded, subsampled if it is much larger than needed
+    private static Bitmap decodeRegion(CroppedImage image) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        BitmapRegionDecoder decoder;
+        Bitmap source;
+        Bitmap bitmap;
+        byte[] jpeg;
+        Rect rect;
+
+        if (image.Source instanceof Bitmap) {
+            source = (Bitmap)image.Source;
+            rect = toPixels(image.Region, source.getWidth(), source.getHeight());
+
+            return Bitmap.createBitmap(source, rect.left, rect.top, rect.width(), rect.height());
+        } else if (!(image.Source instanceof byte[])) {
+            return null;
+        }
+
+        jpeg = (byte[])image.Source;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(jpeg, 0, jpeg.length, false);
+        } catch (IOException ex) {
+            Log.w(LOG_TAG, "Could not read the payload picture: " + ex.getMessage());
+            return null;
+        }
+
+        rect = toPixels(image.Region, decoder.getWidth(), decoder.getHeight());
+        options.inSampleSize = getSampleSize(Math.max(rect.width(), rect.height()),
+                image.MaxDimension);
+        bitmap = decoder.decodeRegion(rect, options);
+        decoder.recycle();
+
+        return bitmap;
+    }
+
+    private static Rect toPixels(RectF region, int width, int height) {
+        Rect rect;
+
+        if (region == null) {
+            return new Rect(0, 0, width, height);
+        }
+
+        rect = new Rect((int)Math.floor(region.left * width), (int)Math.floor(region.top * height),
+                (int)Math.ceil(region.right * width), (int)Math.ceil(region.bottom * height));
+        rect.left = Math.min(Math.max(rect.left, 0), width - 1);
+        rect.top = Math.min(Math.max(rect.top, 0), height - 1);
+        rect.right = Math.min(Math.max(rect.right, rect.left + 1), width);
+        rect.bottom = Math.min(Math.max(rect.bottom, rect.top + 1), height);
+
+        return rect;
+    }
+
+    // Largest power of 2 keeping dimension at least maxDimension, 1 if maxDimension <= 0
+    private static int getSampleSize(int dimension, int maxDimension) {
+        int sampleSize = 1;
+
+        while (maxDimension > 0 && dimension / (sampleSize * 2) >= maxDimension) {
+            sampleSize *= 2;
+        }
+
+        return sampleSize;
+    }
+
+    private static byte[] compressToBudget(Bitmap bitmap, Bitmap.CompressFormat format,
+                                           int maxQuality, int maxBytes,
+                                           ByteArrayOutputStream outputStream) {
+        int lowQuality = MIN_QUALITY;
+        int highQuality = maxQuality - 1;
+        int quality;
+        byte[] bytes;
+        byte[] fittingBytes = null;
+
+        while (lowQuality <= highQuality) {
+            quality = (lowQuality + highQuality) / 2;
+            bytes = compress(bitmap, format, quality, outputStream);
+
+            if (bytes.length <= maxBytes) {
+                fittingBytes = bytes;
+                lowQuality = quality + 1;
+            } else {
+                highQuality = quality - 1;
+            }
+        }
+
+        return fittingBytes != null ? fittingBytes :
+                compress(bitmap, format, Math.min(MIN_QUALITY, maxQuality), outputStream);
+    }
+
+    private static byte[] compress(Bitmap bitmap, Bitmap.CompressFormat format, int quality,
+                                   ByteArrayOutputStream outputStream) {
+        outputStream.reset();
+        bitmap.compress(format, quality, outputStream);
+
+        return outputStream.toByteArray();
+    }
+
+    private static Bitmap scaleDown(Bitmap bitmap, int maxDimension) {
+        int dimension = Math.max(bitmap.getWidth(), bitmap.getHeight());
+
+        if (maxDimension <= 0 || dimension <= maxDimension) {
+            return bitmap;
+        }
+
+        return scale(bitmap, (float)maxDimension / dimension);
+    }
+
+    private static Bitmap scale(Bitmap bitmap, float factor) {
+        int width = Math.max(1, Math.round(bitmap.getWidth() * factor));
+        int height = Math.max(1, Math.round(bitmap.getHeight() * factor));
+
+        return Bitmap.createScaledBitmap(bitmap, width, height, true);
+    }
+
+
+    // Only JPEG and WEBP are supported, anything else falls back to JPEG
+    private static String getFormat(PayloadProfile profile) {
+        return profile != null && FORMAT_WEBP.equalsIgnoreCase(profile.Format) ? FORMAT_WEBP :
+                FORMAT_JPEG;
+    }
+
+    private static Bitmap.CompressFormat getCompressFormat(PayloadProfile profile) {
+        return FORMAT_WEBP.equals(getFormat(profile)) ? Bitmap.CompressFormat.WEBP :
+                Bitmap.CompressFormat.JPEG;
+    }
+
+    private static int getQuality(PayloadProfile profile) {
+        return profile != null && profile.Quality > 0 ? Math.min(profile.Quality, 100) :
+                DEFAULT_QUALITY;
+    }
+
+    private static int getMaxDimension(PayloadProfile profile) {
+        return profile != null ? Math.max(profile.MaxDimension, 0) : 0;
+    }
+
+    private static int getMaxBytes(PayloadProfile profile) {
+        return profile != null ? Math.max(profile.MaxBytes, 0) : 0;
+    }
+}
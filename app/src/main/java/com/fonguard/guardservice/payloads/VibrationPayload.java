@@ -0,0 +1,41 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.payloads;
+
+import com.google.gson.annotations.SerializedName;
+
+// Sent as JSON by the actions taking a body (HTTP, AWS S3)
+public class VibrationPayload {
+    // Highest deviation from gravity during the event, in g
+    @SerializedName("peak_g")
+    public final float PeakG;
+
+    @SerializedName("sample_rate_hz")
+    public final float SampleRateHz;
+
+    // Deviation from gravity (in g) of every sample, from the oldest to the newest
+    @SerializedName("waveform_g")
+    public final float[] WaveformG;
+
+
+    public VibrationPayload(float peakG, float sampleRateHz, float[] waveformG) {
+        PeakG = peakG;
+        SampleRateHz = sampleRateHz;
+        WaveformG = waveformG;
+    }
+}
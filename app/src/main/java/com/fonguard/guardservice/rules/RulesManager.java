@@ -29,26 +29,44 @@ import com.fonguard.guardservice.actions.IAction;
 import com.fonguard.guardservice.actions.PhoneCallAction;
 import com.fonguard.guardservice.actions.PhoneMmsAction;
 import com.fonguard.guardservice.actions.PhoneSmsAction;
+import com.fonguard.guardservice.payloads.CroppedImage;
+import com.fonguard.guardservice.payloads.EventPayload;
+import com.fonguard.guardservice.payloads.HeartbeatPayload;
+import com.fonguard.guardservice.payloads.IPayloadSupplier;
+import com.fonguard.guardservice.payloads.MultiImagePayload;
+import com.fonguard.guardservice.payloads.PayloadEncoder;
+import com.fonguard.guardservice.payloads.VibrationPayload;
+import com.fonguard.guardservice.settings.actions.PayloadProfile;
 import com.fonguard.guardservice.settings.rules.Rule;
 import com.fonguard.guardservice.triggers.Trigger;
+import com.google.gson.Gson;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class RulesManager {
     private static final String LOG_TAG = RulesManager.class.getName();
 
+    // Cache key of the parts that are not pictures, their encoding does not depend on the action
+    private static final String RAW_ENCODING = "raw";
+
     private static RulesManager sInstance;
 
-    private final ScheduledExecutorService mExecutorService;
+    private final ScheduledThreadPoolExecutor mExecutorService;
     private final Preferences mPreferences;
-    private Map<String, Long> mRulesCooldowns;
+    // Triggers dispatch from their own threads, hence the lock on every access
+    private final Map<String, Long> mRulesCooldowns;
+    private final AtomicLong mFailedActionsNb = new AtomicLong();
 
 
     public static RulesManager getInstance(Preferences preferences) {
@@ -66,38 +84,152 @@ public class RulesManager {
 
     private RulesManager(Preferences preferences) {
         mExecutorService =
-                Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
+                new ScheduledThreadPoolExecutor(Runtime.getRuntime().availableProcessors());
         mPreferences = preferences;
         mRulesCooldowns = new HashMap<>();
     }
 
 
+    // Actions waiting for a thread, including the retries waiting for their delay
+    public int getPendingActionsNb() {
+        return mExecutorService.getQueue().size();
+    }
+
+    // Failed attempts since the service started, retries included
+    public long getFailedActionsNb() {
+        return mFailedActionsNb.get();
+    }
+
     public void performActionsAsync(Trigger source, Object payload, Context context) {
-        Map<Rule, IAction> actionsToPerform = getActionsToPerform(source);
+        performActionsAsync(source, null, payload, context);
+    }
+
+    // zoneIds are the zones of the trigger that fired (e.g. motion zones), null if it has none
+    public void performActionsAsync(Trigger source, List<String> zoneIds, Object payload,
+                                    Context context) {
+        performActionsAsync(source, zoneIds, null, payload, context);
+    }
+
+    // stages are the cascade stages (e.g. "vibration") that armed the trigger, null if none did
+    public void performActionsAsync(Trigger source, List<String> zoneIds, List<String> stages,
+                                    final Object payload, Context context) {
+        performActionsAsync(source, zoneIds, stages, new IPayloadSupplier() {
+            @Override
+            public Object get() {
+                return payload;
+            }
+
+            @Override
+            public Object crop(Object payload, int thumbnailMaxDimension) {
+                return payload;
+            }
+
+            @Override
+            public void release(Object payload) {
+            }
+        }, context);
+    }
+
+    // payloadSupplier is only invoked if at least one rule is past its cooldown
+    public void performActionsAsync(Trigger source, List<String> zoneIds, List<String> stages,
+                                    IPayloadSupplier payloadSupplier, Context context) {
+        Map<Rule, IAction> actionsToPerform = getActionsToPerform(source, zoneIds, stages);
+        Map<Integer, EventPayload> croppedEventPayloads = new HashMap<>();
+        EventPayload eventPayload = null;
+        EventPayload rulePayload;
 
         for (Map.Entry<Rule, IAction> actionToPerform : actionsToPerform.entrySet()) {
             final Rule rule = actionToPerform.getKey();
             final IAction action = actionToPerform.getValue();
 
-            if (isCooldownOver(rule.Id)) {
-                mRulesCooldowns.put(rule.Id, System.currentTimeMillis() + rule.CooldownMs);
-                performActionAsync(source, payload, context, action, rule, 1, rule.Retries);
-            } else {
+            if (!startCooldownIfOver(rule)) {
                 Log.v(LOG_TAG, "Cooldown for rule \"" + rule.Id + "\" is not over yet, " +
                         "skipping action");
+                continue;
+            }
+
+            if (eventPayload == null) {
+                eventPayload = new EventPayload(payloadSupplier);
+                // Held while dispatching so that a fast first action does not drop what it
+                // encoded
+                eventPayload.acquire();
+            }
+
+            rulePayload = rule.CropToMotion ? getCroppedEventPayload(eventPayload,
+                    payloadSupplier, Math.max(rule.ThumbnailMaxDimension, 0),
+                    croppedEventPayloads) : eventPayload;
+
+            // Released once the action succeeded or ran out of retries
+            rulePayload.acquire();
+            performActionAsync(source, rulePayload, context, action, rule, 1, rule.Retries);
+        }
+
+        for (EventPayload croppedEventPayload : croppedEventPayloads.values()) {
+            croppedEventPayload.release();
+        }
+        if (eventPayload != null) {
+            eventPayload.release();
+        }
+    }
+
+    // Rules cropping with the same thumbnail size share one cropped payload, and its encodings
+    private EventPayload getCroppedEventPayload(final EventPayload eventPayload,
+                                                final IPayloadSupplier payloadSupplier,
+                                                final int thumbnailMaxDimension,
+                                                Map<Integer, EventPayload> croppedEventPayloads) {
+        EventPayload croppedEventPayload = croppedEventPayloads.get(thumbnailMaxDimension);
+
+        if (croppedEventPayload != null) {
+            return croppedEventPayload;
+        }
+
+        croppedEventPayload = new EventPayload(new IPayloadSupplier() {
+            @Override
+            public Object get() {
+                return payloadSupplier.crop(eventPayload.Payload, thumbnailMaxDimension);
+            }
+
+            @Override
+            public Object crop(Object payload, int maxDimension) {
+                return payload;
+            }
+
+            @Override
+            public void release(Object payload) {
+            }
+        });
+        // Held while dispatching, like the event payload
+        croppedEventPayload.acquire();
+        croppedEventPayloads.put(thumbnailMaxDimension, croppedEventPayload);
+
+        return croppedEventPayload;
+    }
+
+    // Lets triggers skip capturing a payload (e.g. a snapshot) that no rule would send
+    public boolean hasActionsToPerform(Trigger source, List<String> zoneIds,
+                                       List<String> stages) {
+        for (Rule rule : getActionsToPerform(source, zoneIds, stages).keySet()) {
+            if (isCooldownOver(rule.Id)) {
+                return true;
             }
         }
+
+        return false;
     }
 
-    private void performActionAsync(final Trigger source, final Object payload, Context context,
-                                    final IAction action, final Rule rule, final int tries,
-                                    final int maxRetries) {
+    private void performActionAsync(final Trigger source, final EventPayload payload,
+                                    Context context, final IAction action, final Rule rule,
+                                    final int tries, final int maxRetries) {
         mExecutorService.execute(new Runnable() {
             @Override
             public void run() {
                 boolean success = action.perform(RulesManager.this, context, source,
                         rule.IncludePayload, payload);
 
+                if (!success) {
+                    mFailedActionsNb.incrementAndGet();
+                }
+
                 if (!success && tries - 1 < maxRetries) {
                     mExecutorService.schedule(new Runnable() {
                         @Override
@@ -106,12 +238,15 @@ public class RulesManager {
                                     tries + 1, maxRetries);
                         }
                     }, rule.RetryDelayMs, TimeUnit.MILLISECONDS);
+                } else {
+                    payload.release();
                 }
             }
         });
     }
 
-    private Map<Rule, IAction> getActionsToPerform(Trigger trigger) {
+    private Map<Rule, IAction> getActionsToPerform(Trigger trigger, List<String> zoneIds,
+                                                   List<String> stages) {
         Map<Rule, IAction> actions = new HashMap<>();
 
         for (Rule rule : mPreferences.getRules()) {
@@ -126,6 +261,18 @@ public class RulesManager {
                 continue;
             }
 
+            // Rules targeting zones only fire if one of their zones is part of the event
+            if (rule.Zones != null && !rule.Zones.isEmpty() &&
+                    (zoneIds == null || Collections.disjoint(rule.Zones, zoneIds))) {
+                continue;
+            }
+
+            // Rules requiring confirmations only fire if all their stages armed the trigger
+            if (rule.ConfirmedBy != null && !rule.ConfirmedBy.isEmpty() &&
+                    (stages == null || !stages.containsAll(rule.ConfirmedBy))) {
+                continue;
+            }
+
             switch (ruleAction) {
                 case HTTP:
                     action = createHttpAction(ruleActionId);
@@ -162,8 +309,27 @@ public class RulesManager {
 
 
     private boolean isCooldownOver(String ruleId) {
-        if (mRulesCooldowns.containsKey(ruleId)) {
-            return mRulesCooldowns.get(ruleId) <= System.currentTimeMillis();
+        synchronized (mRulesCooldowns) {
+            if (mRulesCooldowns.containsKey(ruleId)) {
+                return mRulesCooldowns.get(ruleId) <= System.currentTimeMillis();
+            }
+        }
+
+        return true;
+    }
+
+    // Checks and restarts the cooldown atomically, so that two triggers cannot both pass it
+    private boolean startCooldownIfOver(Rule rule) {
+        long now = System.currentTimeMillis();
+
+        synchronized (mRulesCooldowns) {
+            Long cooldownEndMs = mRulesCooldowns.get(rule.Id);
+
+            if (cooldownEndMs != null && cooldownEndMs > now) {
+                return false;
+            }
+
+            mRulesCooldowns.put(rule.Id, now + rule.CooldownMs);
         }
 
         return true;
@@ -236,21 +402,74 @@ public class RulesManager {
     }
 
 
-    public byte[] getBytesFromPayloadObject(Object payload) {
+    public byte[] getBytesFromPayloadObject(EventPayload eventPayload, Object payload) {
+        return getBytesFromPayloadObject(eventPayload, payload, null);
+    }
+
+    // Encodes payload (the event payload or one of its parts) once per payload profile for the
+    // whole event, the returned bytes are shared with the other actions and must not be modified.
+    // A null profile sends the pictures at full size, as JPEG at quality 100.
+    public byte[] getBytesFromPayloadObject(EventPayload eventPayload, Object payload,
+                                            PayloadProfile profile) {
         byte[] buffer = null;
+        String encoding;
 
-        if (payload instanceof Bitmap) {
-            Bitmap bitmap = (Bitmap)payload;
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        if (payload instanceof MultiImagePayload) {
+            // Single-body consumers get the main picture, or the newest frame if there is none
+            MultiImagePayload multiImagePayload = (MultiImagePayload)payload;
 
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 100, outputStream);
-            buffer = outputStream.toByteArray();
+            if (multiImagePayload.Image != null) {
+                buffer = getBytesFromPayloadObject(eventPayload, multiImagePayload.Image,
+                        profile);
+            }
+            if (buffer == null && !multiImagePayload.Frames.isEmpty()) {
+                buffer = getBytesFromPayloadObject(eventPayload,
+                        multiImagePayload.Frames.get(multiImagePayload.Frames.size() - 1),
+                        profile);
+            }
+        } else if (payload != null) {
+            encoding = payload instanceof Bitmap || payload instanceof byte[] ||
+                    payload instanceof CroppedImage ?
+                    PayloadEncoder.getCacheKey(profile) : RAW_ENCODING;
 
-            try {
-                outputStream.close();
-            } catch (IOException ex) {
-                Log.w(LOG_TAG, "Could not close Bitmap outputStream: " + ex.getMessage());
+            synchronized (eventPayload) {
+                buffer = eventPayload.getEncodedBytes(payload, encoding);
+
+                if (buffer == null) {
+                    buffer = encodePayloadObject(payload, profile);
+                    eventPayload.putEncodedBytes(payload, encoding, buffer);
+                }
             }
+        }
+
+        return buffer;
+    }
+
+    private static byte[] encodePayloadObject(Object payload, PayloadProfile profile) {
+        byte[] buffer = null;
+
+        if (payload instanceof byte[]) {
+            // Already encoded (e.g. JPEG produced from a camera image)
+            buffer = PayloadEncoder.encode((byte[])payload, profile);
+        } else if (payload instanceof Bitmap) {
+            buffer = PayloadEncoder.encode((Bitmap)payload, profile);
+        } else if (payload instanceof CroppedImage) {
+            CroppedImage croppedImage = (CroppedImage)payload;
+
+            buffer = PayloadEncoder.encode(croppedImage, profile);
+            // The whole picture is better than none (thumbnails are only an extra)
+            if (buffer == null && croppedImage.Region != null) {
+                Log.w(LOG_TAG, "Sending the uncropped payload picture instead");
+                buffer = encodePayloadObject(croppedImage.Source, profile);
+            }
+        } else if (payload instanceof HeartbeatPayload) {
+            // Reports are mostly repeated numbers, they compress very well
+            buffer = gzip(new Gson().toJson(payload).getBytes(StandardCharsets.UTF_8));
+        } else if (payload instanceof VibrationPayload) {
+            buffer = new Gson().toJson(payload).getBytes(StandardCharsets.UTF_8);
+        } else if (payload instanceof File) {
+            Log.w(LOG_TAG, "RulesManager.getBytesFromPayloadObject(): file payloads (clips) " +
+                    "must be streamed, not loaded in memory");
         } else {
             Log.w(LOG_TAG, "RulesManager.getBytesFromPayloadObject(): unsupported payload " +
                     "object type " + payload.getClass().getName());
@@ -258,4 +477,17 @@ public class RulesManager {
 
         return buffer;
     }
+
+    private static byte[] gzip(byte[] bytes) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream)) {
+            gzipOutputStream.write(bytes);
+        } catch (IOException ex) {
+            Log.w(LOG_TAG, "Could not compress payload: " + ex.getMessage());
+            return null;
+        }
+
+        return outputStream.toByteArray();
+    }
 }
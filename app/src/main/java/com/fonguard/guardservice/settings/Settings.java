@@ -31,4 +31,7 @@ public class Settings {
 
     @SerializedName("rules")
     public List<Rule> Rules;
+
+    @SerializedName("governor")
+    public com.fonguard.guardservice.settings.governor.Governor Governor;
 }
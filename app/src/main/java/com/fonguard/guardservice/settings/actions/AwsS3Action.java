@@ -37,4 +37,7 @@ public class AwsS3Action {
 
     @SerializedName("key_prefix")
     public String KeyPrefix;
+
+    @SerializedName("payload_profile")
+    public PayloadProfile PayloadProfile;
 }
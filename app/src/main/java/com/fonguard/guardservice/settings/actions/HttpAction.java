@@ -41,4 +41,7 @@ public class HttpAction {
 
     @SerializedName("headers")
     public List<HttpHeader> Headers;
+
+    @SerializedName("payload_profile")
+    public PayloadProfile PayloadProfile;
 }
@@ -25,4 +25,7 @@ public class PhoneMmsAction {
 
     @SerializedName("recipient_phone_number")
     public String RecipientPhoneNumber;
+
+    @SerializedName("payload_profile")
+    public PayloadProfile PayloadProfile;
 }
@@ -0,0 +1,31 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.settings.governor;
+
+import com.google.gson.annotations.SerializedName;
+
+public class Governor {
+    @SerializedName("enabled")
+    public boolean Enabled;
+
+    @SerializedName("battery_economy_percent")
+    public int BatteryEconomyPercent;
+
+    @SerializedName("battery_minimal_percent")
+    public int BatteryMinimalPercent;
+}
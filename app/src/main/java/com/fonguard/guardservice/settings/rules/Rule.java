@@ -19,6 +19,8 @@ package com.fonguard.guardservice.settings.rules;
 
 import com.google.gson.annotations.SerializedName;
 
+import java.util.List;
+
 public class Rule {
     @SerializedName("id")
     public String Id;
@@ -29,9 +31,21 @@ public class Rule {
     @SerializedName("action")
     public String Action;
 
+    @SerializedName("zones")
+    public List<String> Zones;
+
+    @SerializedName("confirmed_by")
+    public List<String> ConfirmedBy;
+
     @SerializedName("include_payload")
     public boolean IncludePayload;
 
+    @SerializedName("crop_to_motion")
+    public boolean CropToMotion;
+
+    @SerializedName("thumbnail_max_dimension")
+    public int ThumbnailMaxDimension;
+
     @SerializedName("cooldown_ms")
     public int CooldownMs;
 
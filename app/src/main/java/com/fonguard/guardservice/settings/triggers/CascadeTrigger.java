@@ -0,0 +1,45 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.settings.triggers;
+
+import com.google.gson.annotations.SerializedName;
+
+import java.util.List;
+
+public class CascadeTrigger {
+    @SerializedName("enabled")
+    public boolean Enabled;
+
+    @SerializedName("stages")
+    public List<String> Stages;
+
+    @SerializedName("window_seconds")
+    public int WindowSeconds;
+
+    @SerializedName("camera_between_windows")
+    public String CameraBetweenWindows;
+
+    @SerializedName("vibration_threshold_mg")
+    public int VibrationThresholdMg;
+
+    @SerializedName("vibration_batch_latency_ms")
+    public int VibrationBatchLatencyMs;
+
+    @SerializedName("noise_threshold_rms")
+    public int NoiseThresholdRms;
+}
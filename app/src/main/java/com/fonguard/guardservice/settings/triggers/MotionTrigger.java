@@ -19,7 +19,20 @@ package com.fonguard.guardservice.settings.triggers;
 
 import com.google.gson.annotations.SerializedName;
 
+import java.util.List;
+
 public class MotionTrigger {
+    public static class MotionZone {
+        @SerializedName("id")
+        public String Id;
+
+        @SerializedName("tiles")
+        public List<Integer> Tiles;
+
+        @SerializedName("pixel_number_diff_threshold")
+        public int PixelNumberDiffThreshold;
+    }
+
     @SerializedName("camera_id")
     public String CameraId;
 
@@ -28,4 +41,73 @@ public class MotionTrigger {
 
     @SerializedName("pixel_number_diff_threshold")
     public int PixelNumberDiffThreshold;
+
+    @SerializedName("grid_columns")
+    public int GridColumns;
+
+    @SerializedName("grid_rows")
+    public int GridRows;
+
+    @SerializedName("masked_tiles")
+    public List<Integer> MaskedTiles;
+
+    @SerializedName("zones")
+    public List<MotionZone> Zones;
+
+    @SerializedName("detection_model")
+    public String DetectionModel;
+
+    @SerializedName("background_learning_rate")
+    public float BackgroundLearningRate;
+
+    @SerializedName("background_sigma_threshold")
+    public float BackgroundSigmaThreshold;
+
+    @SerializedName("backend")
+    public String Backend;
+
+    @SerializedName("diff_parallelism")
+    public int DiffParallelism;
+
+    @SerializedName("luma_only")
+    public boolean LumaOnly;
+
+    @SerializedName("adaptive_rate")
+    public boolean AdaptiveRate;
+
+    @SerializedName("idle_fps")
+    public int IdleFps;
+
+    @SerializedName("active_hold_seconds")
+    public int ActiveHoldSeconds;
+
+    @SerializedName("standby_interval_seconds")
+    public int StandbyIntervalSeconds;
+
+    @SerializedName("standby_burst_seconds")
+    public int StandbyBurstSeconds;
+
+    @SerializedName("standby_continuous_seconds")
+    public int StandbyContinuousSeconds;
+
+    @SerializedName("payload_source")
+    public String PayloadSource;
+
+    @SerializedName("clip_duration_seconds")
+    public int ClipDurationSeconds;
+
+    @SerializedName("clip_bitrate_kbps")
+    public int ClipBitrateKbps;
+
+    @SerializedName("pre_roll_seconds")
+    public int PreRollSeconds;
+
+    @SerializedName("pre_roll_fps")
+    public int PreRollFps;
+
+    @SerializedName("post_roll_frames")
+    public int PostRollFrames;
+
+    @SerializedName("pre_roll_memory_budget_kb")
+    public int PreRollMemoryBudgetKb;
 }
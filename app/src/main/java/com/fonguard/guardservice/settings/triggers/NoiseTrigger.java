@@ -0,0 +1,49 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.settings.triggers;
+
+import com.google.gson.annotations.SerializedName;
+
+public class NoiseTrigger {
+    @SerializedName("enabled")
+    public boolean Enabled;
+
+    @SerializedName("sample_rate_hz")
+    public int SampleRateHz;
+
+    @SerializedName("rms_threshold")
+    public int RmsThreshold;
+
+    @SerializedName("band_low_hz")
+    public int BandLowHz;
+
+    @SerializedName("band_high_hz")
+    public int BandHighHz;
+
+    @SerializedName("band_rms_threshold")
+    public int BandRmsThreshold;
+
+    @SerializedName("hold_ms")
+    public int HoldMs;
+
+    @SerializedName("pre_trigger_seconds")
+    public int PreTriggerSeconds;
+
+    @SerializedName("clip_bitrate_kbps")
+    public int ClipBitrateKbps;
+}
@@ -22,4 +22,16 @@ import com.google.gson.annotations.SerializedName;
 public class Triggers {
     @SerializedName("motion")
     public MotionTrigger Motion;
+
+    @SerializedName("noise")
+    public NoiseTrigger Noise;
+
+    @SerializedName("vibration")
+    public VibrationTrigger Vibration;
+
+    @SerializedName("heartbeat")
+    public HeartbeatTrigger Heartbeat;
+
+    @SerializedName("cascade")
+    public CascadeTrigger Cascade;
 }
@@ -0,0 +1,49 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.settings.triggers;
+
+import com.google.gson.annotations.SerializedName;
+
+public class VibrationTrigger {
+    @SerializedName("enabled")
+    public boolean Enabled;
+
+    @SerializedName("sampling_rate_hz")
+    public int SamplingRateHz;
+
+    @SerializedName("batch_latency_ms")
+    public int BatchLatencyMs;
+
+    @SerializedName("sta_ms")
+    public int StaMs;
+
+    @SerializedName("lta_ms")
+    public int LtaMs;
+
+    @SerializedName("trigger_ratio")
+    public float TriggerRatio;
+
+    @SerializedName("detrigger_ratio")
+    public float DetriggerRatio;
+
+    @SerializedName("min_peak_mg")
+    public int MinPeakMg;
+
+    @SerializedName("waveform_seconds")
+    public int WaveformSeconds;
+}
@@ -0,0 +1,84 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.standby;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.SystemClock;
+import android.util.Log;
+
+// Wakes the device up every interval with an exact alarm (also allowed while idle) so that the
+// service can run a standby burst. The next alarm is only scheduled once the previous burst is
+// over, bursts never overlap.
+public class StandbyScheduler {
+    private static final String LOG_TAG = StandbyScheduler.class.getName();
+
+    private static final String INTENT_ACTION_STANDBY_BURST =
+            "com.fonguard.guardservice.standby.BURST";
+
+    public interface BurstDueListener {
+        void onStandbyBurstDue();
+    }
+
+    private final Context mContext;
+    private final AlarmManager mAlarmManager;
+    private final PendingIntent mBurstPendingIntent;
+    private final long mIntervalMs;
+    private final BurstDueListener mBurstDueListener;
+
+    private final BroadcastReceiver mBurstReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mBurstDueListener.onStandbyBurstDue();
+        }
+    };
+
+
+    public StandbyScheduler(Context context, long intervalMs, BurstDueListener burstDueListener) {
+        Intent burstIntent = new Intent(INTENT_ACTION_STANDBY_BURST);
+
+        burstIntent.setPackage(context.getPackageName());
+
+        mContext = context;
+        mAlarmManager = (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
+        mBurstPendingIntent = PendingIntent.getBroadcast(context, 0, burstIntent, 0);
+        mIntervalMs = intervalMs;
+        mBurstDueListener = burstDueListener;
+    }
+
+
+    public void start() {
+        Log.i(LOG_TAG, "starting standby, one burst every " + mIntervalMs + " ms");
+        mContext.registerReceiver(mBurstReceiver, new IntentFilter(INTENT_ACTION_STANDBY_BURST));
+    }
+
+    public void stop() {
+        mAlarmManager.cancel(mBurstPendingIntent);
+        mContext.unregisterReceiver(mBurstReceiver);
+        Log.i(LOG_TAG, "standby stopped");
+    }
+
+    public void scheduleNextBurst() {
+        mAlarmManager.setExactAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                SystemClock.elapsedRealtime() + mIntervalMs, mBurstPendingIntent);
+    }
+}
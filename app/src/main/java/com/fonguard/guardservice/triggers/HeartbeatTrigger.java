@@ -0,0 +1,192 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.triggers;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.fonguard.Preferences;
+import com.fonguard.guardservice.GuardService;
+import com.fonguard.guardservice.payloads.HeartbeatPayload;
+import com.fonguard.guardservice.rules.RulesManager;
+import com.fonguard.guardservice.triggers.heartbeat.HealthRecords;
+
+// Samples the health of the service every sample interval into in-memory records, and fires one
+// report carrying all the samples every report interval (plus one right away when it starts, so
+// that restarts are visible). A report that does not arrive is the signal that something died.
+public class HeartbeatTrigger extends Handler {
+    private static final String LOG_TAG = HeartbeatTrigger.class.getName();
+
+    private static final int DEFAULT_SAMPLE_INTERVAL_SECONDS = 60;
+    private static final int DEFAULT_REPORT_INTERVAL_SECONDS = 900;
+
+    public static final int HANDLER_MSG_START = 1;
+    public static final int HANDLER_MSG_STOP = 2;
+
+
+    private final GuardService mGuardService;
+    private final Preferences mPreferences;
+    private final RulesManager mRulesManager;
+    // Null if motion detection is not running
+    private final MotionTrigger mMotionTrigger;
+    private final IntentFilter mBatteryIntentFilter =
+            new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+    private long mServiceStartedAtMs;
+    private long mSampleIntervalMs;
+    private long mReportIntervalMs;
+    private HealthRecords mRecords;
+    private long mLastSampleTimeMs;
+    private long mLastFramesNb;
+    private long mLastDroppedFramesNb;
+    private long mLastFailedActionsNb;
+
+    private final Runnable mSampleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sample();
+            postDelayed(this, mSampleIntervalMs);
+        }
+    };
+
+    private final Runnable mReportRunnable = new Runnable() {
+        @Override
+        public void run() {
+            report();
+            postDelayed(this, mReportIntervalMs);
+        }
+    };
+
+
+    public HeartbeatTrigger(Looper looper, GuardService guardService,
+                            MotionTrigger motionTrigger) {
+        super(looper);
+
+        mGuardService = guardService;
+        mPreferences = Preferences.getInstance(guardService);
+        mRulesManager = RulesManager.getInstance(mPreferences);
+        mMotionTrigger = motionTrigger;
+    }
+
+
+    @Override
+    public void handleMessage(@NonNull Message msg) {
+        switch (msg.what) {
+            case HANDLER_MSG_START:
+                startHeartbeat();
+                break;
+            case HANDLER_MSG_STOP:
+                removeCallbacks(mSampleRunnable);
+                removeCallbacks(mReportRunnable);
+                Log.i(LOG_TAG, "Heartbeat stopped");
+                break;
+            default:
+                Log.w(LOG_TAG, "unhandled HeartbeatTrigger message \"" + msg.what + "\"");
+                break;
+        }
+    }
+
+
+    private void startHeartbeat() {
+        int sampleIntervalSeconds = mPreferences.getHeartbeatSampleIntervalSeconds() > 0 ?
+                mPreferences.getHeartbeatSampleIntervalSeconds() :
+                DEFAULT_SAMPLE_INTERVAL_SECONDS;
+        int reportIntervalSeconds = mPreferences.getHeartbeatReportIntervalSeconds() > 0 ?
+                mPreferences.getHeartbeatReportIntervalSeconds() :
+                DEFAULT_REPORT_INTERVAL_SECONDS;
+
+        mServiceStartedAtMs = System.currentTimeMillis();
+        mSampleIntervalMs = sampleIntervalSeconds * 1000L;
+        mReportIntervalMs = reportIntervalSeconds * 1000L;
+        // Room for late reports (e.g. delayed while the device was asleep)
+        mRecords = new HealthRecords(2 * Math.max(1,
+                reportIntervalSeconds / sampleIntervalSeconds));
+
+        mLastSampleTimeMs = SystemClock.elapsedRealtime();
+        mLastFramesNb = mMotionTrigger != null ? mMotionTrigger.getHealthFramesNb() : 0;
+        mLastDroppedFramesNb = mMotionTrigger != null ?
+                mMotionTrigger.getHealthDroppedFramesNb() : 0;
+        mLastFailedActionsNb = mRulesManager.getFailedActionsNb();
+
+        Log.i(LOG_TAG, "Heartbeat started, one sample every " + mSampleIntervalMs +
+                " ms, one report every " + mReportIntervalMs + " ms");
+
+        removeCallbacks(mSampleRunnable);
+        removeCallbacks(mReportRunnable);
+        postDelayed(mSampleRunnable, mSampleIntervalMs);
+        post(mReportRunnable);
+    }
+
+    private void sample() {
+        long now = SystemClock.elapsedRealtime();
+        long framesNb = mMotionTrigger != null ? mMotionTrigger.getHealthFramesNb() : 0;
+        long lastFrameTimeMs = mMotionTrigger != null ?
+                mMotionTrigger.getHealthLastFrameTimeMs() : 0;
+        long droppedFramesNb = mMotionTrigger != null ?
+                mMotionTrigger.getHealthDroppedFramesNb() : 0;
+        long failedActionsNb = mRulesManager.getFailedActionsNb();
+        Intent batteryIntent = mGuardService.registerReceiver(null, mBatteryIntentFilter);
+        int batteryPercent = -1;
+        boolean isCharging = false;
+        int batteryTemperature = 0;
+        int lastFrameAgeMs;
+        float fps;
+
+        if (batteryIntent != null) {
+            int level = batteryIntent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = batteryIntent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+
+            if (level >= 0 && scale > 0) {
+                batteryPercent = level * 100 / scale;
+            }
+            isCharging = batteryIntent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            batteryTemperature = batteryIntent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0);
+        }
+
+        fps = now > mLastSampleTimeMs ?
+                (framesNb - mLastFramesNb) * 1000f / (now - mLastSampleTimeMs) : 0;
+        lastFrameAgeMs = lastFrameTimeMs > 0 ?
+                (int)Math.min(now - lastFrameTimeMs, Integer.MAX_VALUE) : -1;
+        mRecords.add(System.currentTimeMillis(), fps, lastFrameAgeMs,
+                (int)(droppedFramesNb - mLastDroppedFramesNb),
+                mRulesManager.getPendingActionsNb(),
+                (int)(failedActionsNb - mLastFailedActionsNb),
+                batteryPercent, isCharging, batteryTemperature);
+
+        mLastSampleTimeMs = now;
+        mLastFramesNb = framesNb;
+        mLastDroppedFramesNb = droppedFramesNb;
+        mLastFailedActionsNb = failedActionsNb;
+    }
+
+    private void report() {
+        int droppedRecordsNb = mRecords.getDroppedRecordsNb();
+        HeartbeatPayload payload = mRecords.flush(mServiceStartedAtMs);
+
+        Log.i(LOG_TAG, "Sending heartbeat report with " + payload.TimesMs.length + " samples" +
+                (droppedRecordsNb > 0 ? " (" + droppedRecordsNb + " dropped)" : ""));
+        mRulesManager.performActionsAsync(Trigger.HEARTBEAT, payload, mGuardService);
+    }
+}
@@ -21,20 +21,25 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.graphics.Bitmap;
-import android.graphics.Color;
 import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.YuvImage;
+import android.hardware.camera2.CameraDevice;
+import android.media.Image;
+import android.media.ImageReader;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.renderscript.Allocation;
 import android.renderscript.Element;
 import android.renderscript.RenderScript;
 import android.renderscript.ScriptIntrinsicBlur;
-import android.renderscript.ScriptIntrinsicResize;
 import android.renderscript.ScriptIntrinsicYuvToRGB;
 import android.renderscript.Type;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.view.Surface;
 
@@ -46,17 +51,40 @@ import com.fonguard.Preferences;
 
 import com.fonguard.ScriptC_grayscale;
 import com.fonguard.guardservice.GuardService;
+import com.fonguard.guardservice.governor.ProcessingProfile;
+import com.fonguard.guardservice.payloads.CroppedImage;
+import com.fonguard.guardservice.payloads.IPayloadSupplier;
+import com.fonguard.guardservice.payloads.MultiImagePayload;
 import com.fonguard.guardservice.rules.RulesManager;
+import com.fonguard.guardservice.settings.rules.Rule;
+import com.fonguard.guardservice.triggers.cascade.CascadeCameraMode;
+import com.fonguard.guardservice.triggers.cascade.CascadeStage;
+import com.fonguard.guardservice.triggers.motion.BackgroundModel;
+import com.fonguard.guardservice.triggers.motion.ClipRecorder;
+import com.fonguard.guardservice.triggers.motion.FrameMailbox;
+import com.fonguard.guardservice.triggers.motion.FrameRingBuffer;
+import com.fonguard.guardservice.triggers.motion.FrameStage;
+import com.fonguard.guardservice.triggers.motion.LumaFrame;
+import com.fonguard.guardservice.triggers.motion.LumaFrameProcessor;
+import com.fonguard.guardservice.triggers.motion.MotionBackend;
+import com.fonguard.guardservice.triggers.motion.MotionDetectionModel;
+import com.fonguard.guardservice.triggers.motion.MotionPayloadSource;
+import com.fonguard.guardservice.triggers.motion.MotionZones;
+import com.fonguard.guardservice.triggers.motion.TileGrid;
 import com.fonguard.ui.triggers.motion.TriggersMotionFragment;
 import com.fonguard.utils.camera.Camera2Wrapper;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class MotionTrigger extends Handler implements Allocation.OnBufferAvailableListener,
-        Camera2Wrapper.CameraClosedListener {
+        ImageReader.OnImageAvailableListener, Camera2Wrapper.CameraClosedListener,
+        Camera2Wrapper.CaptureFailedListener, Camera2Wrapper.StillCapturedListener,
+        ClipRecorder.ClipRecordedListener {
     private static final String LOG_TAG = MotionTrigger.class.getName();
 
     public static final int PIXEL_VALUE_DIFF_THRESHOLD_MIN = 1;
@@ -65,10 +93,36 @@ public class MotionTrigger extends Handler implements Allocation.OnBufferAvailab
     // Even with a high resolution camera, it is unlikely that one needs a diff of more than 100,000
     public static final int PIXEL_NUMBER_DIFF_THRESHOLD_MAX = 100000;
 
+    public interface StandbyListener {
+        // The camera is closed, the next burst can be scheduled
+        void onStandbyBurstFinished();
+    }
+
+    private static final int JAVA_BACKEND_BLUR_RADIUS = 2;
+    private static final int METRICS_LOG_INTERVAL_FRAMES = 600;
+    // The UI only displays the count, an update per frame would cost an Intent per frame
+    private static final long DIFF_PIXELS_NB_BROADCAST_INTERVAL_MS = 250;
+    private static final int PAYLOAD_JPEG_QUALITY = 100;
+    private static final int PRE_ROLL_JPEG_QUALITY = 80;
+    private static final float DEFAULT_BACKGROUND_LEARNING_RATE = 0.05f;
+    private static final float DEFAULT_BACKGROUND_SIGMA_THRESHOLD = 3;
+    private static final int DEFAULT_CLIP_DURATION_SECONDS = 5;
+    private static final int DEFAULT_CLIP_BITRATE_KBPS = 2000;
+    private static final String CLIPS_DIRECTORY_NAME = "clips";
+    private static final int DEFAULT_PRE_ROLL_FPS = 2;
+    private static final int DEFAULT_PRE_ROLL_MEMORY_BUDGET_KB = 2048;
+    private static final int DEFAULT_IDLE_FPS = 2;
+    private static final int DEFAULT_ACTIVE_HOLD_SECONDS = 10;
+    private static final int DEFAULT_STANDBY_BURST_SECONDS = 3;
+    private static final int DEFAULT_STANDBY_CONTINUOUS_SECONDS = 60;
+
     public static final int HANDLER_MSG_RESTART = 1;
     public static final int HANDLER_MSG_SET_PREVIEW_SURFACE = 2;
     public static final int HANDLER_MSG_SET_PIXEL_VALUE_DIFF_THRESHOLD = 3;
     public static final int HANDLER_MSG_SET_PIXEL_NUMBER_DIFF_THRESHOLD = 4;
+    public static final int HANDLER_MSG_SET_PROCESSING_PROFILE = 5;
+    public static final int HANDLER_MSG_START_STANDBY_BURST = 6;
+    public static final int HANDLER_MSG_ARM_CASCADE = 7;
 
     public static final String INTENT_EXTRA_PREVIEW_SURFACE = "PreviewSurface";
     public static final String INTENT_EXTRA_PIXEL_VALUE_DIFF_THRESHOLD = "PixelValueDiffThreshold";
@@ -79,10 +133,64 @@ public class MotionTrigger extends Handler implements Allocation.OnBufferAvailab
     private final GuardService mGuardService;
     private final Preferences mPreferences;
     private final RulesManager mRulesManager;
-    private final RenderScript mRenderScript;
+    private RenderScript mRenderScript;
     private final Camera2Wrapper mCameraWrapper;
     private boolean mAutoRestartWhenCameraClosed = false;
     private boolean mIsStoppingCapture = false;
+    private MotionBackend mBackend;
+    private MotionPayloadSource mPayloadSource;
+    private MotionDetectionModel mDetectionModel;
+    private BackgroundModel mBackgroundModel;
+    private byte[] mBackgroundModelInput;
+    private TileGrid mTileGrid;
+    private MotionZones mMotionZones;
+    // Counting can stop at the threshold only if no zone needs its own count and no rule crops
+    // its pictures to the tiles of the event
+    private boolean mIsEarlyExitAllowed;
+    // Zones found by the publish stage, accumulated until the motion thread starts the event
+    private final List<String> mTriggeredZoneIds = new ArrayList<>();
+    private final List<String> mPublishedZoneIds = new ArrayList<>();
+    // Tiles with changed pixels in the motion frames, accumulated the same way. The tiles of the
+    // event give the region its pictures are cropped to.
+    private boolean[] mTriggeredTiles;
+    private boolean[] mMotionEventTiles;
+    private boolean mLumaOnly;
+    // Standby: the camera is only opened for bursts requested by the service, each one compared
+    // with the reference kept from the previous burst. A motion keeps the camera open (continuous
+    // mode) until no motion has been seen for mStandbyContinuousMs.
+    private StandbyListener mStandbyListener;
+    private long mStandbyBurstMs;
+    private long mStandbyContinuousMs;
+    private long mLastMotionTimeMs = 0;
+    private long mStandbyBurstEndMs;
+    private byte[] mStandbyReference;
+    private int mStandbyReferenceWidth;
+    // Cascade: cheap stages (accelerometer, microphone) arm the camera for a window. Between the
+    // windows the camera is either closed (bursts are then opened by the arming) or kept at its
+    // idle rate (adaptive rate, armed windows run at full rate).
+    private CascadeCameraMode mCascadeCameraMode;
+    private long mCascadeWindowMs;
+    private final long[] mCascadeArmTimesMs = new long[CascadeStage.values().length];
+    private List<String> mMotionEventStages;
+    // Set by the governor of the service, applied when the capture (re)starts
+    private ProcessingProfile mProcessingProfile = ProcessingProfile.FULL;
+    // Frame rate limit of the processing profile, 0 and null when there is none
+    private long mProfileFrameIntervalMs;
+    private Range<Integer> mProfileFpsRange;
+    // Adaptive rate: while the scene is quiet the camera runs at its lowest frame rate range and
+    // only one frame per idle interval is analysed. Any change goes back to the full rate.
+    private boolean mIsAdaptiveRate;
+    private Range<Integer> mIdleFpsRange;
+    private long mIdleFrameIntervalMs;
+    private long mActiveHoldMs;
+    private long mLastAnalysedFrameTimeMs;
+    private long mSkippedFramesNb;
+    // Written by the publish stage, read by the motion thread
+    private volatile long mActiveUntilMs;
+    // Only written on the motion thread, which alone drives the camera. The frame threads read it
+    // and ask for a change through mUpdateFrameRateRunnable.
+    private volatile boolean mIsIdleRate;
+    private volatile boolean mIsFrameRateUpdatePending = false;
     private int mPixelValueDiffThreshold;
     private int mPixelNumberDiffThreshold;
     private int mCapturePreviewWidth;
@@ -90,19 +198,216 @@ public class MotionTrigger extends Handler implements Allocation.OnBufferAvailab
     private int mCaptureProcessingWidth;
     private int mCaptureProcessingHeight;
     private Surface mCapturePreviewSurface;
+    private Surface mSnapshotSurface;
+    private boolean mIsSnapshotPending = false;
+    private boolean mIsMotionEventPending = false;
+    private Object mMotionEventImage;
+    private List<String> mMotionEventZoneIds;
+    private FrameRingBuffer mPreRollBuffer;
+    private int mPreRollFrameIntervalMs;
+    private int mPostRollFramesNb;
+    private int mPostRollFramesRemaining;
+    private long mLastPreRollFrameTimeMs;
+    private byte[] mPreRollNv21Frame;
+    private YuvImage mPreRollYuvImage;
+    private Rect mPreRollFrameRect;
     private Allocation mCaptureYuvAllocation;
     private Allocation mCaptureRgbAllocation;
-    private Allocation mCaptureRgbResizedAllocation;
-    private Allocation mCaptureGrayscaleResizedAllocation;
-    private Allocation mCaptureGrayscaleResizedBlurredAllocation;
+    private Allocation mCaptureGrayscaleAllocation;
+    private Allocation mCaptureGrayscaleBlurredAllocation;
+    private Allocation mSnapshotYuvAllocation;
+    private Allocation mSnapshotNv21Allocation;
+    private Allocation mCaptureLumaResizedAllocation;
+    private Allocation mCaptureLumaResizedBlurredAllocation;
+    private Allocation mPreRollNv21Allocation;
+    private Allocation mReferenceAllocation;
+    private Allocation mDiffSpanCountsAllocation;
+    private Allocation mDiffSpanMasksAllocation;
+    private Allocation mDiffTileColumnStartsAllocation;
     private ScriptIntrinsicYuvToRGB mYuvToRgbIntrinsicScript;
-    private ScriptIntrinsicResize mResizeIntrinsicScript;
     private ScriptC_grayscale mGrayscaleScript;
     private ScriptIntrinsicBlur mBlurIntrinsicScript;
-    private Bitmap mCapturePreviewBitmap;
-    private Bitmap mCaptureProcessingBitmap;
-    private int[] mCaptureProcessingBitmapPixels;
-    private int[] mReferenceBitmapPixels;
+    // FRAME snapshots are kept as NV21 and encoded to JPEG straight from YUV
+    private byte[] mSnapshotNv21Frame;
+    private YuvImage mSnapshotYuvImage;
+    private Rect mSnapshotFrameRect;
+    private ByteArrayOutputStream mSnapshotOutputStream;
+    private int[] mDiffSpanCounts;
+    private boolean mHasReferenceFrame;
+    private ImageReader mCaptureImageReader;
+    private ImageReader mSnapshotImageReader;
+    private LumaFrameProcessor mLumaFrameProcessor;
+    private ClipRecorder mClipRecorder;
+    // Pipeline: acquire (camera callback) -> preprocess -> detect -> publish. The RenderScript
+    // backend acquires, preprocesses and detects in the camera callback (its allocations are not
+    // double-buffered), only publishing runs on its own stage.
+    private LumaFrame mAcquiredFrame;
+    private FrameStage<LumaFrame> mPreprocessStage;
+    private FrameStage<LumaFrame> mDetectStage;
+    private FrameStage<LumaFrame> mPublishStage;
+    private FrameMailbox<LumaFrame> mPreprocessMailbox;
+    private FrameMailbox<LumaFrame> mPublishMailbox;
+    private long mPublishedFramesNb;
+    // Health counters, never reset: written by the publish stage, read by the heartbeat
+    private volatile long mHealthFramesNb;
+    private volatile long mHealthLastFrameTimeMs;
+    private volatile long mHealthDroppedFramesNb;
+    private long mPreviousPipelinesDroppedFramesNb;
+    // The publish stage only records its count, the Intent is built on the motion thread at most
+    // once per DIFF_PIXELS_NB_BROADCAST_INTERVAL_MS
+    private volatile int mPublishedDiffPixelsNb;
+    private volatile boolean mIsDiffPixelsNbBroadcastPending = false;
+    private volatile int mLastBroadcastDiffPixelsNb;
+
+    private final FrameStage.FrameProcessor<LumaFrame> mFramePreprocessor =
+            new FrameStage.FrameProcessor<LumaFrame>() {
+                @Override
+                public void process(LumaFrame frame) {
+                    mLumaFrameProcessor.blur(frame.Plane);
+                }
+            };
+
+    private final FrameStage.FrameProcessor<LumaFrame> mFrameDetector =
+            new FrameStage.FrameProcessor<LumaFrame>() {
+                @Override
+                public void process(LumaFrame frame) {
+                    if (mBackgroundModel != null) {
+                        frame.DiffPixelsNb = mBackgroundModel.computeForegroundPixels(frame.Plane,
+                                1, mPixelValueDiffThreshold, mTileGrid, frame.TileCounts);
+                    } else {
+                        mLumaFrameProcessor.computeDiffPixels(frame, mPixelValueDiffThreshold,
+                                mIsEarlyExitAllowed ? mPixelNumberDiffThreshold : 0, mTileGrid);
+                    }
+                }
+            };
+
+    private final FrameStage.FrameProcessor<LumaFrame> mFramePublisher =
+            new FrameStage.FrameProcessor<LumaFrame>() {
+                @Override
+                public void process(LumaFrame frame) {
+                    // The camera and the recorder are driven from the motion thread only
+                    if (mIsAdaptiveRate && frame.DiffPixelsNb > 0) {
+                        mActiveUntilMs = SystemClock.elapsedRealtime() + mActiveHoldMs;
+                        if (mIsIdleRate) {
+                            requestFrameRateUpdate();
+                        }
+                    }
+
+                    if (isMotionDetected(frame.DiffPixelsNb, frame.TileCounts)) {
+                        post(mStartMotionEventRunnable);
+                    }
+
+                    mPublishedFramesNb++;
+                    mHealthFramesNb++;
+                    mHealthLastFrameTimeMs = SystemClock.elapsedRealtime();
+                    mHealthDroppedFramesNb = mPreviousPipelinesDroppedFramesNb +
+                            getPipelineDroppedFramesNb();
+                    logPipelineMetrics();
+                }
+            };
+    private int mClipDurationMs;
+
+    private final Runnable mStopClipRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mCameraWrapper.setRepeatingExtraTarget(null);
+            mClipRecorder.stop();
+        }
+    };
+
+    private final Runnable mStartMotionEventRunnable = new Runnable() {
+        @Override
+        public void run() {
+            startMotionEvent();
+        }
+    };
+
+    // Invoked by the rules manager while the motion event is dispatched, only if a rule will run
+    private final IPayloadSupplier mMotionEventPayloadSupplier = new IPayloadSupplier() {
+        @Override
+        public Object get() {
+            Object image = mMotionEventImage;
+
+            if (image != null && image == mSnapshotNv21Frame) {
+                image = encodeSnapshot();
+            }
+
+            if (mPreRollBuffer != null) {
+                return new MultiImagePayload(image, mPreRollBuffer.copyFrames());
+            }
+
+            return image;
+        }
+
+        // The crop is scaled to the snapshot size at most, whatever the payload source
+        @Override
+        public Object crop(Object payload, int thumbnailMaxDimension) {
+            MultiImagePayload multiImagePayload = payload instanceof MultiImagePayload ?
+                    (MultiImagePayload)payload : null;
+            Object image = multiImagePayload != null ? multiImagePayload.Image : payload;
+            float[] boundingBox = mTileGrid.getBoundingBox(mMotionEventTiles);
+            Object croppedImage;
+            Object thumbnail = null;
+
+            // Clips are sent whole
+            if (boundingBox == null || !(image instanceof byte[])) {
+                return payload;
+            }
+
+            croppedImage = new CroppedImage(image, new RectF(boundingBox[0], boundingBox[1],
+                    boundingBox[2], boundingBox[3]),
+                    Math.max(mCapturePreviewWidth, mCapturePreviewHeight));
+            if (thumbnailMaxDimension > 0) {
+                thumbnail = new CroppedImage(image, null, thumbnailMaxDimension);
+            }
+
+            if (multiImagePayload == null && thumbnail == null) {
+                return croppedImage;
+            }
+
+            return new MultiImagePayload(croppedImage, thumbnail, multiImagePayload != null ?
+                    multiImagePayload.Frames : new ArrayList<byte[]>());
+        }
+
+        @Override
+        public void release(Object payload) {
+            // Nothing to recycle, the encoded snapshot belongs to the actions
+        }
+    };
+
+    private final Runnable mEndStandbyBurstRunnable = new Runnable() {
+        @Override
+        public void run() {
+            long quietMs = SystemClock.elapsedRealtime() - mLastMotionTimeMs;
+
+            if (mLastMotionTimeMs > 0 && quietMs < mStandbyContinuousMs) {
+                Log.i(LOG_TAG, "Motion seen, camera kept open (continuous mode)");
+                extendStandbyBurst(mStandbyContinuousMs - quietMs);
+                return;
+            }
+
+            Log.i(LOG_TAG, "Standby burst over, closing the camera");
+            stopCapture();
+        }
+    };
+
+    private final Runnable mBroadcastDiffPixelsNbRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared first, so that a count published from now on schedules a new broadcast
+            mIsDiffPixelsNbBroadcastPending = false;
+            broadcastDiffPixelsNb(mPublishedDiffPixelsNb);
+        }
+    };
+
+    private final Runnable mUpdateFrameRateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared first, so that a change seen from now on posts a new update
+            mIsFrameRateUpdatePending = false;
+            updateFrameRate(SystemClock.elapsedRealtime());
+        }
+    };
 
     private final BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
         @Override
@@ -149,10 +454,11 @@ public class MotionTrigger extends Handler implements Allocation.OnBufferAvailab
         mRulesManager = RulesManager.getInstance(mPreferences);
         mPixelValueDiffThreshold = mPreferences.getPixelValueDiffThreshold();
         mPixelNumberDiffThreshold = mPreferences.getPixelNumberDiffThreshold();
-        mRenderScript = RenderScript.create(mGuardService);
         mCameraWrapper = new Camera2Wrapper(mGuardService);
 
         mCameraWrapper.setCameraClosedListener(this);
+        mCameraWrapper.setCaptureFailedListener(this);
+        mCameraWrapper.setStillCapturedListener(this);
 
         intentFilter.addAction(MainActivity.INTENT_ACTION_MOTION_TRIGGER_SET_PREVIEW_SURFACE);
         intentFilter.addAction(MainActivity.INTENT_ACTION_MOTION_TRIGGER_RESTART);
@@ -168,7 +474,7 @@ public class MotionTrigger extends Handler implements Allocation.OnBufferAvailab
     public void handleMessage(@NonNull Message msg) {
         switch (msg.what) {
             case HANDLER_MSG_RESTART:
-                if (mCameraWrapper.isCapturing()) {
+                if (mCameraWrapper.isOpen()) {
                     mAutoRestartWhenCameraClosed = true; // Need to wait for the current CameraCaptureSession to finish before starting a new one
                     stopCapture();
                 } else {
@@ -181,10 +487,37 @@ public class MotionTrigger extends Handler implements Allocation.OnBufferAvailab
                 break;
             case HANDLER_MSG_SET_PIXEL_VALUE_DIFF_THRESHOLD:
                 mPixelValueDiffThreshold = (int)msg.obj;
+                if (mGrayscaleScript != null) {
+                    mGrayscaleScript.set_gPixelValueDiffThreshold(mPixelValueDiffThreshold);
+                }
                 break;
             case HANDLER_MSG_SET_PIXEL_NUMBER_DIFF_THRESHOLD:
                 mPixelNumberDiffThreshold = (int)msg.obj;
                 break;
+            case HANDLER_MSG_SET_PROCESSING_PROFILE:
+                if (mProcessingProfile == msg.obj) {
+                    break;
+                }
+
+                mProcessingProfile = (ProcessingProfile)msg.obj;
+                Log.i(LOG_TAG, "Processing profile set to " + mProcessingProfile);
+                // Most of the profile (sizes, backend, pre-roll) needs a new capture session
+                if (mCameraWrapper.isOpen()) {
+                    mAutoRestartWhenCameraClosed = true;
+                    stopCapture();
+                }
+                break;
+            case HANDLER_MSG_START_STANDBY_BURST:
+                startCapture();
+                // The service waits for the end of the burst to schedule the next one
+                if (!mCameraWrapper.isOpen()) {
+                    Log.w(LOG_TAG, "standby burst could not start");
+                    mStandbyListener.onStandbyBurstFinished();
+                }
+                break;
+            case HANDLER_MSG_ARM_CASCADE:
+                armCascade((CascadeStage)msg.obj);
+                break;
             default:
                 Log.w(LOG_TAG, "unhandled MotionTrigger message \"" + msg.what + "\"");
                 break;
@@ -199,52 +532,439 @@ public class MotionTrigger extends Handler implements Allocation.OnBufferAvailab
             return;
         }
 
-        mYuvToRgbIntrinsicScript.setInput(captureInYuvAllocation);
-        mYuvToRgbIntrinsicScript.forEach(mCaptureRgbAllocation);
-
-        mCaptureRgbAllocation.copyTo(mCapturePreviewBitmap);
+        if (captureInYuvAllocation == mSnapshotYuvAllocation) {
+            // No RGBA conversion, the frame is only encoded (from NV21) if a rule will send it
+            mGrayscaleScript.forEach_packSnapshotNv21(mSnapshotNv21Allocation);
+            mSnapshotNv21Allocation.copyTo(mSnapshotNv21Frame);
+            onSnapshotAvailable(mSnapshotNv21Frame);
+            return;
+        }
 
-        mResizeIntrinsicScript.setInput(mCaptureRgbAllocation);
-        mResizeIntrinsicScript.forEach_bicubic(mCaptureRgbResizedAllocation);
+        if (isFrameSkipped()) {
+            return;
+        }
 
-        mGrayscaleScript.forEach_toGrayscale(mCaptureRgbResizedAllocation,
-                mCaptureGrayscaleResizedAllocation);
+        if (mLumaOnly) {
+            processLumaFrame();
+        } else {
+            processRgbaFrame(captureInYuvAllocation);
+        }
 
-        mBlurIntrinsicScript.setInput(mCaptureGrayscaleResizedAllocation);
-        mBlurIntrinsicScript.forEach(mCaptureGrayscaleResizedBlurredAllocation);
+        if (isPreRollFrameDue()) {
+            mGrayscaleScript.forEach_packPreRollNv21(mPreRollNv21Allocation);
+            mPreRollNv21Allocation.copyTo(mPreRollNv21Frame);
+            recordPreRollFrame();
+        }
 
-        mCaptureGrayscaleResizedBlurredAllocation.copyTo(mCaptureProcessingBitmap);
+        mAcquiredFrame = mPublishMailbox.post(mAcquiredFrame);
+    }
 
-        int diffPixelsNb = computeGrayscaleDiffPixels();
-        Log.v(LOG_TAG, "Different pixels nb: " + diffPixelsNb);
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        Image image = reader.acquireLatestImage();
+        Image.Plane lumaPlane;
 
-        if (diffPixelsNb >= mPixelNumberDiffThreshold) {
-            Log.v(LOG_TAG, "MOTION DETECTED");
-            mRulesManager.performActionsAsync(Trigger.MOTION,
-                    Bitmap.createBitmap(mCapturePreviewBitmap), mGuardService);
+        if (image == null) {
+            return;
         }
 
-        broadcastDiffPixelsNb(diffPixelsNb);
+        try {
+            if (mIsStoppingCapture) {
+                return;
+            }
+
+            if (reader == mSnapshotImageReader) {
+                com.fonguard.utils.android.media.Image.toNv21(image, mSnapshotNv21Frame);
+                onSnapshotAvailable(mSnapshotNv21Frame);
+                return;
+            }
+
+            if (isFrameSkipped()) {
+                return;
+            }
+
+            // Only the downsampling needs the Image, so it is released as soon as possible
+            lumaPlane = image.getPlanes()[0];
+            mLumaFrameProcessor.downsample(lumaPlane.getBuffer(), lumaPlane.getRowStride(),
+                    lumaPlane.getPixelStride(), mAcquiredFrame.Plane);
+            mAcquiredFrame = mPreprocessMailbox.post(mAcquiredFrame);
+
+            if (isPreRollFrameDue()) {
+                com.fonguard.utils.android.media.Image.toNv21(image, mPreRollNv21Frame);
+                recordPreRollFrame();
+            }
+        } finally {
+            image.close();
+        }
     }
 
     @Override
     public void onCameraClosed() {
+        if (mCaptureImageReader != null) {
+            mCaptureImageReader.close();
+            mCaptureImageReader = null;
+        }
+
+        if (mSnapshotImageReader != null) {
+            mSnapshotImageReader.close();
+            mSnapshotImageReader = null;
+        }
+
+        // The stages must be done with the processors before these are released
+        stopPipeline();
+
+        // The publish stage is stopped, so nothing it posted can reach the closed camera
+        removeCallbacks(mStartMotionEventRunnable);
+        removeCallbacks(mUpdateFrameRateRunnable);
+        removeCallbacks(mEndStandbyBurstRunnable);
+        if (mStandbyListener != null) {
+            saveStandbyReference();
+        }
+
+        if (mLumaFrameProcessor != null) {
+            mLumaFrameProcessor.close();
+            mLumaFrameProcessor = null;
+        }
+
+        if (mClipRecorder != null) {
+            removeCallbacks(mStopClipRunnable);
+            mClipRecorder.close();
+            mClipRecorder = null;
+        }
+
+        synchronized (this) {
+            mIsSnapshotPending = false;
+            mIsMotionEventPending = false;
+            mMotionEventImage = null;
+            mTriggeredZoneIds.clear();
+            if (mTriggeredTiles != null) {
+                Arrays.fill(mTriggeredTiles, false);
+            }
+        }
+
         if (mAutoRestartWhenCameraClosed) {
             mAutoRestartWhenCameraClosed = false;
             startCapture();
+        } else if (mStandbyListener != null) {
+            mStandbyListener.onStandbyBurstFinished();
         }
     }
 
+    // Only valid before the capture starts
+    public void setStandbyListener(StandbyListener listener) {
+        mStandbyListener = listener;
+    }
+
+    public long getHealthFramesNb() {
+        return mHealthFramesNb;
+    }
+
+    public long getHealthLastFrameTimeMs() {
+        return mHealthLastFrameTimeMs;
+    }
+
+    public long getHealthDroppedFramesNb() {
+        return mHealthDroppedFramesNb;
+    }
+
+    // Only valid before the capture starts, the closed mode also needs a standby listener
+    public void setCascade(CascadeCameraMode cameraMode, long windowMs) {
+        mCascadeCameraMode = cameraMode;
+        mCascadeWindowMs = windowMs;
+    }
+
+
+    @Override
+    public synchronized void onCaptureFailed() {
+        Log.w(LOG_TAG, "snapshot capture failed");
+        mIsSnapshotPending = false;
+        dispatchMotionEventIfComplete();
+    }
+
+    @Override
+    public void onStillCaptured(byte[] jpeg) {
+        onSnapshotAvailable(jpeg);
+    }
+
+    @Override
+    public void onClipRecorded(File clip) {
+        onSnapshotAvailable(clip);
+    }
+
+
+    // Event state is shared between the frame callbacks and the camera callbacks, hence the locks
+    private synchronized void startMotionEvent() {
+        List<String> stages;
+
+        mLastMotionTimeMs = SystemClock.elapsedRealtime();
+
+        // Only one motion event is built at a time: one snapshot and one post-roll
+        if (mIsMotionEventPending) {
+            Log.v(LOG_TAG, "motion event already pending, skipping");
+
+            for (String zoneId : mTriggeredZoneIds) {
+                if (!mMotionEventZoneIds.contains(zoneId)) {
+                    mMotionEventZoneIds.add(zoneId);
+                }
+            }
+            for (int tile = 0; tile < mTriggeredTiles.length; ++tile) {
+                mMotionEventTiles[tile] |= mTriggeredTiles[tile];
+            }
+            mTriggeredZoneIds.clear();
+            Arrays.fill(mTriggeredTiles, false);
+            return;
+        }
+
+        // Nothing is captured while all the matching rules are cooling down
+        stages = getArmedCascadeStages(mLastMotionTimeMs);
+        if (!mRulesManager.hasActionsToPerform(Trigger.MOTION, mTriggeredZoneIds, stages)) {
+            Log.v(LOG_TAG, "no rule past its cooldown, skipping motion event");
+            mTriggeredZoneIds.clear();
+            Arrays.fill(mTriggeredTiles, false);
+            return;
+        }
+
+        mIsMotionEventPending = true;
+        mMotionEventImage = null;
+        mMotionEventZoneIds = new ArrayList<>(mTriggeredZoneIds);
+        mMotionEventStages = stages;
+        System.arraycopy(mTriggeredTiles, 0, mMotionEventTiles, 0, mTriggeredTiles.length);
+        mTriggeredZoneIds.clear();
+        Arrays.fill(mTriggeredTiles, false);
+        mPostRollFramesRemaining = mPreRollBuffer != null ? mPostRollFramesNb : 0;
+
+        // Frames of the high resolution stream are only produced on demand, one per motion event
+        if (mPayloadSource == MotionPayloadSource.STILL) {
+            mIsSnapshotPending = mCameraWrapper.captureStillAsync(PAYLOAD_JPEG_QUALITY, this);
+        } else if (mPayloadSource == MotionPayloadSource.CLIP) {
+            mIsSnapshotPending = startClip();
+        } else {
+            mIsSnapshotPending = mCameraWrapper.captureOnceAsync(mSnapshotSurface,
+                    CameraDevice.TEMPLATE_PREVIEW, this);
+        }
+
+        if (!mIsSnapshotPending) {
+            Log.w(LOG_TAG, "could not request snapshot, motion event will have no picture");
+        }
+
+        dispatchMotionEventIfComplete();
+    }
+
+    private boolean startClip() {
+        if (mClipRecorder == null || !mClipRecorder.start()) {
+            return false;
+        }
+
+        // The encoder only receives frames while a clip is recorded
+        if (!mCameraWrapper.setRepeatingExtraTarget(mClipRecorder.getInputSurface())) {
+            mClipRecorder.stop();
+            return true; // the (empty) clip is still reported through onClipRecorded()
+        }
+
+        postDelayed(mStopClipRunnable, mClipDurationMs);
+        return true;
+    }
+
+    private synchronized void onSnapshotAvailable(Object image) {
+        mIsSnapshotPending = false;
+        mMotionEventImage = image;
+        dispatchMotionEventIfComplete();
+    }
+
+    private synchronized void onPostRollFrameRecorded() {
+        if (mIsMotionEventPending && mPostRollFramesRemaining > 0) {
+            mPostRollFramesRemaining--;
+            dispatchMotionEventIfComplete();
+        }
+    }
+
+    private void dispatchMotionEventIfComplete() {
+        if (!mIsMotionEventPending || mIsSnapshotPending || mPostRollFramesRemaining > 0) {
+            return;
+        }
+
+        mIsMotionEventPending = false;
+
+        // The supplier reads the event image, it is only cleared once the payload was built
+        mRulesManager.performActionsAsync(Trigger.MOTION, mMotionEventZoneIds, mMotionEventStages,
+                mMotionEventPayloadSupplier, mGuardService);
+        mMotionEventImage = null;
+    }
+
+
+    private boolean isPreRollFrameDue() {
+        long now = SystemClock.elapsedRealtime();
+
+        if (mPreRollBuffer == null || now - mLastPreRollFrameTimeMs < mPreRollFrameIntervalMs) {
+            return false;
+        }
+
+        mLastPreRollFrameTimeMs = now;
+        return true;
+    }
+
+    // Runs on the frame thread (RenderScript buffer callback or image reader) for every frame of
+    // the analysis stream, so the camera itself is left to the motion thread
+    private boolean isFrameSkipped() {
+        long now = SystemClock.elapsedRealtime();
+        long frameIntervalMs;
+
+        if (mIsAdaptiveRate && (now >= mActiveUntilMs) != mIsIdleRate) {
+            requestFrameRateUpdate();
+        }
+        frameIntervalMs = mIsAdaptiveRate && mIsIdleRate ?
+                Math.max(mIdleFrameIntervalMs, mProfileFrameIntervalMs) : mProfileFrameIntervalMs;
+        if (frameIntervalMs <= 0) {
+            return false;
+        }
+
+        if (now - mLastAnalysedFrameTimeMs < frameIntervalMs) {
+            mSkippedFramesNb++;
+            return true;
+        }
+
+        mLastAnalysedFrameTimeMs = now;
+        return false;
+    }
+
+    private void requestFrameRateUpdate() {
+        if (mIsFrameRateUpdatePending) {
+            return;
+        }
+
+        mIsFrameRateUpdatePending = true;
+        post(mUpdateFrameRateRunnable);
+    }
+
+    // Motion thread only
+    private void updateFrameRate(long now) {
+        boolean isIdle = now >= mActiveUntilMs;
+
+        if (!mIsAdaptiveRate || isIdle == mIsIdleRate) {
+            return;
+        }
+
+        mIsIdleRate = isIdle;
+        mCameraWrapper.setRepeatingFpsRange(isIdle ? mIdleFpsRange : mProfileFpsRange);
+        Log.i(LOG_TAG, "Scene " + (isIdle ? "quiet, analysis rate lowered to " +
+                (1000 / mIdleFrameIntervalMs) + " fps" : "active, analysis at full rate"));
+    }
+
+    // Only the returned copy leaves the output stream, which is reused by every snapshot
+    private byte[] encodeSnapshot() {
+        mSnapshotOutputStream.reset();
+        mSnapshotYuvImage.compressToJpeg(mSnapshotFrameRect, PAYLOAD_JPEG_QUALITY,
+                mSnapshotOutputStream);
+
+        return mSnapshotOutputStream.toByteArray();
+    }
+
+    // Encodes mPreRollNv21Frame straight into the next slot of the ring buffer
+    private void recordPreRollFrame() {
+        mPreRollYuvImage.compressToJpeg(mPreRollFrameRect, PRE_ROLL_JPEG_QUALITY,
+                mPreRollBuffer.beginWrite());
+
+        if (mPreRollBuffer.endWrite()) {
+            onPostRollFrameRecorded();
+        } else {
+            Log.v(LOG_TAG, "pre-roll frame larger than a slot (" +
+                    mPreRollBuffer.getSlotCapacity() + " bytes), dropped");
+        }
+    }
+
+    private void logPipelineMetrics() {
+        if (mPublishedFramesNb % METRICS_LOG_INTERVAL_FRAMES != 0) {
+            return;
+        }
+
+        Log.i(LOG_TAG, "Dropped frames: preprocess " + getDroppedFramesNb(mPreprocessStage) +
+                ", detect " + getDroppedFramesNb(mDetectStage) + ", publish " +
+                getDroppedFramesNb(mPublishStage) + ", skipped by rate limits " +
+                mSkippedFramesNb + " (" + mPublishedFramesNb + " frames published)");
+
+        if (mLumaFrameProcessor != null) {
+            Log.i(LOG_TAG, "Early exits: coarse level " +
+                    mLumaFrameProcessor.getCoarseEarlyExitsNb() + ", threshold reached " +
+                    mLumaFrameProcessor.getCountEarlyExitsNb() + " (" +
+                    mLumaFrameProcessor.getDiffedFramesNb() + " frames)");
+        }
+    }
+
+    private long getPipelineDroppedFramesNb() {
+        return getDroppedFramesNb(mPreprocessStage) + getDroppedFramesNb(mDetectStage) +
+                getDroppedFramesNb(mPublishStage);
+    }
+
+    private static long getDroppedFramesNb(FrameStage<LumaFrame> stage) {
+        return stage != null ? stage.getDroppedFramesNb() : 0;
+    }
+
+    // Runs on the publish stage
+    private boolean isMotionDetected(int diffPixelsNb, int[] tileCounts) {
+        publishDiffPixelsNb(diffPixelsNb);
+
+        mPublishedZoneIds.clear();
+        if (diffPixelsNb < 0) {
+            return false;
+        }
+
+        if (!mMotionZones.findTriggeredZones(tileCounts, mPixelNumberDiffThreshold,
+                mPublishedZoneIds)) {
+            return false;
+        }
+
+        Log.v(LOG_TAG, "MOTION DETECTED in zones " + mPublishedZoneIds);
+        synchronized (this) {
+            for (String zoneId : mPublishedZoneIds) {
+                if (!mTriggeredZoneIds.contains(zoneId)) {
+                    mTriggeredZoneIds.add(zoneId);
+                }
+            }
+            for (int tile = 0; tile < tileCounts.length; ++tile) {
+                mTriggeredTiles[tile] |= tileCounts[tile] > 0;
+            }
+        }
+
+        return true;
+    }
+
+    private void processRgbaFrame(Allocation captureInYuvAllocation) {
+        mYuvToRgbIntrinsicScript.setInput(captureInYuvAllocation);
+        mYuvToRgbIntrinsicScript.forEach(mCaptureRgbAllocation);
+
+        mGrayscaleScript.forEach_toGrayscale(mCaptureRgbAllocation, mCaptureGrayscaleAllocation);
+
+        mBlurIntrinsicScript.setInput(mCaptureGrayscaleAllocation);
+        mBlurIntrinsicScript.forEach(mCaptureGrayscaleBlurredAllocation);
+
+        mAcquiredFrame.DiffPixelsNb = computeDiffPixels(mCaptureGrayscaleBlurredAllocation,
+                mAcquiredFrame.TileCounts);
+    }
+
+    private void processLumaFrame() {
+        // gLumaInput is bound to mCaptureYuvAllocation, which has just received the new frame
+        mGrayscaleScript.forEach_downsampleLuma(mCaptureLumaResizedAllocation);
+
+        mBlurIntrinsicScript.setInput(mCaptureLumaResizedAllocation);
+        mBlurIntrinsicScript.forEach(mCaptureLumaResizedBlurredAllocation);
+
+        mAcquiredFrame.DiffPixelsNb = computeDiffPixels(mCaptureLumaResizedBlurredAllocation,
+                mAcquiredFrame.TileCounts);
+    }
+
 
     private void startCapture() {
         String cameraId = mPreferences.getSelectedCameraId();
+        String backend;
+        String payloadSource;
+        String detectionModel;
+        Size stillCaptureSize = null;
         Camera2Wrapper.CameraCharacteristicsWrapper camera;
         Size outputSize;
         List<Surface> cameraTargets;
-        Type.Builder yuvTypeBuilder;
-        Type.Builder rgbTypeBuilder;
+        List<Surface> cameraOnDemandTargets;
 
-        if (cameraId.equals("") || mCameraWrapper.isCapturing()) {
+        if (cameraId.equals("") || mCameraWrapper.isOpen()) {
             Log.w(LOG_TAG, "cannot start capture: " + (cameraId.equals("") ?
                     "no camera selected" : "already capturing"));
             return;
@@ -257,72 +977,610 @@ public class MotionTrigger extends Handler implements Allocation.OnBufferAvailab
             return;
         }
 
-        outputSize = Camera2Wrapper.findLowestHDOutputSizeAvailable(camera);
+        outputSize = mProcessingProfile.isHdPayload() ?
+                Camera2Wrapper.findLowestHDOutputSizeAvailable(camera) :
+                Camera2Wrapper.findLowestOutputSizeAvailable(camera);
         mCapturePreviewWidth = outputSize.getWidth();
         mCapturePreviewHeight = outputSize.getHeight();
-        Log.i(LOG_TAG, "Capture preview size set to " + mCapturePreviewWidth + " x " +
-                mCapturePreviewHeight);
+        Log.i(LOG_TAG, "Capture preview (snapshot) size set to " + mCapturePreviewWidth +
+                " x " + mCapturePreviewHeight);
 
         outputSize = Camera2Wrapper.findLowestOutputSizeAvailable(camera);
         mCaptureProcessingWidth = outputSize.getWidth();
         mCaptureProcessingHeight = outputSize.getHeight();
-        Log.i(LOG_TAG, "Capture processing size set to " + mCaptureProcessingWidth + " x " +
-                mCaptureProcessingHeight);
+        Log.i(LOG_TAG, "Capture processing (analysis stream) size set to " +
+                mCaptureProcessingWidth + " x " + mCaptureProcessingHeight);
+
+        backend = mPreferences.getMotionBackend();
+        mBackend = parseEnumSetting("backend", backend, MotionBackend.RENDERSCRIPT);
+        if (mProcessingProfile.getBackend() != null) {
+            mBackend = mProcessingProfile.getBackend();
+        }
+        Log.i(LOG_TAG, "Capture processing backend set to " + mBackend);
+
+        detectionModel = mPreferences.getMotionDetectionModel();
+        mDetectionModel = parseEnumSetting("detection_model", detectionModel,
+                MotionDetectionModel.FRAME_DIFF);
+        Log.i(LOG_TAG, "Motion detection model set to " + mDetectionModel);
+
+        payloadSource = mPreferences.getMotionPayloadSource();
+        mPayloadSource = parseEnumSetting("payload_source", payloadSource,
+                MotionPayloadSource.STILL);
+        if (mPayloadSource == MotionPayloadSource.STILL) {
+            stillCaptureSize = Camera2Wrapper.findHighestJpegOutputSizeAvailable(camera);
+            Log.i(LOG_TAG, "Capture still size set to " + stillCaptureSize.getWidth() + " x " +
+                    stillCaptureSize.getHeight());
+        }
 
         cameraTargets = new ArrayList<>();
+        cameraOnDemandTargets = new ArrayList<>();
         if (mCapturePreviewSurface != null) {
             cameraTargets.add(mCapturePreviewSurface);
         }
 
+        mSnapshotSurface = null;
+        mSnapshotYuvAllocation = null;
+
+        startTileGrid();
+        startBackgroundModel();
+        startPreRoll();
+        startFrameRate(camera);
+
+        switch (mBackend) {
+            case JAVA:
+                startJavaProcessing(cameraTargets);
+                break;
+            case RENDERSCRIPT:
+            default:
+                startRenderScriptProcessing(cameraTargets);
+                break;
+        }
+
+        if (mPayloadSource == MotionPayloadSource.FRAME) {
+            cameraOnDemandTargets.add(mSnapshotSurface);
+        } else if (mPayloadSource == MotionPayloadSource.CLIP) {
+            startClipRecorder();
+            if (mClipRecorder != null) {
+                cameraOnDemandTargets.add(mClipRecorder.getInputSurface());
+            }
+        }
+        mIsSnapshotPending = false;
+
+        startPipeline();
+
+        Log.i(LOG_TAG, "starting capture...");
+        if (!mCameraWrapper.startCaptureAsync(cameraId, cameraTargets, cameraOnDemandTargets,
+                stillCaptureSize)) {
+            Log.w(LOG_TAG, "cannot start capture: camera could not be opened");
+            stopPipeline();
+            return;
+        }
+        mIsStoppingCapture = false;
+
+        if (mStandbyListener != null) {
+            startStandbyBurst();
+        }
+    }
+
+    private void startStandbyBurst() {
+        int burstSeconds = mPreferences.getStandbyBurstSeconds();
+        int continuousSeconds = mPreferences.getStandbyContinuousSeconds();
+
+        mStandbyBurstMs = (burstSeconds <= 0 ? DEFAULT_STANDBY_BURST_SECONDS : burstSeconds) *
+                1000L;
+        mStandbyContinuousMs = (continuousSeconds <= 0 ? DEFAULT_STANDBY_CONTINUOUS_SECONDS :
+                continuousSeconds) * 1000L;
+        mLastMotionTimeMs = 0;
+        mStandbyBurstEndMs = 0;
+
+        extendStandbyBurst(mStandbyBurstMs);
+        Log.i(LOG_TAG, "Standby burst started for " + mStandbyBurstMs + " ms");
+    }
+
+    // Keeps the camera open for at least durationMs from now
+    private void extendStandbyBurst(long durationMs) {
+        long endMs = SystemClock.elapsedRealtime() + durationMs;
+
+        if (endMs <= mStandbyBurstEndMs) {
+            return;
+        }
+
+        mStandbyBurstEndMs = endMs;
+        removeCallbacks(mEndStandbyBurstRunnable);
+        postDelayed(mEndStandbyBurstRunnable, durationMs);
+    }
+
+    private void armCascade(CascadeStage stage) {
+        long now = SystemClock.elapsedRealtime();
+
+        mCascadeArmTimesMs[stage.ordinal()] = now;
+
+        if (mCascadeCameraMode == CascadeCameraMode.LOW_RATE) {
+            if (mIsAdaptiveRate) {
+                mActiveUntilMs = Math.max(mActiveUntilMs, now + mCascadeWindowMs);
+                updateFrameRate(now);
+            }
+            return;
+        }
+
+        if (!mCameraWrapper.isOpen()) {
+            startCapture();
+            if (!mCameraWrapper.isOpen()) {
+                Log.w(LOG_TAG, "cascade window could not start");
+                mStandbyListener.onStandbyBurstFinished();
+                return;
+            }
+        }
+        extendStandbyBurst(mCascadeWindowMs);
+    }
+
+    // Names of the cascade stages whose window includes timeMs, null if there are none
+    private List<String> getArmedCascadeStages(long timeMs) {
+        List<String> stages = null;
+
+        if (mCascadeCameraMode == null) {
+            return null;
+        }
+
+        for (CascadeStage stage : CascadeStage.values()) {
+            long armTimeMs = mCascadeArmTimesMs[stage.ordinal()];
+
+            if (armTimeMs > 0 && timeMs - armTimeMs <= mCascadeWindowMs) {
+                if (stages == null) {
+                    stages = new ArrayList<>();
+                }
+                stages.add(stage.toString().toLowerCase());
+            }
+        }
+
+        return stages;
+    }
+
+    // Keeps the reference frame so that the next burst compares its first frame right away (the
+    // background model is kept as is)
+    private void saveStandbyReference() {
+        int referenceLength = mCaptureProcessingWidth * mCaptureProcessingHeight *
+                (mBackend == MotionBackend.RENDERSCRIPT && !mLumaOnly ? 4 : 1);
+
+        if (mBackgroundModel != null) {
+            return;
+        }
+
+        if (mStandbyReference == null || mStandbyReference.length != referenceLength) {
+            mStandbyReference = new byte[referenceLength];
+        }
+        mStandbyReferenceWidth = mCaptureProcessingWidth;
+
+        if (mLumaFrameProcessor != null) {
+            if (!mLumaFrameProcessor.copyReferenceTo(mStandbyReference)) {
+                mStandbyReference = null;
+            }
+        } else if (mReferenceAllocation != null && mHasReferenceFrame) {
+            mReferenceAllocation.copyTo(mStandbyReference);
+        } else {
+            mStandbyReference = null;
+        }
+    }
+
+    private boolean hasStandbyReference(int referenceLength) {
+        return mStandbyListener != null && mStandbyReference != null &&
+                mStandbyReference.length == referenceLength &&
+                mStandbyReferenceWidth == mCaptureProcessingWidth;
+    }
+
+    private void startPipeline() {
+        // Only the Java backend needs planes in its frames, RenderScript keeps them in allocations
+        int planeWidth = mBackend == MotionBackend.JAVA ? mCaptureProcessingWidth : 0;
+        int planeHeight = mBackend == MotionBackend.JAVA ? mCaptureProcessingHeight : 0;
+        FrameMailbox<LumaFrame> detectMailbox;
+
+        mAcquiredFrame = new LumaFrame(planeWidth, planeHeight, mTileGrid.getTilesNb());
+        mPublishMailbox = new FrameMailbox<>(new LumaFrame(planeWidth, planeHeight,
+                mTileGrid.getTilesNb()));
+        mPublishStage = new FrameStage<>("MotionPublishStage", mPublishMailbox, null,
+                new LumaFrame(planeWidth, planeHeight, mTileGrid.getTilesNb()), mFramePublisher);
+        mPublishedFramesNb = 0;
+        mLastBroadcastDiffPixelsNb = Integer.MIN_VALUE;
+
+        if (mBackend == MotionBackend.JAVA) {
+            mPreprocessMailbox = new FrameMailbox<>(new LumaFrame(planeWidth, planeHeight,
+                    mTileGrid.getTilesNb()));
+            detectMailbox = new FrameMailbox<>(new LumaFrame(planeWidth, planeHeight,
+                    mTileGrid.getTilesNb()));
+            mPreprocessStage = new FrameStage<>("MotionPreprocessStage", mPreprocessMailbox,
+                    detectMailbox, new LumaFrame(planeWidth, planeHeight, mTileGrid.getTilesNb()),
+                    mFramePreprocessor);
+            mDetectStage = new FrameStage<>("MotionDetectStage", detectMailbox, mPublishMailbox,
+                    new LumaFrame(planeWidth, planeHeight, mTileGrid.getTilesNb()),
+                    mFrameDetector);
+
+            mPreprocessStage.start();
+            mDetectStage.start();
+        }
+
+        mPublishStage.start();
+    }
+
+    private void stopPipeline() {
+        // Stages finish the frame they are processing, each one is waited for in pipeline order
+        for (FrameStage<LumaFrame> stage : new FrameStage[] { mPreprocessStage, mDetectStage,
+                mPublishStage }) {
+            if (stage == null) {
+                continue;
+            }
+
+            stage.quit();
+            try {
+                stage.join();
+            } catch (InterruptedException e) {
+                Log.w(LOG_TAG, "interrupted while stopping " + stage.getName());
+            }
+        }
+
+        mPreviousPipelinesDroppedFramesNb += getPipelineDroppedFramesNb();
+        mHealthDroppedFramesNb = mPreviousPipelinesDroppedFramesNb;
+        mPreprocessStage = null;
+        mDetectStage = null;
+        mPublishStage = null;
+    }
+
+    private void startClipRecorder() {
+        int clipBitrateKbps = mPreferences.getClipBitrateKbps() > 0 ?
+                mPreferences.getClipBitrateKbps() : DEFAULT_CLIP_BITRATE_KBPS;
+
+        mClipDurationMs = (mPreferences.getClipDurationSeconds() > 0 ?
+                mPreferences.getClipDurationSeconds() : DEFAULT_CLIP_DURATION_SECONDS) * 1000;
+
+        // Clips use the HD stream: the processing stream is far too small to be watched
+        mClipRecorder = new ClipRecorder(new File(mGuardService.getCacheDir(),
+                CLIPS_DIRECTORY_NAME), mCapturePreviewWidth, mCapturePreviewHeight,
+                clipBitrateKbps * 1000, this, this);
+        if (!mClipRecorder.isInputSurfaceConfigured()) {
+            Log.w(LOG_TAG, "Clip encoder unavailable, motion events will have no clip");
+            mClipRecorder.close();
+            mClipRecorder = null;
+            return;
+        }
+
+        Log.i(LOG_TAG, "Clip set to " + mClipDurationMs / 1000 + " s at " + clipBitrateKbps +
+                " kbps");
+    }
+
+    private void startTileGrid() {
+        int gridColumnsNb = Math.max(mPreferences.getMotionGridColumns(), 1);
+        int gridRowsNb = Math.max(mPreferences.getMotionGridRows(), 1);
+        boolean isCroppedToMotion = false;
+
+        mTileGrid = new TileGrid(mCaptureProcessingWidth, mCaptureProcessingHeight,
+                Math.min(gridColumnsNb, mCaptureProcessingWidth),
+                Math.min(gridRowsNb, mCaptureProcessingHeight));
+        mMotionZones = new MotionZones(mTileGrid.getTilesNb());
+        synchronized (this) {
+            mTriggeredTiles = new boolean[mTileGrid.getTilesNb()];
+            mMotionEventTiles = new boolean[mTileGrid.getTilesNb()];
+        }
+
+        for (int maskedTile : mPreferences.getMotionMaskedTiles()) {
+            if (!mTileGrid.setMasked(maskedTile)) {
+                Log.w(LOG_TAG, "Masked tile " + maskedTile + " is out of the grid, ignoring it");
+            }
+        }
+
+        for (com.fonguard.guardservice.settings.triggers.MotionTrigger.MotionZone zone :
+                mPreferences.getMotionZones()) {
+            if (!mMotionZones.addZone(zone.Id, zone.Tiles, zone.PixelNumberDiffThreshold)) {
+                Log.w(LOG_TAG, "Zone \"" + zone.Id + "\" has tiles out of the grid, ignoring them");
+            }
+        }
+
+        for (Rule rule : mPreferences.getRules()) {
+            if (rule.CropToMotion && Trigger.MOTION.name().equalsIgnoreCase(rule.Trigger)) {
+                isCroppedToMotion = true;
+                break;
+            }
+        }
+        mIsEarlyExitAllowed = mMotionZones.getZonesNb() == 1 && !isCroppedToMotion;
+
+        Log.i(LOG_TAG, "Tile grid set to " + mTileGrid.getColumnsNb() + " x " +
+                mTileGrid.getRowsNb() + " tiles, " + mMotionZones.getZonesNb() + " zones");
+    }
+
+    private void startBackgroundModel() {
+        float learningRate = mPreferences.getBackgroundLearningRate() > 0 ?
+                mPreferences.getBackgroundLearningRate() : DEFAULT_BACKGROUND_LEARNING_RATE;
+        float sigmaThreshold = mPreferences.getBackgroundSigmaThreshold() > 0 ?
+                mPreferences.getBackgroundSigmaThreshold() : DEFAULT_BACKGROUND_SIGMA_THRESHOLD;
+
+        if (mDetectionModel != MotionDetectionModel.BACKGROUND) {
+            mBackgroundModel = null;
+            return;
+        }
+
+        if (mStandbyListener != null && mBackgroundModel != null &&
+                mBackgroundModel.getWidth() == mCaptureProcessingWidth &&
+                mBackgroundModel.getHeight() == mCaptureProcessingHeight) {
+            Log.i(LOG_TAG, "Background model kept from the previous standby burst");
+            return;
+        }
+
+        mBackgroundModel = new BackgroundModel(mCaptureProcessingWidth, mCaptureProcessingHeight,
+                Math.min(learningRate, 1), sigmaThreshold);
+
+        Log.i(LOG_TAG, "Background model set to learning rate " + learningRate + ", " +
+                sigmaThreshold + " sigma");
+    }
+
+    private void startFrameRate(Camera2Wrapper.CameraCharacteristicsWrapper camera) {
+        int idleFps = mPreferences.getIdleFps();
+        int activeHoldSeconds = mPreferences.getActiveHoldSeconds();
+
+        if (mProcessingProfile.getMaxFps() > 0) {
+            mProfileFrameIntervalMs = 1000 / mProcessingProfile.getMaxFps();
+            mProfileFpsRange = Camera2Wrapper.findFpsRangeAvailable(camera,
+                    mProcessingProfile.getMaxFps());
+            Log.i(LOG_TAG, "Analysis rate limited to " + mProcessingProfile.getMaxFps() +
+                    " fps (camera range " + mProfileFpsRange + ")");
+        } else {
+            mProfileFrameIntervalMs = 0;
+            mProfileFpsRange = null;
+        }
+
+        // The capture starts at full rate so that the reference frame or background settles
+        mIsAdaptiveRate = mPreferences.isAdaptiveRate() ||
+                mCascadeCameraMode == CascadeCameraMode.LOW_RATE;
+        mIsIdleRate = false;
+        // A pending update was removed with the callbacks when the camera closed
+        mIsFrameRateUpdatePending = false;
+        mLastAnalysedFrameTimeMs = 0;
+        mSkippedFramesNb = 0;
+        mCameraWrapper.setRepeatingFpsRange(mProfileFpsRange);
+
+        if (!mIsAdaptiveRate) {
+            return;
+        }
+
+        // Above 1000 fps the interval would be 0, i.e. no idle rate at all
+        mIdleFrameIntervalMs = Math.max(1000 / (idleFps <= 0 ? DEFAULT_IDLE_FPS : idleFps), 1);
+        mActiveHoldMs = (activeHoldSeconds <= 0 ? DEFAULT_ACTIVE_HOLD_SECONDS :
+                activeHoldSeconds) * 1000L;
+        mActiveUntilMs = SystemClock.elapsedRealtime() + mActiveHoldMs;
+        mIdleFpsRange = Camera2Wrapper.findLowestFpsRangeAvailable(camera);
+
+        Log.i(LOG_TAG, "Adaptive rate enabled: one frame analysed every " + mIdleFrameIntervalMs +
+                " ms when quiet (camera range " + mIdleFpsRange + "), full rate kept " +
+                mActiveHoldMs + " ms after a change");
+    }
+
+    private void startSnapshotFrame() {
+        mSnapshotNv21Frame = new byte[mCapturePreviewWidth * mCapturePreviewHeight * 3 / 2];
+        mSnapshotFrameRect = new Rect(0, 0, mCapturePreviewWidth, mCapturePreviewHeight);
+        // Wraps mSnapshotNv21Frame, which is rewritten in place for every snapshot
+        mSnapshotYuvImage = new YuvImage(mSnapshotNv21Frame, ImageFormat.NV21,
+                mCapturePreviewWidth, mCapturePreviewHeight, null);
+        mSnapshotOutputStream = new ByteArrayOutputStream();
+    }
+
+    private void startPreRoll() {
+        int preRollSeconds = mPreferences.getPreRollSeconds();
+        int preRollFps = mPreferences.getPreRollFps() > 0 ? mPreferences.getPreRollFps() :
+                DEFAULT_PRE_ROLL_FPS;
+        int preRollMemoryBudgetKb = mPreferences.getPreRollMemoryBudgetKb() > 0 ?
+                mPreferences.getPreRollMemoryBudgetKb() : DEFAULT_PRE_ROLL_MEMORY_BUDGET_KB;
+
+        if (preRollSeconds <= 0 || !mProcessingProfile.isPreRollKept()) {
+            mPreRollBuffer = null;
+            return;
+        }
+
+        // The post-roll frames have their own slots so they do not evict the pre-roll ones
+        mPostRollFramesNb = Math.max(mPreferences.getPostRollFrames(), 0);
+        mPreRollBuffer = new FrameRingBuffer(preRollSeconds * preRollFps + mPostRollFramesNb,
+                preRollMemoryBudgetKb * 1024);
+        mPreRollFrameIntervalMs = 1000 / preRollFps;
+        mLastPreRollFrameTimeMs = 0;
+        mPreRollNv21Frame = new byte[mCaptureProcessingWidth * mCaptureProcessingHeight * 3 / 2];
+        mPreRollFrameRect = new Rect(0, 0, mCaptureProcessingWidth, mCaptureProcessingHeight);
+        // Wraps mPreRollNv21Frame, which is rewritten in place for every pre-roll frame
+        mPreRollYuvImage = new YuvImage(mPreRollNv21Frame, ImageFormat.NV21,
+                mCaptureProcessingWidth, mCaptureProcessingHeight, null);
+
+        Log.i(LOG_TAG, "Pre-roll set to " + mPreRollBuffer.getSlotsNb() + " frames of at most " +
+                mPreRollBuffer.getSlotCapacity() + " bytes (" + mPostRollFramesNb +
+                " post-roll frames)");
+    }
+
+    private void startJavaProcessing(List<Surface> cameraTargets) {
+        int diffParallelism = mPreferences.getDiffParallelism() > 0 ?
+                mPreferences.getDiffParallelism() : Runtime.getRuntime().availableProcessors();
+
+        mCaptureImageReader = ImageReader.newInstance(mCaptureProcessingWidth,
+                mCaptureProcessingHeight, ImageFormat.YUV_420_888, 2);
+        // Images are delivered on the MotionTrigger thread
+        mCaptureImageReader.setOnImageAvailableListener(this, this);
+        cameraTargets.add(mCaptureImageReader.getSurface());
+
+        if (mPayloadSource == MotionPayloadSource.FRAME) {
+            mSnapshotImageReader = ImageReader.newInstance(mCapturePreviewWidth,
+                    mCapturePreviewHeight, ImageFormat.YUV_420_888, 1);
+            mSnapshotImageReader.setOnImageAvailableListener(this, this);
+            mSnapshotSurface = mSnapshotImageReader.getSurface();
+            startSnapshotFrame();
+        }
+
+        mLumaFrameProcessor = new LumaFrameProcessor(mCaptureProcessingWidth,
+                mCaptureProcessingHeight, mCaptureProcessingWidth, mCaptureProcessingHeight,
+                mProcessingProfile.getBlurRadius() > 0 ? mProcessingProfile.getBlurRadius() :
+                        JAVA_BACKEND_BLUR_RADIUS, diffParallelism, mTileGrid.getTilesNb());
+        Log.i(LOG_TAG, "Frame diff parallelism set to " + diffParallelism);
+
+        if (hasStandbyReference(mCaptureProcessingWidth * mCaptureProcessingHeight)) {
+            mLumaFrameProcessor.setReference(mStandbyReference);
+        }
+    }
+
+    private void startRenderScriptProcessing(List<Surface> cameraTargets) {
+        Type.Builder yuvTypeBuilder;
+        Type.Builder rgbTypeBuilder;
+        Type.Builder lumaTypeBuilder;
+        Type.Builder diffSpansTypeBuilder;
+        Type.Builder tileColumnStartsTypeBuilder;
+        byte[] diffSpanMasks;
+        int[] tileColumnStarts;
+        Type.Builder nv21TypeBuilder;
+
+        if (mRenderScript == null) {
+            mRenderScript = RenderScript.create(mGuardService);
+        }
+
+        // Profiles forcing the backend also force its cheapest mode
+        mLumaOnly = mPreferences.isLumaOnly() || mProcessingProfile.getBackend() != null;
+        Log.i(LOG_TAG, "Capture processing mode set to " + (mLumaOnly ? "luma" : "RGBA"));
+
         yuvTypeBuilder = new Type.Builder(mRenderScript, Element.YUV(mRenderScript))
-                .setX(mCapturePreviewWidth)
-                .setY(mCapturePreviewHeight)
+                .setX(mCaptureProcessingWidth)
+                .setY(mCaptureProcessingHeight)
                 .setYuvFormat(ImageFormat.YUV_420_888);
         mCaptureYuvAllocation = Allocation.createTyped(mRenderScript, yuvTypeBuilder.create(),
                 Allocation.USAGE_SCRIPT | Allocation.USAGE_IO_INPUT);
         cameraTargets.add(mCaptureYuvAllocation.getSurface());
         mCaptureYuvAllocation.setOnBufferAvailableListener(this);
 
-        rgbTypeBuilder = new Type.Builder(mRenderScript, Element.RGBA_8888(mRenderScript))
-                .setX(mCapturePreviewWidth)
-                .setY(mCapturePreviewHeight);
-        mCaptureRgbAllocation = Allocation.createTyped(mRenderScript, rgbTypeBuilder.create(),
-                Allocation.USAGE_SCRIPT);
-
-        rgbTypeBuilder = new Type.Builder(mRenderScript, Element.RGBA_8888(mRenderScript))
-                .setX(mCaptureProcessingWidth)
-                .setY(mCaptureProcessingHeight);
-        mCaptureRgbResizedAllocation = Allocation.createTyped(mRenderScript,
-                rgbTypeBuilder.create(), Allocation.USAGE_SCRIPT);
-        mCaptureGrayscaleResizedAllocation = Allocation.createTyped(mRenderScript,
-                rgbTypeBuilder.create(), Allocation.USAGE_SCRIPT);
-        mCaptureGrayscaleResizedBlurredAllocation = Allocation.createTyped(mRenderScript,
-                rgbTypeBuilder.create(), Allocation.USAGE_SCRIPT);
-
         mYuvToRgbIntrinsicScript = ScriptIntrinsicYuvToRGB.create(mRenderScript,
                 Element.U8_4(mRenderScript));
-        mResizeIntrinsicScript = ScriptIntrinsicResize.create(mRenderScript);
         mGrayscaleScript = new ScriptC_grayscale(mRenderScript);
-        mBlurIntrinsicScript = ScriptIntrinsicBlur.create(mRenderScript,
-                Element.U8_4(mRenderScript));
 
-        mCapturePreviewBitmap = Bitmap.createBitmap(mCapturePreviewWidth,
-                mCapturePreviewHeight, Bitmap.Config.ARGB_8888);
-        mCaptureProcessingBitmap = Bitmap.createBitmap(mCaptureProcessingWidth,
-                mCaptureProcessingHeight, Bitmap.Config.ARGB_8888);
+        if (mPayloadSource == MotionPayloadSource.FRAME) {
+            yuvTypeBuilder = new Type.Builder(mRenderScript, Element.YUV(mRenderScript))
+                    .setX(mCapturePreviewWidth)
+                    .setY(mCapturePreviewHeight)
+                    .setYuvFormat(ImageFormat.YUV_420_888);
+            mSnapshotYuvAllocation = Allocation.createTyped(mRenderScript,
+                    yuvTypeBuilder.create(), Allocation.USAGE_SCRIPT | Allocation.USAGE_IO_INPUT);
+            mSnapshotYuvAllocation.setOnBufferAvailableListener(this);
+            mSnapshotSurface = mSnapshotYuvAllocation.getSurface();
+            mGrayscaleScript.set_gSnapshotInput(mSnapshotYuvAllocation);
+            mGrayscaleScript.set_gSnapshotInputHeight(mCapturePreviewHeight);
 
-        mCaptureProcessingBitmapPixels =
-                new int[mCaptureProcessingWidth * mCaptureProcessingHeight];
-        mReferenceBitmapPixels = new int[mCaptureProcessingWidth * mCaptureProcessingHeight];
+            // Laid out as NV21 (Y rows, then interleaved VU rows) so it is copied out in one go
+            nv21TypeBuilder = new Type.Builder(mRenderScript, Element.U8(mRenderScript))
+                    .setX(mCapturePreviewWidth)
+                    .setY(mCapturePreviewHeight * 3 / 2);
+            mSnapshotNv21Allocation = Allocation.createTyped(mRenderScript,
+                    nv21TypeBuilder.create(), Allocation.USAGE_SCRIPT);
+            startSnapshotFrame();
+        }
 
-        Log.i(LOG_TAG, "starting capture...");
-        mCameraWrapper.startCaptureAsync(cameraId, cameraTargets);
-        mIsStoppingCapture = false;
+        if (mLumaOnly) {
+            lumaTypeBuilder = new Type.Builder(mRenderScript, Element.U8(mRenderScript))
+                    .setX(mCaptureProcessingWidth)
+                    .setY(mCaptureProcessingHeight);
+            mCaptureLumaResizedAllocation = Allocation.createTyped(mRenderScript,
+                    lumaTypeBuilder.create(), Allocation.USAGE_SCRIPT);
+            mCaptureLumaResizedBlurredAllocation = Allocation.createTyped(mRenderScript,
+                    lumaTypeBuilder.create(), Allocation.USAGE_SCRIPT);
+
+            mGrayscaleScript.set_gLumaInput(mCaptureYuvAllocation);
+            mGrayscaleScript.set_gLumaInputWidth(mCaptureProcessingWidth);
+            mGrayscaleScript.set_gLumaInputHeight(mCaptureProcessingHeight);
+            mGrayscaleScript.set_gLumaOutputWidth(mCaptureProcessingWidth);
+            mGrayscaleScript.set_gLumaOutputHeight(mCaptureProcessingHeight);
+
+            mReferenceAllocation = Allocation.createTyped(mRenderScript,
+                    lumaTypeBuilder.create(), Allocation.USAGE_SCRIPT);
+
+            mBlurIntrinsicScript = ScriptIntrinsicBlur.create(mRenderScript,
+                    Element.U8(mRenderScript));
+
+            mGrayscaleScript.set_gDiffInput(mCaptureLumaResizedBlurredAllocation);
+        } else {
+            rgbTypeBuilder = new Type.Builder(mRenderScript, Element.RGBA_8888(mRenderScript))
+                    .setX(mCaptureProcessingWidth)
+                    .setY(mCaptureProcessingHeight);
+            mCaptureRgbAllocation = Allocation.createTyped(mRenderScript,
+                    rgbTypeBuilder.create(), Allocation.USAGE_SCRIPT);
+            mCaptureGrayscaleAllocation = Allocation.createTyped(mRenderScript,
+                    rgbTypeBuilder.create(), Allocation.USAGE_SCRIPT);
+            mCaptureGrayscaleBlurredAllocation = Allocation.createTyped(mRenderScript,
+                    rgbTypeBuilder.create(), Allocation.USAGE_SCRIPT);
+            mReferenceAllocation = Allocation.createTyped(mRenderScript,
+                    rgbTypeBuilder.create(), Allocation.USAGE_SCRIPT);
+
+            mBlurIntrinsicScript = ScriptIntrinsicBlur.create(mRenderScript,
+                    Element.U8_4(mRenderScript));
+
+            mGrayscaleScript.set_gDiffInput(mCaptureGrayscaleBlurredAllocation);
+        }
+
+        if (mPreRollBuffer != null) {
+            // Pre-roll frames are packed as NV21 at processing size straight from the camera YUV
+            mGrayscaleScript.set_gLumaInput(mCaptureYuvAllocation);
+            mGrayscaleScript.set_gLumaInputHeight(mCaptureProcessingHeight);
+
+            nv21TypeBuilder = new Type.Builder(mRenderScript, Element.U8(mRenderScript))
+                    .setX(mCaptureProcessingWidth)
+                    .setY(mCaptureProcessingHeight * 3 / 2);
+            mPreRollNv21Allocation = Allocation.createTyped(mRenderScript,
+                    nv21TypeBuilder.create(), Allocation.USAGE_SCRIPT);
+        }
+
+        // One partial count per row span of each tile column, summed per tile on the Java side
+        diffSpansTypeBuilder = new Type.Builder(mRenderScript, Element.U32(mRenderScript))
+                .setX(mTileGrid.getColumnsNb())
+                .setY(mCaptureProcessingHeight);
+        mDiffSpanCountsAllocation = Allocation.createTyped(mRenderScript,
+                diffSpansTypeBuilder.create(), Allocation.USAGE_SCRIPT);
+        mDiffSpanCounts = new int[mTileGrid.getColumnsNb() * mCaptureProcessingHeight];
+        mHasReferenceFrame = false;
+        if (hasStandbyReference(mCaptureProcessingWidth * mCaptureProcessingHeight *
+                (mLumaOnly ? 1 : 4))) {
+            mReferenceAllocation.copyFrom(mStandbyReference);
+            mHasReferenceFrame = true;
+        }
+
+        diffSpansTypeBuilder = new Type.Builder(mRenderScript, Element.U8(mRenderScript))
+                .setX(mTileGrid.getColumnsNb())
+                .setY(mCaptureProcessingHeight);
+        mDiffSpanMasksAllocation = Allocation.createTyped(mRenderScript,
+                diffSpansTypeBuilder.create(), Allocation.USAGE_SCRIPT);
+        diffSpanMasks = new byte[mTileGrid.getColumnsNb() * mCaptureProcessingHeight];
+        for (int y = 0; y < mCaptureProcessingHeight; ++y) {
+            for (int tileColumn = 0; tileColumn < mTileGrid.getColumnsNb(); ++tileColumn) {
+                int tile = mTileGrid.getTileRow(y) * mTileGrid.getColumnsNb() + tileColumn;
+
+                diffSpanMasks[y * mTileGrid.getColumnsNb() + tileColumn] =
+                        (byte)(mTileGrid.isMasked(tile) ? 1 : 0);
+            }
+        }
+        mDiffSpanMasksAllocation.copyFrom(diffSpanMasks);
+
+        tileColumnStartsTypeBuilder = new Type.Builder(mRenderScript, Element.U32(mRenderScript))
+                .setX(mTileGrid.getColumnsNb() + 1);
+        mDiffTileColumnStartsAllocation = Allocation.createTyped(mRenderScript,
+                tileColumnStartsTypeBuilder.create(), Allocation.USAGE_SCRIPT);
+        tileColumnStarts = new int[mTileGrid.getColumnsNb() + 1];
+        for (int tileColumn = 0; tileColumn <= mTileGrid.getColumnsNb(); ++tileColumn) {
+            tileColumnStarts[tileColumn] = mTileGrid.getColumnStart(tileColumn);
+        }
+        mDiffTileColumnStartsAllocation.copyFrom(tileColumnStarts);
+
+        if (mBackgroundModel != null) {
+            mBackgroundModelInput = new byte[mCaptureProcessingWidth * mCaptureProcessingHeight *
+                    (mLumaOnly ? 1 : 4)];
+        }
+
+        if (mProcessingProfile.getBlurRadius() > 0) {
+            mBlurIntrinsicScript.setRadius(mProcessingProfile.getBlurRadius());
+        }
+
+        mGrayscaleScript.set_gDiffReference(mReferenceAllocation);
+        mGrayscaleScript.set_gDiffSpanMasks(mDiffSpanMasksAllocation);
+        mGrayscaleScript.set_gDiffTileColumnStarts(mDiffTileColumnStartsAllocation);
+        mGrayscaleScript.set_gPixelValueDiffThreshold(mPixelValueDiffThreshold);
     }
 
     private void stopCapture() {
-        if (!mCameraWrapper.isCapturing()) {
-            Log.w(LOG_TAG, "cannot stop capture: camera is not capturing");
+        if (!mCameraWrapper.isOpen()) {
+            Log.w(LOG_TAG, "cannot stop capture: camera is not open");
             return;
         }
 
@@ -333,39 +1591,68 @@ public class MotionTrigger extends Handler implements Allocation.OnBufferAvailab
     }
 
 
-    private int computeGrayscaleDiffPixels() {
-        mCaptureProcessingBitmap.getPixels(mCaptureProcessingBitmapPixels, 0,
-                mCaptureProcessingWidth, 0, 0, mCaptureProcessingWidth,
-                mCaptureProcessingHeight);
+    private int computeDiffPixels(Allocation captureProcessingAllocation, int[] tileCounts) {
+        int columnsNb = mTileGrid.getColumnsNb();
 
-        if (mReferenceBitmapPixels == null) {
-            mReferenceBitmapPixels = mCaptureProcessingBitmapPixels.clone();
+        if (mBackgroundModel != null) {
+            // The background model runs in Java on a copy of the (small) processing frame
+            captureProcessingAllocation.copyTo(mBackgroundModelInput);
+            return mBackgroundModel.computeForegroundPixels(mBackgroundModelInput,
+                    mLumaOnly ? 1 : 4, mPixelValueDiffThreshold, mTileGrid, tileCounts);
+        }
+
+        if (!mHasReferenceFrame) {
+            mReferenceAllocation.copy2DRangeFrom(0, 0, mCaptureProcessingWidth,
+                    mCaptureProcessingHeight, captureProcessingAllocation, 0, 0);
+            mHasReferenceFrame = true;
             return -1;
         }
 
-        int diffNb = 0;
-        for (int x = 0; x < mCaptureProcessingWidth; ++x) {
-            for (int y = 0; y < mCaptureProcessingHeight; ++y) {
-                int pixel1 = mCaptureProcessingBitmapPixels[x + y * mCaptureProcessingWidth];
-                int pixel1Y = Color.red(pixel1); // RGB components have the same value in grayscale
-                int pixel2 = mReferenceBitmapPixels[x + y * mCaptureProcessingWidth];
-                int pixel2Y = Color.red(pixel2); // RGB components have the same value in grayscale
-                int diff = Math.abs(pixel1Y - pixel2Y);
+        // The reference frame is updated in place by the kernel, only the span counts come back
+        if (mLumaOnly) {
+            mGrayscaleScript.forEach_countLumaDiffSpan(mDiffSpanCountsAllocation);
+        } else {
+            mGrayscaleScript.forEach_countGrayscaleDiffSpan(mDiffSpanCountsAllocation);
+        }
 
-                if (diff >= mPixelValueDiffThreshold) {
-                    diffNb++;
-                }
+        mDiffSpanCountsAllocation.copyTo(mDiffSpanCounts);
+
+        Arrays.fill(tileCounts, 0);
+        for (int y = 0; y < mCaptureProcessingHeight; ++y) {
+            int tileRowOffset = mTileGrid.getTileRow(y) * columnsNb;
+
+            for (int tileColumn = 0; tileColumn < columnsNb; ++tileColumn) {
+                tileCounts[tileRowOffset + tileColumn] +=
+                        mDiffSpanCounts[y * columnsNb + tileColumn];
             }
         }
 
-        mReferenceBitmapPixels = mCaptureProcessingBitmapPixels.clone();
-
-        return diffNb;
+        return TileGrid.sumTileCounts(tileCounts);
     }
 
 
+    // Runs on the publish stage, only the latest count is broadcast
+    private void publishDiffPixelsNb(int diffPixelsNb) {
+        mPublishedDiffPixelsNb = diffPixelsNb;
+
+        if (diffPixelsNb == mLastBroadcastDiffPixelsNb || mIsDiffPixelsNbBroadcastPending) {
+            return;
+        }
+
+        mIsDiffPixelsNbBroadcastPending = true;
+        postDelayed(mBroadcastDiffPixelsNbRunnable, DIFF_PIXELS_NB_BROADCAST_INTERVAL_MS);
+    }
+
     private void broadcastDiffPixelsNb(int diffPixelsNb) {
-        Intent intent = new Intent(
+        Intent intent;
+
+        if (diffPixelsNb == mLastBroadcastDiffPixelsNb) {
+            return;
+        }
+
+        mLastBroadcastDiffPixelsNb = diffPixelsNb;
+
+        intent = new Intent(
                 MainActivity.INTENT_ACTION_TRIGGERS_MOTION_UPDATE_DIFF_PIXELS_NB);
         intent.putExtra(TriggersMotionFragment.INTENT_EXTRA_DIFF_PIXELS_NB, diffPixelsNb);
         LocalBroadcastManager.getInstance(mGuardService).sendBroadcast(intent);
@@ -382,4 +1669,20 @@ public class MotionTrigger extends Handler implements Allocation.OnBufferAvailab
 
         return null;
     }
+
+    // Imported settings are not validated: an unknown value is logged and the default is used
+    private static <T extends Enum<T>> T parseEnumSetting(String settingName, String value,
+                                                          T defaultValue) {
+        if (value == null || value.equals("")) {
+            return defaultValue;
+        }
+
+        try {
+            return Enum.valueOf(defaultValue.getDeclaringClass(), value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            Log.w(LOG_TAG, "unknown " + settingName + " \"" + value + "\", using " +
+                    defaultValue);
+            return defaultValue;
+        }
+    }
 }
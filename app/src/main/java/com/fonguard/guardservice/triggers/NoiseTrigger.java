@@ -0,0 +1,312 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.triggers;
+
+import android.Manifest;
+import android.content.pm.PackageManager;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.core.content.ContextCompat;
+
+import com.fonguard.Preferences;
+import com.fonguard.guardservice.GuardService;
+import com.fonguard.guardservice.payloads.IPayloadSupplier;
+import com.fonguard.guardservice.rules.RulesManager;
+import com.fonguard.guardservice.triggers.cascade.NoiseStage;
+import com.fonguard.guardservice.triggers.noise.AudioClipEncoder;
+import com.fonguard.guardservice.triggers.noise.AudioRingBuffer;
+import com.fonguard.guardservice.triggers.noise.NoiseAnalyzer;
+
+import java.io.File;
+
+// Records the microphone block by block: the recorder notifies the handler thread every block,
+// which is then read without blocking. Every block goes into the pre-trigger ring buffer and is
+// analysed (RMS first, band energy only when the RMS is above its threshold). A noise loud enough
+// for the hold time fires one event, with the pre-trigger window encoded as an AAC clip on a thread
+// of its own, so that the recorder keeps being read during the encoding.
+public class NoiseTrigger extends Handler implements AudioRecord.OnRecordPositionUpdateListener {
+    private static final String LOG_TAG = NoiseTrigger.class.getName();
+
+    // 64 ms at 16 kHz, must be a power of 2 (FFT size)
+    private static final int BLOCK_SIZE = 1024;
+    // Absorbs the delays of the handler thread (e.g. the copy of the pre-trigger window)
+    private static final int RECORD_BUFFER_SECONDS = 2;
+    private static final int DEFAULT_SAMPLE_RATE_HZ = 16000;
+    private static final int DEFAULT_RMS_THRESHOLD = 1000;
+    private static final int DEFAULT_BAND_LOW_HZ = 300;
+    private static final int DEFAULT_BAND_HIGH_HZ = 3400;
+    private static final int DEFAULT_BAND_RMS_THRESHOLD = 500;
+    private static final int DEFAULT_HOLD_MS = 300;
+    private static final int DEFAULT_PRE_TRIGGER_SECONDS = 3;
+    private static final int DEFAULT_CLIP_BITRATE_KBPS = 32;
+    private static final String CLIPS_DIRECTORY_NAME = "noise-clips";
+
+    public static final int HANDLER_MSG_START = 1;
+    public static final int HANDLER_MSG_STOP = 2;
+
+
+    private final GuardService mGuardService;
+    private final Preferences mPreferences;
+    private final RulesManager mRulesManager;
+    private final short[] mBlock = new short[BLOCK_SIZE];
+    private int mBlockFill;
+    private AudioRecord mAudioRecord;
+    private NoiseAnalyzer mAnalyzer;
+    private AudioRingBuffer mPreTriggerBuffer;
+    // Only used on the clip encoder thread, through the suppliers of the events
+    private AudioClipEncoder mClipEncoder;
+    private HandlerThread mClipEncoderHandlerThread;
+    private Handler mClipEncoderHandler;
+    // Cascade noise stage fed with the recorded blocks, null if there is none
+    private NoiseStage mCascadeNoiseStage;
+    private int mRmsThreshold;
+    private int mBandRmsThreshold;
+    private int mHoldSamplesNb;
+    private int mLoudSamplesNb;
+    // One event per noise: the trigger fires again only once the noise went below the thresholds
+    private boolean mIsNoiseEventFired;
+
+
+    public NoiseTrigger(Looper looper, GuardService guardService) {
+        super(looper);
+
+        mGuardService = guardService;
+        mPreferences = Preferences.getInstance(guardService);
+        mRulesManager = RulesManager.getInstance(mPreferences);
+    }
+
+
+    @Override
+    public void handleMessage(@NonNull Message msg) {
+        switch (msg.what) {
+            case HANDLER_MSG_START:
+                startRecording();
+                break;
+            case HANDLER_MSG_STOP:
+                stopRecording();
+                break;
+            default:
+                Log.w(LOG_TAG, "unhandled NoiseTrigger message \"" + msg.what + "\"");
+                break;
+        }
+    }
+
+    // Only valid before the recording starts
+    public void setCascadeNoiseStage(NoiseStage noiseStage) {
+        mCascadeNoiseStage = noiseStage;
+    }
+
+    @Override
+    public void onMarkerReached(AudioRecord recorder) {
+    }
+
+    @Override
+    public void onPeriodicNotification(AudioRecord recorder) {
+        if (mAudioRecord == null) {
+            return;
+        }
+
+        while (true) {
+            int samplesNb = mAudioRecord.read(mBlock, mBlockFill, BLOCK_SIZE - mBlockFill,
+                    AudioRecord.READ_NON_BLOCKING);
+
+            if (samplesNb < 0) {
+                Log.w(LOG_TAG, "microphone read failed (" + samplesNb + ")");
+                return;
+            }
+
+            mBlockFill += samplesNb;
+            if (mBlockFill < BLOCK_SIZE) {
+                return;
+            }
+
+            mBlockFill = 0;
+            processBlock();
+        }
+    }
+
+
+    private void startRecording() {
+        int sampleRateHz = mPreferences.getNoiseSampleRateHz() > 0 ?
+                mPreferences.getNoiseSampleRateHz() : DEFAULT_SAMPLE_RATE_HZ;
+        int bandLowHz = mPreferences.getNoiseBandLowHz() > 0 ?
+                mPreferences.getNoiseBandLowHz() : DEFAULT_BAND_LOW_HZ;
+        int bandHighHz = mPreferences.getNoiseBandHighHz() > 0 ?
+                mPreferences.getNoiseBandHighHz() : DEFAULT_BAND_HIGH_HZ;
+        int holdMs = mPreferences.getNoiseHoldMs() > 0 ?
+                mPreferences.getNoiseHoldMs() : DEFAULT_HOLD_MS;
+        int preTriggerSeconds = mPreferences.getNoisePreTriggerSeconds() > 0 ?
+                mPreferences.getNoisePreTriggerSeconds() : DEFAULT_PRE_TRIGGER_SECONDS;
+        int clipBitrateKbps = mPreferences.getNoiseClipBitrateKbps() > 0 ?
+                mPreferences.getNoiseClipBitrateKbps() : DEFAULT_CLIP_BITRATE_KBPS;
+        int minBufferSize;
+
+        if (mAudioRecord != null) {
+            Log.w(LOG_TAG, "cannot start recording: already recording");
+            return;
+        }
+
+        if (ContextCompat.checkSelfPermission(mGuardService, Manifest.permission.RECORD_AUDIO) !=
+                PackageManager.PERMISSION_GRANTED) {
+            Log.w(LOG_TAG, "cannot start recording: RECORD_AUDIO permission not granted");
+            return;
+        }
+
+        mRmsThreshold = mPreferences.getNoiseRmsThreshold() > 0 ?
+                mPreferences.getNoiseRmsThreshold() : DEFAULT_RMS_THRESHOLD;
+        mBandRmsThreshold = mPreferences.getNoiseBandRmsThreshold() > 0 ?
+                mPreferences.getNoiseBandRmsThreshold() : DEFAULT_BAND_RMS_THRESHOLD;
+        mHoldSamplesNb = (int)((long)holdMs * sampleRateHz / 1000);
+        mLoudSamplesNb = 0;
+        mIsNoiseEventFired = false;
+        mBlockFill = 0;
+
+        mAnalyzer = new NoiseAnalyzer(BLOCK_SIZE, sampleRateHz, bandLowHz, bandHighHz);
+        mPreTriggerBuffer = new AudioRingBuffer(preTriggerSeconds * sampleRateHz);
+        mClipEncoder = new AudioClipEncoder(new File(mGuardService.getCacheDir(),
+                CLIPS_DIRECTORY_NAME), sampleRateHz, clipBitrateKbps * 1000);
+        mClipEncoderHandlerThread = new HandlerThread("NoiseClipEncoderHandlerThread");
+        mClipEncoderHandlerThread.start();
+        mClipEncoderHandler = new Handler(mClipEncoderHandlerThread.getLooper());
+
+        minBufferSize = AudioRecord.getMinBufferSize(sampleRateHz, AudioFormat.CHANNEL_IN_MONO,
+                AudioFormat.ENCODING_PCM_16BIT);
+        mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRateHz,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT,
+                Math.max(minBufferSize, sampleRateHz * RECORD_BUFFER_SECONDS * 2));
+        if (mAudioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            Log.w(LOG_TAG, "cannot start recording: microphone could not be opened");
+            mAudioRecord.release();
+            mAudioRecord = null;
+            stopClipEncoder();
+            return;
+        }
+
+        mAudioRecord.setRecordPositionUpdateListener(this, this);
+        mAudioRecord.setPositionNotificationPeriod(BLOCK_SIZE);
+        mAudioRecord.startRecording();
+
+        Log.i(LOG_TAG, "Recording at " + sampleRateHz + " Hz, RMS threshold " + mRmsThreshold +
+                ", " + bandLowHz + "-" + bandHighHz + " Hz band threshold " + mBandRmsThreshold +
+                ", hold " + holdMs + " ms, pre-trigger window " + preTriggerSeconds + " s");
+    }
+
+    private void stopRecording() {
+        if (mAudioRecord == null) {
+            return;
+        }
+
+        mAudioRecord.stop();
+        mAudioRecord.setRecordPositionUpdateListener(null);
+        mAudioRecord.release();
+        mAudioRecord = null;
+        stopClipEncoder();
+        Log.i(LOG_TAG, "Recording stopped");
+    }
+
+    // The clips being encoded are still dispatched
+    private void stopClipEncoder() {
+        mClipEncoderHandlerThread.quitSafely();
+        mClipEncoderHandlerThread = null;
+        mClipEncoderHandler = null;
+    }
+
+    private void processBlock() {
+        boolean isLoud;
+
+        mPreTriggerBuffer.write(mBlock, BLOCK_SIZE);
+        if (mCascadeNoiseStage != null) {
+            mCascadeNoiseStage.processBlock(mBlock, BLOCK_SIZE);
+        }
+
+        // The FFT only runs on the blocks that are loud overall
+        isLoud = mAnalyzer.computeRms(mBlock) >= mRmsThreshold &&
+                mAnalyzer.computeBandRms(mBlock) >= mBandRmsThreshold;
+        if (!isLoud) {
+            mLoudSamplesNb = 0;
+            mIsNoiseEventFired = false;
+            return;
+        }
+
+        mLoudSamplesNb += BLOCK_SIZE;
+        if (mIsNoiseEventFired || mLoudSamplesNb < mHoldSamplesNb) {
+            return;
+        }
+
+        mIsNoiseEventFired = true;
+        startNoiseEvent();
+    }
+
+    private void startNoiseEvent() {
+        final AudioClipEncoder clipEncoder = mClipEncoder;
+        final short[] clipSamples;
+        final int clipSamplesNb;
+
+        Log.i(LOG_TAG, "Noise detected");
+
+        // Spares the copy of the window while every rule is in its cooldown
+        if (!mRulesManager.hasActionsToPerform(Trigger.NOISE, null, null)) {
+            return;
+        }
+
+        // The ring buffer keeps being written by this thread, so the window is copied here
+        clipSamples = new short[mPreTriggerBuffer.getCapacity()];
+        clipSamplesNb = mPreTriggerBuffer.copyTo(clipSamples);
+        mClipEncoderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mRulesManager.performActionsAsync(Trigger.NOISE, null, null,
+                        createClipSupplier(clipEncoder, clipSamples, clipSamplesNb),
+                        mGuardService);
+            }
+        });
+    }
+
+    // Invoked by the rules manager on the clip encoder thread, only if a rule will run
+    private IPayloadSupplier createClipSupplier(final AudioClipEncoder clipEncoder,
+                                                final short[] samples, final int samplesNb) {
+        return new IPayloadSupplier() {
+            @Override
+            public Object get() {
+                Log.i(LOG_TAG, "Sending " + samplesNb + " samples of pre-trigger audio");
+                return clipEncoder.encode(samples, samplesNb);
+            }
+
+            @Override
+            public Object crop(Object payload, int thumbnailMaxDimension) {
+                return payload;
+            }
+
+            // The clip is kept until the last action (retries included) is done with it
+            @Override
+            public void release(Object payload) {
+                if (payload != null && !((File)payload).delete()) {
+                    Log.w(LOG_TAG, "could not delete noise clip " + payload);
+                }
+            }
+        };
+    }
+}
@@ -18,5 +18,8 @@
 package com.fonguard.guardservice.triggers;
 
 public enum Trigger {
-    MOTION
+    MOTION,
+    NOISE,
+    VIBRATION,
+    HEARTBEAT
 }
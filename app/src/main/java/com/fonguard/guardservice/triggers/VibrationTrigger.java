@@ -0,0 +1,232 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.triggers;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.fonguard.Preferences;
+import com.fonguard.guardservice.GuardService;
+import com.fonguard.guardservice.payloads.VibrationPayload;
+import com.fonguard.guardservice.rules.RulesManager;
+import com.fonguard.guardservice.triggers.vibration.SampleRingBuffer;
+import com.fonguard.guardservice.triggers.vibration.StaLtaDetector;
+
+// Accelerometer samples are batched in the FIFO of the sensor hub for up to the batch latency, so
+// the application processor only wakes up to process them in bursts (on the handler thread). This
+// only saves power while the service lets the device sleep (standby mode, or a cascade keeping the
+// camera closed between windows), its wake lock keeps the processor awake otherwise. The
+// deviation of the acceleration from gravity feeds a STA/LTA detector: an event starts when the
+// ratio reaches the trigger ratio and ends when it falls below the detrigger ratio (or after half
+// the waveform window). Events strong enough are sent with their peak and the waveform.
+public class VibrationTrigger extends Handler implements SensorEventListener {
+    private static final String LOG_TAG = VibrationTrigger.class.getName();
+
+    private static final int DEFAULT_SAMPLING_RATE_HZ = 100;
+    private static final int DEFAULT_BATCH_LATENCY_MS = 1000;
+    private static final int DEFAULT_STA_MS = 100;
+    private static final int DEFAULT_LTA_MS = 10000;
+    private static final float DEFAULT_TRIGGER_RATIO = 4;
+    private static final float DEFAULT_DETRIGGER_RATIO = 1.5f;
+    private static final int DEFAULT_MIN_PEAK_MG = 20;
+    private static final int DEFAULT_WAVEFORM_SECONDS = 4;
+    // Weight of a new sample in the gravity estimate (low-pass filter)
+    private static final float GRAVITY_FILTER_ALPHA = 0.02f;
+    // Weight of a new interval in the measured sampling period, sensors rarely run at the
+    // requested rate
+    private static final float SAMPLE_INTERVAL_FILTER_ALPHA = 0.01f;
+    // Lowest long-term average (in g), about the noise floor of a phone accelerometer
+    private static final float MIN_LONG_TERM_AVERAGE_G = 0.002f;
+
+    public static final int HANDLER_MSG_START = 1;
+    public static final int HANDLER_MSG_STOP = 2;
+
+
+    private final GuardService mGuardService;
+    private final Preferences mPreferences;
+    private final RulesManager mRulesManager;
+    private final SensorManager mSensorManager;
+    private final Sensor mAccelerometer;
+    private boolean mIsStarted;
+    private StaLtaDetector mDetector;
+    private SampleRingBuffer mWaveform;
+    private float mTriggerRatio;
+    private float mDetriggerRatio;
+    private float mMinPeakG;
+    private int mMaxEventSamplesNb;
+    private float mGravity;
+    private long mLastTimestampNs;
+    private float mSampleIntervalNs;
+    private boolean mIsEventActive;
+    private float mEventPeakG;
+    private int mEventSamplesNb;
+
+
+    public VibrationTrigger(Looper looper, GuardService guardService) {
+        super(looper);
+
+        mGuardService = guardService;
+        mPreferences = Preferences.getInstance(guardService);
+        mRulesManager = RulesManager.getInstance(mPreferences);
+        mSensorManager = (SensorManager)guardService.getSystemService(Context.SENSOR_SERVICE);
+        mAccelerometer = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+    }
+
+
+    @Override
+    public void handleMessage(@NonNull Message msg) {
+        switch (msg.what) {
+            case HANDLER_MSG_START:
+                startSampling();
+                break;
+            case HANDLER_MSG_STOP:
+                stopSampling();
+                break;
+            default:
+                Log.w(LOG_TAG, "unhandled VibrationTrigger message \"" + msg.what + "\"");
+                break;
+        }
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        float x = event.values[0];
+        float y = event.values[1];
+        float z = event.values[2];
+        float magnitude = (float)Math.sqrt(x * x + y * y + z * z);
+        float deviationG;
+        float absoluteDeviationG;
+        float ratio;
+
+        if (mLastTimestampNs > 0) {
+            mSampleIntervalNs += SAMPLE_INTERVAL_FILTER_ALPHA *
+                    (event.timestamp - mLastTimestampNs - mSampleIntervalNs);
+        }
+        mLastTimestampNs = event.timestamp;
+
+        mGravity += GRAVITY_FILTER_ALPHA * (magnitude - mGravity);
+        deviationG = (magnitude - mGravity) / SensorManager.GRAVITY_EARTH;
+        absoluteDeviationG = Math.abs(deviationG);
+        mWaveform.write(deviationG);
+        ratio = mDetector.update(absoluteDeviationG);
+
+        if (!mIsEventActive) {
+            if (ratio < mTriggerRatio) {
+                return;
+            }
+
+            mIsEventActive = true;
+            mEventPeakG = 0;
+            mEventSamplesNb = 0;
+        }
+
+        mEventPeakG = Math.max(mEventPeakG, absoluteDeviationG);
+        mEventSamplesNb++;
+        if (ratio >= mDetriggerRatio && mEventSamplesNb < mMaxEventSamplesNb) {
+            return;
+        }
+
+        mIsEventActive = false;
+        if (mEventPeakG >= mMinPeakG) {
+            startVibrationEvent();
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+
+    private void startSampling() {
+        int samplingRateHz = mPreferences.getVibrationSamplingRateHz() > 0 ?
+                mPreferences.getVibrationSamplingRateHz() : DEFAULT_SAMPLING_RATE_HZ;
+        int batchLatencyMs = mPreferences.getVibrationBatchLatencyMs() > 0 ?
+                mPreferences.getVibrationBatchLatencyMs() : DEFAULT_BATCH_LATENCY_MS;
+        int staMs = mPreferences.getVibrationStaMs() > 0 ?
+                mPreferences.getVibrationStaMs() : DEFAULT_STA_MS;
+        int ltaMs = mPreferences.getVibrationLtaMs() > 0 ?
+                mPreferences.getVibrationLtaMs() : DEFAULT_LTA_MS;
+        int minPeakMg = mPreferences.getVibrationMinPeakMg() > 0 ?
+                mPreferences.getVibrationMinPeakMg() : DEFAULT_MIN_PEAK_MG;
+        int waveformSeconds = mPreferences.getVibrationWaveformSeconds() > 0 ?
+                mPreferences.getVibrationWaveformSeconds() : DEFAULT_WAVEFORM_SECONDS;
+
+        if (mIsStarted) {
+            Log.w(LOG_TAG, "cannot start sampling: already sampling");
+            return;
+        }
+
+        if (mAccelerometer == null) {
+            Log.w(LOG_TAG, "cannot start sampling: no accelerometer");
+            return;
+        }
+
+        mTriggerRatio = mPreferences.getVibrationTriggerRatio() > 0 ?
+                mPreferences.getVibrationTriggerRatio() : DEFAULT_TRIGGER_RATIO;
+        mDetriggerRatio = mPreferences.getVibrationDetriggerRatio() > 0 ?
+                mPreferences.getVibrationDetriggerRatio() : DEFAULT_DETRIGGER_RATIO;
+        mMinPeakG = minPeakMg / 1000f;
+        mDetector = new StaLtaDetector(Math.max(1, staMs * samplingRateHz / 1000),
+                Math.max(1, ltaMs * samplingRateHz / 1000), MIN_LONG_TERM_AVERAGE_G);
+        mWaveform = new SampleRingBuffer(waveformSeconds * samplingRateHz);
+        mMaxEventSamplesNb = mWaveform.getCapacity() / 2;
+        mGravity = SensorManager.GRAVITY_EARTH;
+        mLastTimestampNs = 0;
+        mSampleIntervalNs = 1e9f / samplingRateHz;
+        mIsEventActive = false;
+
+        mIsStarted = mSensorManager.registerListener(this, mAccelerometer,
+                1000000 / samplingRateHz, batchLatencyMs * 1000, this);
+        if (!mIsStarted) {
+            Log.w(LOG_TAG, "cannot start sampling: accelerometer listener not registered");
+            return;
+        }
+
+        Log.i(LOG_TAG, "Sampling at " + samplingRateHz + " Hz, batched for " + batchLatencyMs +
+                " ms (FIFO of " + mAccelerometer.getFifoMaxEventCount() + " events), STA " +
+                staMs + " ms / LTA " + ltaMs + " ms, trigger ratio " + mTriggerRatio +
+                ", detrigger ratio " + mDetriggerRatio);
+    }
+
+    private void stopSampling() {
+        if (!mIsStarted) {
+            return;
+        }
+
+        mSensorManager.unregisterListener(this);
+        mIsStarted = false;
+        Log.i(LOG_TAG, "Sampling stopped");
+    }
+
+    private void startVibrationEvent() {
+        VibrationPayload payload = new VibrationPayload(mEventPeakG, 1e9f / mSampleIntervalNs,
+                mWaveform.copySamples());
+
+        Log.i(LOG_TAG, "Vibration detected, peak " + mEventPeakG + " g");
+        mRulesManager.performActionsAsync(Trigger.VIBRATION, payload, mGuardService);
+    }
+}
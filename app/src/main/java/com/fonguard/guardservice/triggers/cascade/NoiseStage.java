@@ -0,0 +1,148 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.triggers.cascade;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+
+// Fires when the RMS amplitude of a block of microphone samples reaches the threshold. Records at
+// a low sample rate on its own thread, the block buffer is allocated once. Before Android 10 only
+// one app capture gets the microphone, so when the noise trigger records it the stage is fed with
+// its blocks instead (shared capture).
+public class NoiseStage implements Runnable {
+    private static final String LOG_TAG = NoiseStage.class.getName();
+
+    private static final int SAMPLE_RATE_HZ = 8000;
+    private static final int BLOCK_DURATION_MS = 100;
+
+    private final Context mContext;
+    private final int mThresholdRms;
+    private final TriggerCascade.StageFiredListener mStageFiredListener;
+    private final short[] mBlock = new short[SAMPLE_RATE_HZ * BLOCK_DURATION_MS / 1000];
+    private AudioRecord mAudioRecord;
+    private Thread mThread;
+    private boolean mIsCaptureShared = false;
+    private volatile boolean mIsStopped = true;
+
+
+    public NoiseStage(Context context, int thresholdRms,
+                      TriggerCascade.StageFiredListener stageFiredListener) {
+        mContext = context;
+        mThresholdRms = thresholdRms;
+        mStageFiredListener = stageFiredListener;
+    }
+
+
+    // Only valid before the stage starts, the blocks then come from processBlock()
+    public void setCaptureShared() {
+        mIsCaptureShared = true;
+    }
+
+    public boolean start() {
+        int minBufferSize;
+
+        if (mIsCaptureShared) {
+            Log.i(LOG_TAG, "starting noise stage on the shared capture, threshold " +
+                    mThresholdRms + " RMS");
+            mIsStopped = false;
+            return true;
+        }
+
+        if (ContextCompat.checkSelfPermission(mContext, Manifest.permission.RECORD_AUDIO) !=
+                PackageManager.PERMISSION_GRANTED) {
+            Log.w(LOG_TAG, "RECORD_AUDIO permission not granted, noise stage disabled");
+            return false;
+        }
+
+        minBufferSize = AudioRecord.getMinBufferSize(SAMPLE_RATE_HZ,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, SAMPLE_RATE_HZ,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT,
+                Math.max(minBufferSize, mBlock.length * 2 * 2));
+        if (mAudioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            Log.w(LOG_TAG, "microphone could not be opened, noise stage disabled");
+            mAudioRecord.release();
+            mAudioRecord = null;
+            return false;
+        }
+
+        Log.i(LOG_TAG, "starting noise stage, threshold " + mThresholdRms + " RMS");
+        mIsStopped = false;
+        mAudioRecord.startRecording();
+        mThread = new Thread(this, "NoiseStageThread");
+        mThread.start();
+        return true;
+    }
+
+    public void stop() {
+        mIsStopped = true;
+        if (mThread == null) {
+            return;
+        }
+
+        mAudioRecord.stop();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mAudioRecord.release();
+        mAudioRecord = null;
+        mThread = null;
+        Log.i(LOG_TAG, "noise stage stopped");
+    }
+
+    // Called from the stage thread, or from the thread of the shared capture
+    public void processBlock(short[] block, int samplesNb) {
+        long sumOfSquares = 0;
+
+        if (mIsStopped || samplesNb <= 0) {
+            return;
+        }
+
+        for (int i = 0; i < samplesNb; i++) {
+            sumOfSquares += block[i] * block[i];
+        }
+
+        if (Math.sqrt((double)sumOfSquares / samplesNb) >= mThresholdRms) {
+            mStageFiredListener.onCascadeStageFired(CascadeStage.NOISE);
+        }
+    }
+
+
+    @Override
+    public void run() {
+        while (!mIsStopped) {
+            int samplesNb = mAudioRecord.read(mBlock, 0, mBlock.length);
+
+            if (samplesNb < 0) {
+                Log.w(LOG_TAG, "microphone read failed (" + samplesNb + "), noise stage stopped");
+                break;
+            }
+
+            processBlock(mBlock, samplesNb);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.triggers.cascade;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.fonguard.Preferences;
+
+import java.util.List;
+
+// Cheap detectors (accelerometer, microphone) arming the camera pipeline for a window. A stage
+// that keeps firing re-arms the camera at most once every REARM_INTERVAL_MS.
+public class TriggerCascade {
+    private static final String LOG_TAG = TriggerCascade.class.getName();
+
+    private static final long REARM_INTERVAL_MS = 1000;
+    private static final int DEFAULT_WINDOW_SECONDS = 30;
+    private static final int DEFAULT_VIBRATION_THRESHOLD_MG = 50;
+    private static final int DEFAULT_VIBRATION_BATCH_LATENCY_MS = 1000;
+    private static final int DEFAULT_NOISE_THRESHOLD_RMS = 1000;
+
+    public interface StageFiredListener {
+        // Called from the thread of the stage
+        void onCascadeStageFired(CascadeStage stage);
+    }
+
+    public interface ArmedListener {
+        void onCascadeArmed(CascadeStage stage);
+    }
+
+    private final ArmedListener mArmedListener;
+    private final long mWindowMs;
+    private final CascadeCameraMode mCameraMode;
+    private final long[] mLastArmTimesMs = new long[CascadeStage.values().length];
+    private VibrationStage mVibrationStage;
+    private NoiseStage mNoiseStage;
+    private HandlerThread mSensorHandlerThread;
+
+    private final StageFiredListener mStageFiredListener = new StageFiredListener() {
+        @Override
+        public void onCascadeStageFired(CascadeStage stage) {
+            long now = SystemClock.elapsedRealtime();
+
+            synchronized (mLastArmTimesMs) {
+                if (mLastArmTimesMs[stage.ordinal()] > 0 &&
+                        now - mLastArmTimesMs[stage.ordinal()] < REARM_INTERVAL_MS) {
+                    return;
+                }
+                mLastArmTimesMs[stage.ordinal()] = now;
+            }
+
+            Log.i(LOG_TAG, stage + " stage fired, arming the camera");
+            mArmedListener.onCascadeArmed(stage);
+        }
+    };
+
+
+    public TriggerCascade(Context context, Preferences preferences, ArmedListener armedListener) {
+        List<String> stages = preferences.getCascadeStages();
+        String cameraMode = preferences.getCascadeCameraBetweenWindows();
+        int windowSeconds = preferences.getCascadeWindowSeconds();
+        int vibrationThresholdMg = preferences.getCascadeVibrationThresholdMg();
+        int vibrationBatchLatencyMs = preferences.getCascadeVibrationBatchLatencyMs();
+        int noiseThresholdRms = preferences.getCascadeNoiseThresholdRms();
+        boolean hasAllStages = stages == null || stages.isEmpty();
+
+        mArmedListener = armedListener;
+        mWindowMs = (windowSeconds <= 0 ? DEFAULT_WINDOW_SECONDS : windowSeconds) * 1000L;
+        mCameraMode = parseCameraMode(cameraMode);
+
+        if (hasAllStages || stages.contains(CascadeStage.VIBRATION.toString().toLowerCase())) {
+            mVibrationStage = new VibrationStage(context, vibrationThresholdMg <= 0 ?
+                    DEFAULT_VIBRATION_THRESHOLD_MG : vibrationThresholdMg,
+                    vibrationBatchLatencyMs <= 0 ? DEFAULT_VIBRATION_BATCH_LATENCY_MS :
+                            vibrationBatchLatencyMs, mStageFiredListener);
+        }
+
+        if (hasAllStages || stages.contains(CascadeStage.NOISE.toString().toLowerCase())) {
+            mNoiseStage = new NoiseStage(context, noiseThresholdRms <= 0 ?
+                    DEFAULT_NOISE_THRESHOLD_RMS : noiseThresholdRms, mStageFiredListener);
+            // The noise trigger feeds the stage with its own recording (see getNoiseStage())
+            if (preferences.isNoiseTriggerEnabled()) {
+                mNoiseStage.setCaptureShared();
+            }
+        }
+    }
+
+
+    public void start() {
+        Log.i(LOG_TAG, "starting cascade, camera armed for " + mWindowMs + " ms, " +
+                mCameraMode + " between windows");
+
+        if (mVibrationStage != null) {
+            mSensorHandlerThread = new HandlerThread("CascadeSensorHandlerThread");
+            mSensorHandlerThread.start();
+            if (!mVibrationStage.start(new Handler(mSensorHandlerThread.getLooper()))) {
+                mVibrationStage = null;
+            }
+        }
+
+        if (mNoiseStage != null && !mNoiseStage.start()) {
+            mNoiseStage = null;
+        }
+    }
+
+    public void stop() {
+        if (mVibrationStage != null) {
+            mVibrationStage.stop();
+        }
+
+        if (mSensorHandlerThread != null) {
+            mSensorHandlerThread.quitSafely();
+            mSensorHandlerThread = null;
+        }
+
+        if (mNoiseStage != null) {
+            mNoiseStage.stop();
+        }
+
+        Log.i(LOG_TAG, "cascade stopped");
+    }
+
+    public long getWindowMs() {
+        return mWindowMs;
+    }
+
+    public CascadeCameraMode getCameraMode() {
+        return mCameraMode;
+    }
+
+    // Null if the cascade has no noise stage
+    public NoiseStage getNoiseStage() {
+        return mNoiseStage;
+    }
+
+
+    // A typo in the imported settings must not prevent the service from starting
+    private static CascadeCameraMode parseCameraMode(String cameraMode) {
+        if (cameraMode == null || cameraMode.equals("")) {
+            return CascadeCameraMode.CLOSED;
+        }
+
+        try {
+            return CascadeCameraMode.valueOf(cameraMode.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            Log.w(LOG_TAG, "unknown camera_between_windows \"" + cameraMode + "\", using " +
+                    CascadeCameraMode.CLOSED);
+            return CascadeCameraMode.CLOSED;
+        }
+    }
+}
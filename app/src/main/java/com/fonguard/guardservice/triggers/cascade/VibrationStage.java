@@ -0,0 +1,91 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.triggers.cascade;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.util.Log;
+
+// Fires when the acceleration deviates from gravity by more than the threshold. Events are batched
+// in the FIFO of the sensor hub and delivered every mBatchLatencyMs, so the application processor
+// is not woken up for every sample.
+public class VibrationStage implements SensorEventListener {
+    private static final String LOG_TAG = VibrationStage.class.getName();
+
+    private static final int SAMPLING_PERIOD_US = 20000;
+    // Weight of a new sample in the gravity estimate (low-pass filter)
+    private static final float GRAVITY_FILTER_ALPHA = 0.02f;
+
+    private final SensorManager mSensorManager;
+    private final Sensor mAccelerometer;
+    private final float mThreshold;
+    private final int mBatchLatencyMs;
+    private final TriggerCascade.StageFiredListener mStageFiredListener;
+    private float mGravity = SensorManager.GRAVITY_EARTH;
+
+
+    public VibrationStage(Context context, int thresholdMg, int batchLatencyMs,
+                          TriggerCascade.StageFiredListener stageFiredListener) {
+        mSensorManager = (SensorManager)context.getSystemService(Context.SENSOR_SERVICE);
+        mAccelerometer = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        mThreshold = thresholdMg * SensorManager.GRAVITY_EARTH / 1000;
+        mBatchLatencyMs = batchLatencyMs;
+        mStageFiredListener = stageFiredListener;
+    }
+
+
+    public boolean start(Handler handler) {
+        if (mAccelerometer == null) {
+            Log.w(LOG_TAG, "no accelerometer, vibration stage disabled");
+            return false;
+        }
+
+        Log.i(LOG_TAG, "starting vibration stage, threshold " + mThreshold + " m/s2, events " +
+                "batched for " + mBatchLatencyMs + " ms (FIFO of " +
+                mAccelerometer.getFifoMaxEventCount() + " events)");
+        return mSensorManager.registerListener(this, mAccelerometer, SAMPLING_PERIOD_US,
+                mBatchLatencyMs * 1000, handler);
+    }
+
+    public void stop() {
+        mSensorManager.unregisterListener(this);
+        Log.i(LOG_TAG, "vibration stage stopped");
+    }
+
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        float x = event.values[0];
+        float y = event.values[1];
+        float z = event.values[2];
+        float magnitude = (float)Math.sqrt(x * x + y * y + z * z);
+
+        mGravity += GRAVITY_FILTER_ALPHA * (magnitude - mGravity);
+        if (Math.abs(magnitude - mGravity) >= mThreshold) {
+            mStageFiredListener.onCascadeStageFired(CascadeStage.VIBRATION);
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+}
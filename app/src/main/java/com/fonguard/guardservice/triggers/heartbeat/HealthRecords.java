@@ -0,0 +1,97 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.triggers.heartbeat;
+
+import com.fonguard.guardservice.payloads.HeartbeatPayload;
+
+import java.util.Arrays;
+
+// Health samples kept in memory until the next report, one primitive array per metric. The arrays
+// are allocated once, samples beyond the capacity are dropped (and counted).
+public class HealthRecords {
+    private final long[] mTimesMs;
+    private final float[] mFps;
+    private final int[] mLastFrameAgesMs;
+    private final int[] mDroppedFramesNb;
+    private final int[] mPendingActionsNb;
+    private final int[] mFailedActionsNb;
+    private final byte[] mBatteryPercents;
+    private final boolean[] mIsCharging;
+    private final short[] mBatteryTemperatures;
+    private int mRecordsNb = 0;
+    private int mDroppedRecordsNb = 0;
+
+
+    public HealthRecords(int capacity) {
+        mTimesMs = new long[capacity];
+        mFps = new float[capacity];
+        mLastFrameAgesMs = new int[capacity];
+        mDroppedFramesNb = new int[capacity];
+        mPendingActionsNb = new int[capacity];
+        mFailedActionsNb = new int[capacity];
+        mBatteryPercents = new byte[capacity];
+        mIsCharging = new boolean[capacity];
+        mBatteryTemperatures = new short[capacity];
+    }
+
+
+    public int getRecordsNb() {
+        return mRecordsNb;
+    }
+
+    public int getDroppedRecordsNb() {
+        return mDroppedRecordsNb;
+    }
+
+    public void add(long timeMs, float fps, int lastFrameAgeMs, int droppedFramesNb,
+                    int pendingActionsNb, int failedActionsNb, int batteryPercent,
+                    boolean isCharging, int batteryTemperature) {
+        if (mRecordsNb == mTimesMs.length) {
+            mDroppedRecordsNb++;
+            return;
+        }
+
+        mTimesMs[mRecordsNb] = timeMs;
+        mFps[mRecordsNb] = fps;
+        mLastFrameAgesMs[mRecordsNb] = lastFrameAgeMs;
+        mDroppedFramesNb[mRecordsNb] = droppedFramesNb;
+        mPendingActionsNb[mRecordsNb] = pendingActionsNb;
+        mFailedActionsNb[mRecordsNb] = failedActionsNb;
+        mBatteryPercents[mRecordsNb] = (byte)batteryPercent;
+        mIsCharging[mRecordsNb] = isCharging;
+        mBatteryTemperatures[mRecordsNb] = (short)batteryTemperature;
+        mRecordsNb++;
+    }
+
+    // Copies the recorded samples into a report and starts a new batch
+    public HeartbeatPayload flush(long serviceStartedAtMs) {
+        HeartbeatPayload payload = new HeartbeatPayload(serviceStartedAtMs,
+                Arrays.copyOf(mTimesMs, mRecordsNb), Arrays.copyOf(mFps, mRecordsNb),
+                Arrays.copyOf(mLastFrameAgesMs, mRecordsNb),
+                Arrays.copyOf(mDroppedFramesNb, mRecordsNb),
+                Arrays.copyOf(mPendingActionsNb, mRecordsNb),
+                Arrays.copyOf(mFailedActionsNb, mRecordsNb),
+                Arrays.copyOf(mBatteryPercents, mRecordsNb),
+                Arrays.copyOf(mIsCharging, mRecordsNb),
+                Arrays.copyOf(mBatteryTemperatures, mRecordsNb));
+
+        mRecordsNb = 0;
+        mDroppedRecordsNb = 0;
+        return payload;
+    }
+}
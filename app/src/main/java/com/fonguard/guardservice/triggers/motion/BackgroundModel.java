@@ -0,0 +1,115 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.triggers.motion;
+
+import java.util.Arrays;
+
+// Per-pixel background model: exponential moving average of the pixel values and of their
+// variance. A pixel is foreground when it deviates from the average by more than k standard
+// deviations, so noisy pixels need a larger change than still ones to count.
+public class BackgroundModel {
+    private final int mWidth;
+    private final int mHeight;
+    private final float[] mMeans;
+    private final float[] mVariances;
+    private final float mLearningRate;
+    private final float mSigmaThresholdSquared;
+    private boolean mIsInitialized = false;
+
+
+    public BackgroundModel(int width, int height, float learningRate, float sigmaThreshold) {
+        mWidth = width;
+        mHeight = height;
+        mMeans = new float[width * height];
+        mVariances = new float[width * height];
+        mLearningRate = learningRate;
+        mSigmaThresholdSquared = sigmaThreshold * sigmaThreshold;
+    }
+
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    // plane holds width x height samples, pixelStride bytes apart (e.g. 4 for the R channel of
+    // RGBA). minPixelValueDiff is the smallest deviation that can be foreground, whatever the
+    // variance. Fills tileCounts and returns their sum, or -1 for the first frame (used as initial
+    // background).
+    public int computeForegroundPixels(byte[] plane, int pixelStride, int minPixelValueDiff,
+                                       TileGrid grid, int[] tileCounts) {
+        float minDiffSquared = (float)minPixelValueDiff * minPixelValueDiff;
+
+        Arrays.fill(tileCounts, 0);
+
+        for (int tileRow = 0; tileRow < grid.getRowsNb(); ++tileRow) {
+            for (int y = grid.getRowStart(tileRow); y < grid.getRowStart(tileRow + 1); ++y) {
+                int rowOffset = y * mWidth;
+
+                for (int tileColumn = 0; tileColumn < grid.getColumnsNb(); ++tileColumn) {
+                    int tile = tileRow * grid.getColumnsNb() + tileColumn;
+                    int spanStart = rowOffset + grid.getColumnStart(tileColumn);
+                    int spanEnd = rowOffset + grid.getColumnStart(tileColumn + 1);
+                    int foregroundNb = 0;
+
+                    if (grid.isMasked(tile)) {
+                        continue;
+                    }
+
+                    if (!mIsInitialized) {
+                        for (int i = spanStart; i < spanEnd; ++i) {
+                            mMeans[i] = plane[i * pixelStride] & 0xFF;
+                            mVariances[i] = 0;
+                        }
+                        continue;
+                    }
+
+                    for (int i = spanStart; i < spanEnd; ++i) {
+                        float diff = (plane[i * pixelStride] & 0xFF) - mMeans[i];
+                        float diffSquared = diff * diff;
+
+                        if (diffSquared >= minDiffSquared &&
+                                diffSquared > mSigmaThresholdSquared * mVariances[i]) {
+                            foregroundNb++;
+                        }
+
+                        // Updated in place, lasting changes (e.g. lighting) are slowly absorbed
+                        mMeans[i] += mLearningRate * diff;
+                        mVariances[i] += mLearningRate * (diffSquared - mVariances[i]);
+                    }
+
+                    tileCounts[tile] += foregroundNb;
+                }
+            }
+        }
+
+        if (!mIsInitialized) {
+            mIsInitialized = true;
+            return -1;
+        }
+
+        return TileGrid.sumTileCounts(tileCounts);
+    }
+
+    public void reset() {
+        mIsInitialized = false;
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.triggers.motion;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+// Records H.264 MP4 clips from camera frames sent to its input Surface. The Surface is persistent,
+// so it can be part of the capture session once and be reused by the encoder of every clip. The
+// camera needs its buffer size when the session is created, which only an encoder configured on it
+// sets: a first encoder is configured and released in the constructor for that.
+public class ClipRecorder extends MediaCodec.Callback {
+    private static final String LOG_TAG = ClipRecorder.class.getName();
+
+    private static final String MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_AVC;
+    private static final int FRAME_RATE = 30;
+    private static final int I_FRAME_INTERVAL_SECONDS = 1;
+    // Clips may still be uploaded (or retried) by actions, so only the oldest ones are removed
+    private static final int MAX_KEPT_CLIPS = 5;
+
+    public interface ClipRecordedListener {
+        // clip is null if the recording failed
+        void onClipRecorded(File clip);
+    }
+
+    private final File mClipsDirectory;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mBitRate;
+    private final Handler mHandler;
+    private final ClipRecordedListener mListener;
+    private final Surface mInputSurface;
+    private final boolean mIsInputSurfaceConfigured;
+    private MediaCodec mEncoder;
+    private MediaMuxer mMuxer;
+    private File mClipFile;
+    private int mTrackIndex;
+    private boolean mIsMuxerStarted;
+
+
+    public ClipRecorder(File clipsDirectory, int width, int height, int bitRate, Handler handler,
+                        ClipRecordedListener listener) {
+        mClipsDirectory = clipsDirectory;
+        mWidth = width;
+        mHeight = height;
+        mBitRate = bitRate;
+        mHandler = handler;
+        mListener = listener;
+        mInputSurface = MediaCodec.createPersistentInputSurface();
+        mIsInputSurfaceConfigured = configureInputSurface();
+    }
+
+
+    public Surface getInputSurface() {
+        return mInputSurface;
+    }
+
+    // An input Surface that is not configured cannot be part of a capture session
+    public boolean isInputSurfaceConfigured() {
+        return mIsInputSurfaceConfigured;
+    }
+
+    public boolean isRecording() {
+        return mEncoder != null;
+    }
+
+
+    public boolean start() {
+        MediaFormat format = createFormat();
+
+        if (isRecording()) {
+            return false;
+        }
+
+        if (!mClipsDirectory.isDirectory() && !mClipsDirectory.mkdirs()) {
+            Log.e(LOG_TAG, "could not create clips directory " + mClipsDirectory);
+            return false;
+        }
+        deleteOldClips();
+
+        mClipFile = new File(mClipsDirectory, "clip-" + SystemClock.elapsedRealtime() + ".mp4");
+        mIsMuxerStarted = false;
+
+        try {
+            mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
+            mEncoder.setCallback(this, mHandler);
+            mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mEncoder.setInputSurface(mInputSurface);
+            mMuxer = new MediaMuxer(mClipFile.getPath(),
+                    MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            mEncoder.start();
+        } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+            Log.e(LOG_TAG, "could not start clip encoder: " + e.getMessage());
+            releaseEncoder();
+            return false;
+        }
+
+        Log.i(LOG_TAG, "recording clip " + mClipFile.getName() + " (" + mWidth + " x " + mHeight +
+                ", " + mBitRate / 1000 + " kbps)");
+        return true;
+    }
+
+    // The clip is finalized asynchronously, the listener is called once the encoder has drained
+    public void stop() {
+        if (!isRecording()) {
+            return;
+        }
+
+        try {
+            mEncoder.signalEndOfInputStream();
+        } catch (IllegalStateException e) {
+            Log.e(LOG_TAG, "could not stop clip encoder: " + e.getMessage());
+            finish(false);
+        }
+    }
+
+    public void close() {
+        releaseEncoder();
+        mInputSurface.release();
+    }
+
+
+    @Override
+    public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+        // Input frames come from the Surface
+    }
+
+    @Override
+    public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index,
+                                        @NonNull MediaCodec.BufferInfo info) {
+        ByteBuffer encodedData = codec.getOutputBuffer(index);
+
+        // The codec config (SPS/PPS) is already part of the format given to the muxer
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            info.size = 0;
+        }
+
+        if (info.size > 0 && mIsMuxerStarted && encodedData != null) {
+            encodedData.position(info.offset);
+            encodedData.limit(info.offset + info.size);
+            mMuxer.writeSampleData(mTrackIndex, encodedData, info);
+        }
+
+        codec.releaseOutputBuffer(index, false);
+
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            finish(true);
+        }
+    }
+
+    @Override
+    public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+        Log.e(LOG_TAG, "clip encoder error: " + e.getMessage());
+        finish(false);
+    }
+
+    @Override
+    public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+        mTrackIndex = mMuxer.addTrack(format);
+        mMuxer.start();
+        mIsMuxerStarted = true;
+    }
+
+
+    private MediaFormat createFormat() {
+        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
+
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL_SECONDS);
+        return format;
+    }
+
+    // Gives the input Surface the clip size, the encoder itself is not needed afterwards
+    private boolean configureInputSurface() {
+        MediaCodec encoder = null;
+
+        try {
+            encoder = MediaCodec.createEncoderByType(MIME_TYPE);
+            encoder.configure(createFormat(), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            encoder.setInputSurface(mInputSurface);
+            return true;
+        } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+            Log.e(LOG_TAG, "could not configure clip input surface: " + e.getMessage());
+            return false;
+        } finally {
+            if (encoder != null) {
+                encoder.release();
+            }
+        }
+    }
+
+    private void finish(boolean success) {
+        File clip = mClipFile;
+
+        // A muxer that never received the output format has no valid clip to finalize
+        if (!mIsMuxerStarted) {
+            success = false;
+        }
+
+        if (!releaseEncoder() || !success) {
+            Log.w(LOG_TAG, "clip " + clip.getName() + " could not be recorded");
+            clip.delete();
+            clip = null;
+        }
+
+        mListener.onClipRecorded(clip);
+    }
+
+    private boolean releaseEncoder() {
+        boolean isMuxerStopped = true;
+
+        if (mEncoder != null) {
+            try {
+                mEncoder.stop();
+            } catch (IllegalStateException e) {
+                Log.w(LOG_TAG, "could not stop clip encoder: " + e.getMessage());
+            }
+            mEncoder.release();
+            mEncoder = null;
+        }
+
+        if (mMuxer != null) {
+            try {
+                if (mIsMuxerStarted) {
+                    mMuxer.stop();
+                }
+            } catch (IllegalStateException e) {
+                Log.w(LOG_TAG, "could not finalize clip: " + e.getMessage());
+                isMuxerStopped = false;
+            }
+            mMuxer.release();
+            mMuxer = null;
+        }
+
+        mIsMuxerStarted = false;
+        return isMuxerStopped;
+    }
+
+    private void deleteOldClips() {
+        File[] clips = mClipsDirectory.listFiles();
+
+        if (clips == null || clips.length < MAX_KEPT_CLIPS) {
+            return;
+        }
+
+        Arrays.sort(clips, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+
+        for (int i = 0; i <= clips.length - MAX_KEPT_CLIPS; i++) {
+            clips[i].delete();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.triggers.motion;
+
+// Single-slot mailbox between two pipeline stages. Each side swaps the frame it is done with for the
+// one in the slot, so frames are recycled and nothing is allocated. If the consumer has not taken
+// the frame in the slot when a new one is posted, the stale frame is dropped (and handed back to
+// the producer as its next buffer): the consumer always gets the latest frame and never queues up.
+public class FrameMailbox<T> {
+    private T mSlot;
+    private boolean mIsSlotFull = false;
+    private boolean mIsClosed = false;
+    private long mDroppedFramesNb = 0;
+
+
+    // emptyFrame is the buffer initially held by the slot
+    public FrameMailbox(T emptyFrame) {
+        mSlot = emptyFrame;
+    }
+
+
+    // Returns the frame the producer must write next
+    public synchronized T post(T frame) {
+        T previousFrame = mSlot;
+
+        if (mIsSlotFull) {
+            mDroppedFramesNb++;
+        }
+
+        mSlot = frame;
+        mIsSlotFull = true;
+        notifyAll();
+
+        return previousFrame;
+    }
+
+    // Blocks until a frame is posted and returns it, usedFrame goes back to the slot for the
+    // producer. Returns null once the mailbox is closed.
+    public synchronized T take(T usedFrame) throws InterruptedException {
+        T frame;
+
+        while (!mIsSlotFull && !mIsClosed) {
+            wait();
+        }
+
+        if (mIsClosed) {
+            return null;
+        }
+
+        frame = mSlot;
+        mSlot = usedFrame;
+        mIsSlotFull = false;
+
+        return frame;
+    }
+
+    public synchronized void close() {
+        mIsClosed = true;
+        notifyAll();
+    }
+
+    public synchronized long getDroppedFramesNb() {
+        return mDroppedFramesNb;
+    }
+}
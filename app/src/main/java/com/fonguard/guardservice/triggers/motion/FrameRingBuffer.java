@@ -0,0 +1,141 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.triggers.motion;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// Fixed-size ring of encoded frames. All the memory is allocated upfront and the slots are
+// recycled, so recording frames does not allocate anything.
+public class FrameRingBuffer {
+    private final byte[][] mSlots;
+    private final int[] mSlotLengths;
+    private final SlotOutputStream mSlotOutputStream = new SlotOutputStream();
+    private int mNextSlot = 0;
+    private int mFramesNb = 0;
+    private int mDroppedFramesNb = 0;
+
+
+    public FrameRingBuffer(int slotsNb, int memoryBudgetBytes) {
+        int slotCapacity = memoryBudgetBytes / slotsNb;
+
+        mSlots = new byte[slotsNb][slotCapacity];
+        mSlotLengths = new int[slotsNb];
+    }
+
+
+    public int getSlotsNb() {
+        return mSlots.length;
+    }
+
+    public int getSlotCapacity() {
+        return mSlots[0].length;
+    }
+
+    public int getFramesNb() {
+        return mFramesNb;
+    }
+
+    // Frames that did not fit in a slot (e.g. a very detailed scene), they are not recorded
+    public int getDroppedFramesNb() {
+        return mDroppedFramesNb;
+    }
+
+
+    // The returned stream writes into the next slot, which is only committed by endWrite()
+    public OutputStream beginWrite() {
+        mSlotOutputStream.reset(mSlots[mNextSlot]);
+        return mSlotOutputStream;
+    }
+
+    public boolean endWrite() {
+        if (mSlotOutputStream.hasOverflowed()) {
+            mDroppedFramesNb++;
+            return false;
+        }
+
+        mSlotLengths[mNextSlot] = mSlotOutputStream.getLength();
+        mNextSlot = (mNextSlot + 1) % mSlots.length;
+        mFramesNb = Math.min(mFramesNb + 1, mSlots.length);
+        return true;
+    }
+
+    // Copies the recorded frames out of the ring, from the oldest to the newest
+    public List<byte[]> copyFrames() {
+        List<byte[]> frames = new ArrayList<>(mFramesNb);
+        int slot = (mNextSlot - mFramesNb + mSlots.length) % mSlots.length;
+
+        for (int i = 0; i < mFramesNb; ++i) {
+            byte[] frame = new byte[mSlotLengths[slot]];
+
+            System.arraycopy(mSlots[slot], 0, frame, 0, frame.length);
+            frames.add(frame);
+            slot = (slot + 1) % mSlots.length;
+        }
+
+        return frames;
+    }
+
+    public void clear() {
+        mNextSlot = 0;
+        mFramesNb = 0;
+    }
+
+
+    private static class SlotOutputStream extends OutputStream {
+        private byte[] mSlot;
+        private int mLength;
+        private boolean mHasOverflowed;
+
+        void reset(byte[] slot) {
+            mSlot = slot;
+            mLength = 0;
+            mHasOverflowed = false;
+        }
+
+        int getLength() {
+            return mLength;
+        }
+
+        boolean hasOverflowed() {
+            return mHasOverflowed;
+        }
+
+        @Override
+        public void write(int b) {
+            if (mLength >= mSlot.length) {
+                mHasOverflowed = true;
+                return;
+            }
+
+            mSlot[mLength++] = (byte)b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (mLength + len > mSlot.length) {
+                mHasOverflowed = true;
+                return;
+            }
+
+            System.arraycopy(b, off, mSlot, mLength, len);
+            mLength += len;
+        }
+    }
+}
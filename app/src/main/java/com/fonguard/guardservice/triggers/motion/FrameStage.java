@@ -0,0 +1,80 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.triggers.motion;
+
+import android.util.Log;
+
+// Pipeline stage running on its own thread: takes the latest frame from its input mailbox,
+// processes it and posts it to its output mailbox (if any).
+public class FrameStage<T> extends Thread {
+    private static final String LOG_TAG = FrameStage.class.getName();
+
+    public interface FrameProcessor<T> {
+        void process(T frame);
+    }
+
+    private final FrameMailbox<T> mInput;
+    private final FrameMailbox<T> mOutput;
+    private final FrameProcessor<T> mFrameProcessor;
+    private T mFrame;
+
+
+    // frame is the buffer owned by the stage until it takes its first frame
+    public FrameStage(String name, FrameMailbox<T> input, FrameMailbox<T> output, T frame,
+                      FrameProcessor<T> frameProcessor) {
+        super(name);
+        mInput = input;
+        mOutput = output;
+        mFrame = frame;
+        mFrameProcessor = frameProcessor;
+    }
+
+
+    // Frames posted to this stage but replaced by a newer one before it could process them
+    public long getDroppedFramesNb() {
+        return mInput.getDroppedFramesNb();
+    }
+
+    public void quit() {
+        mInput.close();
+    }
+
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                mFrame = mInput.take(mFrame);
+
+                if (mFrame == null) {
+                    break;
+                }
+
+                mFrameProcessor.process(mFrame);
+
+                if (mOutput != null) {
+                    mFrame = mOutput.post(mFrame);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(LOG_TAG, getName() + " interrupted");
+        }
+
+        Log.i(LOG_TAG, getName() + " stopped");
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.triggers.motion;
+
+// Processing frame going through the motion pipeline stages. Frames are allocated once and recycled
+// by the mailboxes between the stages.
+public class LumaFrame {
+    public byte[] Plane;
+    // Changed pixels per tile of the TileGrid, and their sum (-1 if the frame could not be compared)
+    public final int[] TileCounts;
+    public int DiffPixelsNb;
+
+
+    public LumaFrame(int width, int height, int tilesNb) {
+        Plane = new byte[width * height];
+        TileCounts = new int[tilesNb];
+    }
+}
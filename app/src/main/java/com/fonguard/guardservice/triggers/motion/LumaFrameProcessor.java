@@ -0,0 +1,387 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.triggers.motion;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class LumaFrameProcessor {
+    // The coarse level is COARSE_SCALE times smaller than the plane in both dimensions
+    private static final int COARSE_SCALE = 4;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mBlurRadius;
+    private final int[] mBoxColumnStarts;
+    private final int[] mBoxRowStarts;
+    private final int[] mRowSums;
+    private final byte[] mBlurBuffer;
+    private byte[] mReferencePlane;
+    // Plane being compared with mReferencePlane, only set during computeDiffPixels()
+    private byte[] mDiffPlane;
+    private byte[] mDiffReferencePlane;
+    private final int mCoarseWidth;
+    private final int mCoarseHeight;
+    private final int[] mCoarseBoxColumnStarts;
+    private final int[] mCoarseBoxRowStarts;
+    private byte[] mCoarsePlane;
+    private byte[] mCoarseReferencePlane;
+    private boolean mHasReferencePlane = false;
+    private long mDiffedFramesNb = 0;
+    private long mCoarseEarlyExitsNb = 0;
+    private long mCountEarlyExitsNb = 0;
+    // Parallel diff only, null when the diff runs on the calling thread
+    private final RowBandExecutor mRowBandExecutor;
+    private final int[][] mBandTileCounts;
+    private int mBandPixelValueDiffThreshold;
+    private TileGrid mBandGrid;
+
+    private final RowBandExecutor.BandProcessor mDiffBandProcessor =
+            new RowBandExecutor.BandProcessor() {
+                @Override
+                public int processBand(int band, int rowStart, int rowEnd) {
+                    int[] bandTileCounts = mBandTileCounts[band];
+
+                    Arrays.fill(bandTileCounts, 0);
+                    return diffRows(rowStart, rowEnd, mBandPixelValueDiffThreshold, 0, mBandGrid,
+                            bandTileCounts);
+                }
+            };
+
+
+    // The input is expected to be at least as large as the output (downsampling only). With
+    // diffParallelism > 1, the full resolution diff is split in that many row bands processed in
+    // parallel (see RowBandExecutor).
+    public LumaFrameProcessor(int inputWidth, int inputHeight, int width, int height,
+                              int blurRadius, int diffParallelism, int tilesNb) {
+        mWidth = width;
+        mHeight = height;
+        mBlurRadius = blurRadius;
+        mBoxColumnStarts = computeBoxStarts(inputWidth, width);
+        mBoxRowStarts = computeBoxStarts(inputHeight, height);
+        mRowSums = new int[width];
+        mBlurBuffer = new byte[width * height];
+        mReferencePlane = new byte[width * height];
+        mCoarseWidth = Math.max(width / COARSE_SCALE, 1);
+        mCoarseHeight = Math.max(height / COARSE_SCALE, 1);
+        mCoarseBoxColumnStarts = computeBoxStarts(width, mCoarseWidth);
+        mCoarseBoxRowStarts = computeBoxStarts(height, mCoarseHeight);
+        mCoarsePlane = new byte[mCoarseWidth * mCoarseHeight];
+        mCoarseReferencePlane = new byte[mCoarseWidth * mCoarseHeight];
+
+        if (diffParallelism > 1) {
+            mRowBandExecutor = new RowBandExecutor(height, Math.min(diffParallelism, height));
+            mBandTileCounts = new int[mRowBandExecutor.getBandsNb()][tilesNb];
+        } else {
+            mRowBandExecutor = null;
+            mBandTileCounts = null;
+        }
+    }
+
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    // Frames compared with their reference (the first frame is not)
+    public long getDiffedFramesNb() {
+        return mDiffedFramesNb;
+    }
+
+    // Frames whose full resolution diff was skipped because the coarse level showed no change
+    public long getCoarseEarlyExitsNb() {
+        return mCoarseEarlyExitsNb;
+    }
+
+    // Frames whose full resolution diff stopped as soon as the changed pixels threshold was reached
+    public long getCountEarlyExitsNb() {
+        return mCountEarlyExitsNb;
+    }
+
+
+    // downsample(), blur() and computeDiffPixels() use distinct scratch buffers, so each one can run
+    // on its own thread (one frame per method at a time)
+    public void downsample(ByteBuffer inputPlane, int rowStride, int pixelStride, byte[] plane) {
+        for (int y = 0; y < mHeight; ++y) {
+            int inputRowStart = mBoxRowStarts[y];
+            int inputRowEnd = mBoxRowStarts[y + 1];
+            int planeOffset = y * mWidth;
+
+            Arrays.fill(mRowSums, 0);
+
+            // Input rows are walked sequentially so the (direct) buffer is read in memory order
+            for (int inputY = inputRowStart; inputY < inputRowEnd; ++inputY) {
+                int inputRowOffset = inputY * rowStride;
+
+                for (int x = 0; x < mWidth; ++x) {
+                    int inputColumnEnd = mBoxColumnStarts[x + 1];
+                    int sum = 0;
+
+                    for (int inputX = mBoxColumnStarts[x]; inputX < inputColumnEnd; ++inputX) {
+                        sum += inputPlane.get(inputRowOffset + inputX * pixelStride) & 0xFF;
+                    }
+
+                    mRowSums[x] += sum;
+                }
+            }
+
+            for (int x = 0; x < mWidth; ++x) {
+                int boxSize = (mBoxColumnStarts[x + 1] - mBoxColumnStarts[x]) *
+                        (inputRowEnd - inputRowStart);
+
+                plane[planeOffset + x] = (byte)(mRowSums[x] / boxSize);
+            }
+        }
+    }
+
+    public void blur(byte[] plane) {
+        if (mBlurRadius <= 0) {
+            return;
+        }
+
+        // Separable box blur: horizontal pass into mBlurBuffer, vertical pass back into plane
+        for (int y = 0; y < mHeight; ++y) {
+            blurLine(plane, mBlurBuffer, y * mWidth, 1, mWidth);
+        }
+
+        for (int x = 0; x < mWidth; ++x) {
+            blurLine(mBlurBuffer, plane, x, mWidth, mHeight);
+        }
+    }
+
+    // Fills the tile counts of frame and sets its changed pixels number (-1 for the first frame).
+    // The plane of frame becomes the reference, and frame gets the old reference plane (its
+    // content is meaningless) so buffers are recycled. The coarse level is compared first and the
+    // full resolution diff is skipped if it shows no change. If pixelNumberDiffThreshold > 0,
+    // counting stops as soon as it is reached and the tile counts are partial: only use it when the
+    // sum is all that matters (i.e. a single zone). It is ignored by the parallel diff, whose bands
+    // count independently.
+    public int computeDiffPixels(LumaFrame frame, int pixelValueDiffThreshold,
+                                 int pixelNumberDiffThreshold, TileGrid grid) {
+        byte[] referencePlane = mReferencePlane;
+        byte[] coarsePlane = mCoarsePlane;
+
+        buildCoarseLevel(frame.Plane);
+
+        // Current planes become the references, old references are reused for the next frame
+        mDiffPlane = frame.Plane;
+        mReferencePlane = frame.Plane;
+        frame.Plane = referencePlane;
+        mCoarsePlane = mCoarseReferencePlane;
+        mCoarseReferencePlane = coarsePlane;
+
+        if (!mHasReferencePlane) {
+            mHasReferencePlane = true;
+            frame.DiffPixelsNb = -1;
+            return -1;
+        }
+
+        mDiffedFramesNb++;
+        Arrays.fill(frame.TileCounts, 0);
+
+        if (!hasCoarseLevelChanged(pixelValueDiffThreshold)) {
+            mCoarseEarlyExitsNb++;
+            frame.DiffPixelsNb = 0;
+            return 0;
+        }
+
+        frame.DiffPixelsNb = diffPlane(referencePlane, pixelValueDiffThreshold,
+                pixelNumberDiffThreshold, grid, frame.TileCounts);
+        return frame.DiffPixelsNb;
+    }
+
+    public void reset() {
+        mHasReferencePlane = false;
+    }
+
+    // Copies the reference plane to plane, returns false if there is none yet
+    public boolean copyReferenceTo(byte[] plane) {
+        if (!mHasReferencePlane) {
+            return false;
+        }
+
+        System.arraycopy(mReferencePlane, 0, plane, 0, mReferencePlane.length);
+        return true;
+    }
+
+    // Makes a copy of plane the reference, e.g. to resume comparing with a frame of an earlier
+    // capture
+    public void setReference(byte[] plane) {
+        byte[] coarsePlane = mCoarsePlane;
+
+        System.arraycopy(plane, 0, mReferencePlane, 0, mReferencePlane.length);
+        buildCoarseLevel(mReferencePlane);
+        mCoarsePlane = mCoarseReferencePlane;
+        mCoarseReferencePlane = coarsePlane;
+        mHasReferencePlane = true;
+    }
+
+    public void close() {
+        if (mRowBandExecutor != null) {
+            mRowBandExecutor.shutdown();
+        }
+    }
+
+
+    private int diffPlane(byte[] referencePlane, int pixelValueDiffThreshold,
+                          int pixelNumberDiffThreshold, TileGrid grid, int[] tileCounts) {
+        int diffNb;
+
+        mDiffReferencePlane = referencePlane;
+
+        if (mRowBandExecutor == null) {
+            diffNb = diffRows(0, mHeight, pixelValueDiffThreshold, pixelNumberDiffThreshold, grid,
+                    tileCounts);
+
+            if (pixelNumberDiffThreshold > 0 && diffNb >= pixelNumberDiffThreshold) {
+                mCountEarlyExitsNb++;
+            }
+
+            return diffNb;
+        }
+
+        // Bands only read the planes and write their own tile counts, merged once they are done
+        mBandPixelValueDiffThreshold = pixelValueDiffThreshold;
+        mBandGrid = grid;
+        diffNb = mRowBandExecutor.run(mDiffBandProcessor);
+
+        for (int[] bandTileCounts : mBandTileCounts) {
+            for (int tile = 0; tile < tileCounts.length; ++tile) {
+                tileCounts[tile] += bandTileCounts[tile];
+            }
+        }
+
+        return diffNb;
+    }
+
+    // Adds the changed pixels of rows [rowStart; rowEnd[ to tileCounts and returns their number.
+    // If pixelNumberDiffThreshold > 0, stops at the end of the row where it is reached.
+    private int diffRows(int rowStart, int rowEnd, int pixelValueDiffThreshold,
+                         int pixelNumberDiffThreshold, TileGrid grid, int[] tileCounts) {
+        byte[] plane = mDiffPlane;
+        byte[] referencePlane = mDiffReferencePlane;
+        int diffNb = 0;
+
+        for (int y = rowStart; y < rowEnd; ++y) {
+            int rowOffset = y * mWidth;
+            int tileRowOffset = grid.getTileRow(y) * grid.getColumnsNb();
+
+            for (int tileColumn = 0; tileColumn < grid.getColumnsNb(); ++tileColumn) {
+                int tile = tileRowOffset + tileColumn;
+                int spanEnd = rowOffset + grid.getColumnStart(tileColumn + 1);
+                int spanDiffNb = 0;
+
+                if (grid.isMasked(tile)) {
+                    continue;
+                }
+
+                for (int i = rowOffset + grid.getColumnStart(tileColumn); i < spanEnd; ++i) {
+                    int diff = Math.abs((plane[i] & 0xFF) - (referencePlane[i] & 0xFF));
+
+                    if (diff >= pixelValueDiffThreshold) {
+                        spanDiffNb++;
+                    }
+                }
+
+                tileCounts[tile] += spanDiffNb;
+                diffNb += spanDiffNb;
+            }
+
+            // Checked once per row to keep the inner loop branch-free
+            if (pixelNumberDiffThreshold > 0 && diffNb >= pixelNumberDiffThreshold) {
+                return diffNb;
+            }
+        }
+
+        return diffNb;
+    }
+
+    // Box-downsamples the (blurred) plane by COARSE_SCALE into the coarse plane
+    private void buildCoarseLevel(byte[] plane) {
+        for (int y = 0; y < mCoarseHeight; ++y) {
+            int rowStart = mCoarseBoxRowStarts[y];
+            int rowEnd = mCoarseBoxRowStarts[y + 1];
+
+            for (int x = 0; x < mCoarseWidth; ++x) {
+                int columnStart = mCoarseBoxColumnStarts[x];
+                int columnEnd = mCoarseBoxColumnStarts[x + 1];
+                int sum = 0;
+
+                for (int planeY = rowStart; planeY < rowEnd; ++planeY) {
+                    for (int planeX = columnStart; planeX < columnEnd; ++planeX) {
+                        sum += plane[planeY * mWidth + planeX] & 0xFF;
+                    }
+                }
+
+                mCoarsePlane[y * mCoarseWidth + x] = (byte)(sum / ((rowEnd - rowStart) *
+                        (columnEnd - columnStart)));
+            }
+        }
+    }
+
+    // Averaging dilutes small changes, so the coarse level uses a proportionally lower threshold
+    private boolean hasCoarseLevelChanged(int pixelValueDiffThreshold) {
+        int coarseThreshold = Math.max(pixelValueDiffThreshold / COARSE_SCALE, 1);
+
+        for (int i = 0; i < mCoarsePlane.length; ++i) {
+            int diff = Math.abs((mCoarseReferencePlane[i] & 0xFF) - (mCoarsePlane[i] & 0xFF));
+
+            if (diff >= coarseThreshold) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void blurLine(byte[] in, byte[] out, int offset, int step, int length) {
+        int windowSize = 2 * mBlurRadius + 1;
+        int sum = 0;
+
+        // Edges are clamped, so the window always holds windowSize samples
+        for (int i = -mBlurRadius; i <= mBlurRadius; ++i) {
+            sum += in[offset + clamp(i, length) * step] & 0xFF;
+        }
+
+        for (int i = 0; i < length; ++i) {
+            out[offset + i * step] = (byte)(sum / windowSize);
+
+            sum += in[offset + clamp(i + mBlurRadius + 1, length) * step] & 0xFF;
+            sum -= in[offset + clamp(i - mBlurRadius, length) * step] & 0xFF;
+        }
+    }
+
+
+    private static int clamp(int i, int length) {
+        return i < 0 ? 0 : (i >= length ? length - 1 : i);
+    }
+
+    private static int[] computeBoxStarts(int inputLength, int length) {
+        int[] boxStarts = new int[length + 1];
+
+        for (int i = 0; i <= length; ++i) {
+            boxStarts[i] = (int)((long)i * inputLength / length);
+        }
+
+        return boxStarts;
+    }
+}
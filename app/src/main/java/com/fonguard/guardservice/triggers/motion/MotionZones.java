@@ -0,0 +1,94 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.triggers.motion;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Groups the tiles of a TileGrid in named zones, each with its own changed pixels threshold. Tiles
+// that are not part of any zone belong to the default zone, which uses the global threshold.
+public class MotionZones {
+    public static final String DEFAULT_ZONE_ID = "default";
+
+    private final int[] mTileZones;
+    private final List<String> mZoneIds = new ArrayList<>();
+    private final List<Integer> mZoneThresholds = new ArrayList<>();
+    private int[] mZoneCounts;
+
+
+    public MotionZones(int tilesNb) {
+        mTileZones = new int[tilesNb];
+
+        // The default zone is zone 0, its threshold is given at evaluation time
+        mZoneIds.add(DEFAULT_ZONE_ID);
+        mZoneThresholds.add(0);
+        mZoneCounts = new int[1];
+    }
+
+
+    // threshold <= 0 means the global threshold. Returns false if a tile index is out of the grid.
+    public boolean addZone(String id, List<Integer> tiles, int threshold) {
+        int zone = mZoneIds.size();
+        boolean areTilesValid = true;
+
+        mZoneIds.add(id);
+        mZoneThresholds.add(threshold);
+        mZoneCounts = new int[mZoneIds.size()];
+
+        for (int tile : tiles) {
+            if (tile < 0 || tile >= mTileZones.length) {
+                areTilesValid = false;
+                continue;
+            }
+
+            mTileZones[tile] = zone;
+        }
+
+        return areTilesValid;
+    }
+
+    public int getZonesNb() {
+        return mZoneIds.size();
+    }
+
+    // Adds the IDs of the zones whose changed pixels reach their threshold to triggeredZoneIds
+    public boolean findTriggeredZones(int[] tileCounts, int defaultThreshold,
+                                      List<String> triggeredZoneIds) {
+        boolean isTriggered = false;
+
+        for (int zone = 0; zone < mZoneCounts.length; ++zone) {
+            mZoneCounts[zone] = 0;
+        }
+
+        for (int tile = 0; tile < tileCounts.length; ++tile) {
+            mZoneCounts[mTileZones[tile]] += tileCounts[tile];
+        }
+
+        for (int zone = 0; zone < mZoneCounts.length; ++zone) {
+            int threshold = mZoneThresholds.get(zone) > 0 ? mZoneThresholds.get(zone) :
+                    defaultThreshold;
+
+            if (mZoneCounts[zone] >= threshold) {
+                triggeredZoneIds.add(mZoneIds.get(zone));
+                isTriggered = true;
+            }
+        }
+
+        return isTriggered;
+    }
+}
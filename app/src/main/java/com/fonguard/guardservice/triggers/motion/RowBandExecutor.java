@@ -0,0 +1,152 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.triggers.motion;
+
+import android.util.Log;
+
+// Splits the rows of a frame in bands processed in parallel: the first band on the calling thread,
+// the others on dedicated worker threads. Bands must only write their own partial results, which
+// are merged by the caller once run() has returned.
+// Workers are woken through a generation counter on the executor monitor rather than by submitting
+// tasks to a pool, so running a frame allocates nothing.
+public class RowBandExecutor {
+    private static final String LOG_TAG = RowBandExecutor.class.getName();
+
+    public interface BandProcessor {
+        // Processes rows [rowStart; rowEnd[ and returns the band partial count
+        int processBand(int band, int rowStart, int rowEnd);
+    }
+
+    private final int[] mBandRowStarts;
+    private final int[] mBandCounts;
+    private final Thread[] mWorkers;
+    private BandProcessor mBandProcessor;
+    // Guarded by this
+    private long mGeneration = 0;
+    private int mPendingBandsNb = 0;
+    private boolean mIsShutdown = false;
+
+
+    public RowBandExecutor(int rowsNb, int bandsNb) {
+        mBandRowStarts = new int[bandsNb + 1];
+        mBandCounts = new int[bandsNb];
+        mWorkers = new Thread[bandsNb];
+
+        for (int band = 0; band <= bandsNb; ++band) {
+            mBandRowStarts[band] = (int)((long)band * rowsNb / bandsNb);
+        }
+
+        for (int band = 1; band < bandsNb; ++band) {
+            mWorkers[band] = new Worker(band);
+            mWorkers[band].start();
+        }
+    }
+
+
+    public int getBandsNb() {
+        return mWorkers.length;
+    }
+
+    // Blocks until all the bands are processed and returns the sum of their partial counts
+    public int run(BandProcessor bandProcessor) {
+        int sum;
+
+        synchronized (this) {
+            mBandProcessor = bandProcessor;
+            mPendingBandsNb = mWorkers.length - 1;
+            mGeneration++;
+            notifyAll();
+        }
+
+        sum = bandProcessor.processBand(0, mBandRowStarts[0], mBandRowStarts[1]);
+
+        synchronized (this) {
+            while (mPendingBandsNb > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Log.e(LOG_TAG, "interrupted while waiting for " + mPendingBandsNb +
+                            " row bands");
+                    Thread.currentThread().interrupt();
+                    return sum;
+                }
+            }
+
+            // The monitor orders the workers writes before these reads
+            for (int band = 1; band < mWorkers.length; ++band) {
+                sum += mBandCounts[band];
+            }
+        }
+
+        return sum;
+    }
+
+    public synchronized void shutdown() {
+        mIsShutdown = true;
+        notifyAll();
+    }
+
+
+    private class Worker extends Thread {
+        private final int mBand;
+
+
+        Worker(int band) {
+            super("MotionRowBand-" + band);
+            mBand = band;
+            setDaemon(true);
+        }
+
+
+        @Override
+        public void run() {
+            long processedGeneration = 0;
+            BandProcessor bandProcessor;
+            int count;
+
+            while (true) {
+                synchronized (RowBandExecutor.this) {
+                    while (mGeneration == processedGeneration && !mIsShutdown) {
+                        try {
+                            RowBandExecutor.this.wait();
+                        } catch (InterruptedException e) {
+                            Log.w(LOG_TAG, getName() + " interrupted");
+                            return;
+                        }
+                    }
+
+                    if (mIsShutdown) {
+                        return;
+                    }
+
+                    processedGeneration = mGeneration;
+                    bandProcessor = mBandProcessor;
+                }
+
+                count = bandProcessor.processBand(mBand, mBandRowStarts[mBand],
+                        mBandRowStarts[mBand + 1]);
+
+                synchronized (RowBandExecutor.this) {
+                    mBandCounts[mBand] = count;
+                    mPendingBandsNb--;
+                    RowBandExecutor.this.notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.triggers.motion;
+
+import java.util.Arrays;
+
+// Splits the processing frame in columnsNb x rowsNb tiles, numbered row by row from the top left
+// tile. Changed pixels are counted per tile (in getTilesNb() sized arrays), and the pixels of masked
+// tiles are never read. The grid is immutable once set up, so any thread can use it.
+public class TileGrid {
+    private final int mColumnsNb;
+    private final int mRowsNb;
+    private final int[] mColumnStarts;
+    private final int[] mRowStarts;
+    private final int[] mRowTileRows;
+    private final boolean[] mMaskedTiles;
+
+
+    public TileGrid(int width, int height, int columnsNb, int rowsNb) {
+        mColumnsNb = columnsNb;
+        mRowsNb = rowsNb;
+        mColumnStarts = computeStarts(width, columnsNb);
+        mRowStarts = computeStarts(height, rowsNb);
+        mRowTileRows = new int[height];
+        mMaskedTiles = new boolean[columnsNb * rowsNb];
+
+        for (int tileRow = 0; tileRow < rowsNb; ++tileRow) {
+            Arrays.fill(mRowTileRows, mRowStarts[tileRow], mRowStarts[tileRow + 1], tileRow);
+        }
+    }
+
+
+    public int getColumnsNb() {
+        return mColumnsNb;
+    }
+
+    public int getRowsNb() {
+        return mRowsNb;
+    }
+
+    public int getTilesNb() {
+        return mMaskedTiles.length;
+    }
+
+    // Pixel column where the given tile column starts, tileColumn == getColumnsNb() gives the width
+    public int getColumnStart(int tileColumn) {
+        return mColumnStarts[tileColumn];
+    }
+
+    public int getRowStart(int tileRow) {
+        return mRowStarts[tileRow];
+    }
+
+    public int getTileRow(int y) {
+        return mRowTileRows[y];
+    }
+
+    public boolean isMasked(int tile) {
+        return mMaskedTiles[tile];
+    }
+
+    public boolean setMasked(int tile) {
+        if (tile < 0 || tile >= mMaskedTiles.length) {
+            return false;
+        }
+
+        mMaskedTiles[tile] = true;
+        return true;
+    }
+
+    // Bounding box of the given tiles in fractions of the frame size, as { left, top, right,
+    // bottom }, null if no tile is set
+    public float[] getBoundingBox(boolean[] tiles) {
+        int width = mColumnStarts[mColumnsNb];
+        int height = mRowStarts[mRowsNb];
+        int minColumn = mColumnsNb;
+        int maxColumn = -1;
+        int minRow = mRowsNb;
+        int maxRow = -1;
+
+        for (int tile = 0; tile < tiles.length; ++tile) {
+            if (!tiles[tile]) {
+                continue;
+            }
+
+            minColumn = Math.min(minColumn, tile % mColumnsNb);
+            maxColumn = Math.max(maxColumn, tile % mColumnsNb);
+            minRow = Math.min(minRow, tile / mColumnsNb);
+            maxRow = Math.max(maxRow, tile / mColumnsNb);
+        }
+
+        if (maxColumn < 0) {
+            return null;
+        }
+
+        return new float[] { (float)mColumnStarts[minColumn] / width,
+                (float)mRowStarts[minRow] / height, (float)mColumnStarts[maxColumn + 1] / width,
+                (float)mRowStarts[maxRow + 1] / height };
+    }
+
+    public static int sumTileCounts(int[] tileCounts) {
+        int sum = 0;
+
+        for (int tileCount : tileCounts) {
+            sum += tileCount;
+        }
+
+        return sum;
+    }
+
+
+    private static int[] computeStarts(int length, int partsNb) {
+        int[] starts = new int[partsNb + 1];
+
+        for (int i = 0; i <= partsNb; ++i) {
+            starts[i] = (int)((long)i * length / partsNb);
+        }
+
+        return starts;
+    }
+}
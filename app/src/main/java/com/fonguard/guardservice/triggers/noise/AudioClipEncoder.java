@@ -0,0 +1,163 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.triggers.noise;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Encodes mono PCM samples into an AAC M4A clip with the hardware (or platform) encoder. Clips are
+// short (a few seconds), so they are encoded synchronously on the calling thread. The caller
+// deletes each clip once it is done with it.
+public class AudioClipEncoder {
+    private static final String LOG_TAG = AudioClipEncoder.class.getName();
+
+    private static final String MIME_TYPE = MediaFormat.MIMETYPE_AUDIO_AAC;
+    private static final int CODEC_TIMEOUT_US = 10000;
+    private static final long ENCODE_TIMEOUT_MS = 2000;
+
+    private final File mClipsDirectory;
+    private final int mSampleRateHz;
+    private final int mBitRate;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+
+    public AudioClipEncoder(File clipsDirectory, int sampleRateHz, int bitRate) {
+        mClipsDirectory = clipsDirectory;
+        mSampleRateHz = sampleRateHz;
+        mBitRate = bitRate;
+    }
+
+
+    // Returns null if the clip could not be encoded
+    public File encode(short[] samples, int samplesNb) {
+        MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, mSampleRateHz, 1);
+        long deadlineMs = SystemClock.elapsedRealtime() + ENCODE_TIMEOUT_MS;
+        MediaCodec encoder = null;
+        MediaMuxer muxer = null;
+        File clip;
+        int trackIndex = -1;
+        int inputOffset = 0;
+        boolean isInputDone = false;
+        boolean isMuxerStarted = false;
+        boolean success = false;
+
+        if (!mClipsDirectory.isDirectory() && !mClipsDirectory.mkdirs()) {
+            Log.e(LOG_TAG, "could not create clips directory " + mClipsDirectory);
+            return null;
+        }
+
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE,
+                MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
+        clip = new File(mClipsDirectory, "noise-" + SystemClock.elapsedRealtime() + ".m4a");
+
+        try {
+            encoder = MediaCodec.createEncoderByType(MIME_TYPE);
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            muxer = new MediaMuxer(clip.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            encoder.start();
+
+            while (SystemClock.elapsedRealtime() < deadlineMs) {
+                int outputIndex;
+
+                if (!isInputDone) {
+                    int inputIndex = encoder.dequeueInputBuffer(CODEC_TIMEOUT_US);
+
+                    if (inputIndex >= 0) {
+                        ByteBuffer input = encoder.getInputBuffer(inputIndex);
+                        int chunk = Math.min(samplesNb - inputOffset, input.remaining() / 2);
+                        long presentationTimeUs = inputOffset * 1000000L / mSampleRateHz;
+
+                        input.order(ByteOrder.nativeOrder()).asShortBuffer().put(samples,
+                                inputOffset, chunk);
+                        inputOffset += chunk;
+                        isInputDone = inputOffset >= samplesNb;
+                        encoder.queueInputBuffer(inputIndex, 0, chunk * 2, presentationTimeUs,
+                                isInputDone ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+                    }
+                }
+
+                outputIndex = encoder.dequeueOutputBuffer(mBufferInfo, CODEC_TIMEOUT_US);
+                if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    trackIndex = muxer.addTrack(encoder.getOutputFormat());
+                    muxer.start();
+                    isMuxerStarted = true;
+                } else if (outputIndex >= 0) {
+                    ByteBuffer output = encoder.getOutputBuffer(outputIndex);
+
+                    // The codec config is already part of the format given to the muxer
+                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                        mBufferInfo.size = 0;
+                    }
+
+                    if (mBufferInfo.size > 0 && isMuxerStarted && output != null) {
+                        output.position(mBufferInfo.offset);
+                        output.limit(mBufferInfo.offset + mBufferInfo.size);
+                        muxer.writeSampleData(trackIndex, output, mBufferInfo);
+                    }
+                    encoder.releaseOutputBuffer(outputIndex, false);
+
+                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        success = isMuxerStarted;
+                        break;
+                    }
+                }
+            }
+        } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+            Log.e(LOG_TAG, "could not encode noise clip: " + e.getMessage());
+        }
+
+        if (encoder != null) {
+            try {
+                encoder.stop();
+            } catch (IllegalStateException e) {
+                Log.w(LOG_TAG, "could not stop audio encoder: " + e.getMessage());
+            }
+            encoder.release();
+        }
+
+        if (muxer != null) {
+            try {
+                if (isMuxerStarted) {
+                    muxer.stop();
+                }
+            } catch (IllegalStateException e) {
+                Log.w(LOG_TAG, "could not finalize noise clip: " + e.getMessage());
+                success = false;
+            }
+            muxer.release();
+        }
+
+        if (!success) {
+            Log.w(LOG_TAG, "noise clip " + clip.getName() + " could not be recorded");
+            clip.delete();
+            return null;
+        }
+
+        return clip;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.triggers.noise;
+
+// Fixed-size ring of PCM samples keeping the most recent audio. The samples array is allocated
+// once, writing never allocates.
+public class AudioRingBuffer {
+    private final short[] mSamples;
+    private int mNextSample = 0;
+    private int mSamplesNb = 0;
+
+
+    public AudioRingBuffer(int capacity) {
+        mSamples = new short[capacity];
+    }
+
+
+    public int getCapacity() {
+        return mSamples.length;
+    }
+
+    public int getSamplesNb() {
+        return mSamplesNb;
+    }
+
+
+    public void write(short[] samples, int samplesNb) {
+        int offset = 0;
+
+        while (offset < samplesNb) {
+            int chunk = Math.min(samplesNb - offset, mSamples.length - mNextSample);
+
+            System.arraycopy(samples, offset, mSamples, mNextSample, chunk);
+            mNextSample = (mNextSample + chunk) % mSamples.length;
+            offset += chunk;
+        }
+
+        mSamplesNb = Math.min(mSamplesNb + samplesNb, mSamples.length);
+    }
+
+    // Copies the recorded samples from the oldest to the newest, returns the number copied
+    public int copyTo(short[] destination) {
+        int start = (mNextSample - mSamplesNb + mSamples.length) % mSamples.length;
+        int firstChunk = Math.min(mSamplesNb, mSamples.length - start);
+
+        System.arraycopy(mSamples, start, destination, 0, firstChunk);
+        System.arraycopy(mSamples, 0, destination, firstChunk, mSamplesNb - firstChunk);
+        return mSamplesNb;
+    }
+
+    public void clear() {
+        mNextSample = 0;
+        mSamplesNb = 0;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.triggers.noise;
+
+// Loudness of a block of PCM samples: broadband RMS, and RMS of a frequency band computed from
+// the spectrum of the Hann-windowed block. All buffers are allocated once.
+public class NoiseAnalyzer {
+    private final RealFft mFft;
+    private final float[] mWindow;
+    private final float[] mSpectrum;
+    private final int mBandStartBin;
+    private final int mBandEndBin;
+    // Mean square of the window, the band energy is scaled back by it
+    private final float mWindowMeanSquare;
+
+
+    public NoiseAnalyzer(int blockSize, int sampleRateHz, int bandLowHz, int bandHighHz) {
+        float windowSquaresSum = 0;
+
+        mFft = new RealFft(blockSize);
+        mWindow = new float[blockSize];
+        mSpectrum = new float[blockSize];
+
+        for (int i = 0; i < blockSize; i++) {
+            mWindow[i] = (float)(0.5 - 0.5 * Math.cos(2 * Math.PI * i / blockSize));
+            windowSquaresSum += mWindow[i] * mWindow[i];
+        }
+        mWindowMeanSquare = windowSquaresSum / blockSize;
+
+        // DC and Nyquist bins are left out, they are not part of any useful band
+        mBandStartBin = Math.max(1, (int)((long)bandLowHz * blockSize / sampleRateHz));
+        mBandEndBin = Math.min(blockSize / 2 - 1,
+                (int)((long)bandHighHz * blockSize / sampleRateHz));
+    }
+
+
+    public int getBlockSize() {
+        return mSpectrum.length;
+    }
+
+    public float computeRms(short[] block) {
+        long squaresSum = 0;
+
+        for (int i = 0; i < mSpectrum.length; i++) {
+            squaresSum += block[i] * block[i];
+        }
+
+        return (float)Math.sqrt((double)squaresSum / mSpectrum.length);
+    }
+
+    public float computeBandRms(short[] block) {
+        int blockSize = mSpectrum.length;
+        double bandEnergy = 0;
+
+        for (int i = 0; i < blockSize; i++) {
+            mSpectrum[i] = block[i] * mWindow[i];
+        }
+
+        mFft.transform(mSpectrum);
+
+        for (int k = mBandStartBin; k <= mBandEndBin; k++) {
+            float re = mSpectrum[2 * k];
+            float im = mSpectrum[2 * k + 1];
+
+            bandEnergy += re * re + im * im;
+        }
+
+        // Parseval: the bins of the one-sided spectrum hold half of the energy of their frequency
+        return (float)Math.sqrt(2 * bandEnergy / ((double)blockSize * blockSize) /
+                mWindowMeanSquare);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.triggers.noise;
+
+// In-place FFT of a real signal of N samples (N a power of 2). The N real samples are transformed
+// as N/2 complex values, then split into the N/2 + 1 bins of the real spectrum. Twiddle factors and
+// the bit reversal permutation are computed once.
+// Output layout: data[0] = X[0], data[1] = X[N/2] (both real), then (data[2k], data[2k + 1]) =
+// (Re, Im) of X[k] for 0 < k < N/2.
+public class RealFft {
+    private final int mSize;
+    private final float[] mCos;
+    private final float[] mSin;
+    private final int[] mBitReversed;
+
+
+    public RealFft(int size) {
+        int complexSize = size / 2;
+        int bitsNb = Integer.numberOfTrailingZeros(complexSize);
+
+        if (size < 4 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("FFT size must be a power of 2 (>= 4)");
+        }
+
+        mSize = size;
+        mCos = new float[complexSize];
+        mSin = new float[complexSize];
+        for (int k = 0; k < complexSize; k++) {
+            mCos[k] = (float)Math.cos(2 * Math.PI * k / size);
+            mSin[k] = (float)Math.sin(2 * Math.PI * k / size);
+        }
+
+        mBitReversed = new int[complexSize];
+        for (int i = 0; i < complexSize; i++) {
+            mBitReversed[i] = bitsNb == 0 ? 0 : Integer.reverse(i) >>> (32 - bitsNb);
+        }
+    }
+
+
+    public int getSize() {
+        return mSize;
+    }
+
+    public void transform(float[] data) {
+        int complexSize = mSize / 2;
+        float z0Re;
+        float z0Im;
+
+        transformComplex(data, complexSize);
+
+        // X[0] and X[N/2] only have a real part, they share the first complex slot
+        z0Re = data[0];
+        z0Im = data[1];
+        data[0] = z0Re + z0Im;
+        data[1] = z0Re - z0Im;
+
+        // Bins k and N/2 - k are computed from the same pair of complex values
+        for (int k = 1; k <= complexSize / 2; k++) {
+            int j = complexSize - k;
+            float zkRe = data[2 * k];
+            float zkIm = data[2 * k + 1];
+            float zjRe = data[2 * j];
+            float zjIm = data[2 * j + 1];
+            // Even part (Z[k] + conj(Z[j])) / 2, odd part (Z[k] - conj(Z[j])) / 2i
+            float evenRe = (zkRe + zjRe) / 2;
+            float evenIm = (zkIm - zjIm) / 2;
+            float oddRe = (zkIm + zjIm) / 2;
+            float oddIm = -(zkRe - zjRe) / 2;
+            // Twiddle e^(-2 pi i k / N)
+            float wRe = mCos[k];
+            float wIm = -mSin[k];
+            float twiddledRe = wRe * oddRe - wIm * oddIm;
+            float twiddledIm = wRe * oddIm + wIm * oddRe;
+
+            // X[j] = conj(even - twiddled odd)
+            data[2 * j] = evenRe - twiddledRe;
+            data[2 * j + 1] = -(evenIm - twiddledIm);
+            data[2 * k] = evenRe + twiddledRe;
+            data[2 * k + 1] = evenIm + twiddledIm;
+        }
+    }
+
+
+    private void transformComplex(float[] data, int complexSize) {
+        for (int i = 0; i < complexSize; i++) {
+            int j = mBitReversed[i];
+
+            if (j > i) {
+                float re = data[2 * i];
+                float im = data[2 * i + 1];
+
+                data[2 * i] = data[2 * j];
+                data[2 * i + 1] = data[2 * j + 1];
+                data[2 * j] = re;
+                data[2 * j + 1] = im;
+            }
+        }
+
+        for (int length = 2; length <= complexSize; length <<= 1) {
+            int half = length / 2;
+            int twiddleStep = mSize / length;
+
+            for (int start = 0; start < complexSize; start += length) {
+                for (int m = 0; m < half; m++) {
+                    int a = 2 * (start + m);
+                    int b = 2 * (start + m + half);
+                    float wRe = mCos[m * twiddleStep];
+                    float wIm = -mSin[m * twiddleStep];
+                    float re = wRe * data[b] - wIm * data[b + 1];
+                    float im = wRe * data[b + 1] + wIm * data[b];
+
+                    data[b] = data[a] - re;
+                    data[b + 1] = data[a + 1] - im;
+                    data[a] += re;
+                    data[a + 1] += im;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.triggers.vibration;
+
+// Fixed-size ring keeping the most recent samples of a signal, allocated once.
+public class SampleRingBuffer {
+    private final float[] mSamples;
+    private int mNextSample = 0;
+    private int mSamplesNb = 0;
+
+
+    public SampleRingBuffer(int capacity) {
+        mSamples = new float[capacity];
+    }
+
+
+    public int getCapacity() {
+        return mSamples.length;
+    }
+
+    public void write(float sample) {
+        mSamples[mNextSample] = sample;
+        mNextSample = (mNextSample + 1) % mSamples.length;
+        mSamplesNb = Math.min(mSamplesNb + 1, mSamples.length);
+    }
+
+    // Copies the recorded samples from the oldest to the newest
+    public float[] copySamples() {
+        float[] samples = new float[mSamplesNb];
+        int start = (mNextSample - mSamplesNb + mSamples.length) % mSamples.length;
+        int firstChunk = Math.min(mSamplesNb, mSamples.length - start);
+
+        System.arraycopy(mSamples, start, samples, 0, firstChunk);
+        System.arraycopy(mSamples, 0, samples, firstChunk, mSamplesNb - firstChunk);
+        return samples;
+    }
+
+    public void clear() {
+        mNextSample = 0;
+        mSamplesNb = 0;
+    }
+}
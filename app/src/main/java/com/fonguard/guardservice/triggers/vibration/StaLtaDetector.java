@@ -0,0 +1,72 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.triggers.vibration;
+
+import java.util.Arrays;
+
+// Short-term average / long-term average ratio of a signal (e.g. the absolute acceleration). Both
+// averages are running sums over fixed-size rings of primitive samples, updating them costs O(1)
+// and never allocates. The ratio is 0 until the long-term window is full.
+public class StaLtaDetector {
+    private final float[] mShortTermSamples;
+    private final float[] mLongTermSamples;
+    // Lowest long-term average, keeps the ratio meaningful on a perfectly still device
+    private final float mMinLongTermAverage;
+    private double mShortTermSum;
+    private double mLongTermSum;
+    private int mShortTermNext;
+    private int mLongTermNext;
+    private int mLongTermSamplesNb;
+
+
+    public StaLtaDetector(int shortTermSamplesNb, int longTermSamplesNb,
+                          float minLongTermAverage) {
+        mShortTermSamples = new float[shortTermSamplesNb];
+        mLongTermSamples = new float[longTermSamplesNb];
+        mMinLongTermAverage = minLongTermAverage;
+    }
+
+
+    public float update(float value) {
+        mShortTermSum += value - mShortTermSamples[mShortTermNext];
+        mShortTermSamples[mShortTermNext] = value;
+        mShortTermNext = (mShortTermNext + 1) % mShortTermSamples.length;
+
+        mLongTermSum += value - mLongTermSamples[mLongTermNext];
+        mLongTermSamples[mLongTermNext] = value;
+        mLongTermNext = (mLongTermNext + 1) % mLongTermSamples.length;
+
+        if (mLongTermSamplesNb < mLongTermSamples.length) {
+            mLongTermSamplesNb++;
+            return 0;
+        }
+
+        return (float)(mShortTermSum / mShortTermSamples.length /
+                Math.max(mLongTermSum / mLongTermSamples.length, mMinLongTermAverage));
+    }
+
+    public void reset() {
+        Arrays.fill(mShortTermSamples, 0);
+        Arrays.fill(mLongTermSamples, 0);
+        mShortTermSum = 0;
+        mLongTermSum = 0;
+        mShortTermNext = 0;
+        mLongTermNext = 0;
+        mLongTermSamplesNb = 0;
+    }
+}
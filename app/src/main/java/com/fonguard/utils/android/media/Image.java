@@ -0,0 +1,53 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.utils.android.media;
+
+import java.nio.ByteBuffer;
+
+public class Image {
+    public static void toNv21(android.media.Image image, byte[] nv21) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        android.media.Image.Plane[] planes = image.getPlanes();
+        int offset = 0;
+
+        offset = copyPlane(planes[0], width, height, nv21, offset, 1);
+        // NV21 interleaves the chroma samples as V then U
+        copyPlane(planes[2], width / 2, height / 2, nv21, offset, 2);
+        copyPlane(planes[1], width / 2, height / 2, nv21, offset + 1, 2);
+    }
+
+
+    private static int copyPlane(android.media.Image.Plane plane, int width, int height,
+                                 byte[] out, int offset, int outPixelStride) {
+        ByteBuffer buffer = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+
+        for (int y = 0; y < height; ++y) {
+            int rowOffset = y * rowStride;
+
+            for (int x = 0; x < width; ++x) {
+                out[offset] = buffer.get(rowOffset + x * pixelStride);
+                offset += outPixelStride;
+            }
+        }
+
+        return offset;
+    }
+}
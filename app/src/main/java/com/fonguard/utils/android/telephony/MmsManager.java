@@ -19,7 +19,6 @@ package com.fonguard.utils.android.telephony;
 
 import android.content.Context;
 import android.database.Cursor;
-import android.graphics.Bitmap;
 import android.net.ConnectivityManager;
 import android.net.Network;
 import android.net.NetworkCapabilities;
@@ -58,7 +57,6 @@ public class MmsManager {
     private static final String LOG_TAG = MmsManager.class.getName();
 
     private static final String CONTENT_TYPE_TEXT = "text/plain";
-    private static final String CONTENT_TYPE_JPEG = "image/jpeg";
 
     private static final String[] APN_PROJECTION = {
             Telephony.Carriers.TYPE,
@@ -68,7 +66,8 @@ public class MmsManager {
     };
 
 
-    public static void sendMmsAsync(Context context, String recipient, String text, Bitmap img) {
+    public static void sendMmsAsync(Context context, String recipient, String text, byte[] img,
+                                    String imgContentType) {
         final ConnectivityManager connManager =
                 (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
         NetworkRequest.Builder networkRequestBuilder = new NetworkRequest.Builder();
@@ -84,7 +83,7 @@ public class MmsManager {
                 super.onAvailable(network);
 
                 Apn preferredApn = getPreferredApn(context);
-                byte[] mmsPdu = buildMmsPdu(context, recipient, text, img);
+                byte[] mmsPdu = buildMmsPdu(context, recipient, text, img, imgContentType);
 
                 sendMmsHttpRequest(preferredApn, mmsPdu);
             }
@@ -112,7 +111,8 @@ public class MmsManager {
         }
     }
 
-    private static byte[] buildMmsPdu(Context context, String recipient, String text, Bitmap img) {
+    private static byte[] buildMmsPdu(Context context, String recipient, String text, byte[] img,
+                                      String imgContentType) {
         SendReq sendReq = new SendReq();
         PduBody pduBody = new PduBody();
         PduPart textPart = new PduPart();
@@ -125,12 +125,10 @@ public class MmsManager {
 
         if (img != null) {
             PduPart imgPart = new PduPart();
-            byte[] imgBytes = com.fonguard.utils.android.graphics.Bitmap.toBytes(img,
-                    Bitmap.CompressFormat.JPEG);
 
             imgPart.setName("Image".getBytes());
-            imgPart.setContentType(CONTENT_TYPE_JPEG.getBytes());
-            imgPart.setData(imgBytes);
+            imgPart.setContentType(imgContentType.getBytes());
+            imgPart.setData(img);
 
             pduBody.addPart(imgPart);
         }
@@ -28,9 +28,14 @@ import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.view.Surface;
 
@@ -39,6 +44,7 @@ import androidx.core.content.ContextCompat;
 
 import com.fonguard.utils.java.Collections;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -50,17 +56,40 @@ public class Camera2Wrapper {
         public boolean IsFrontCamera;
         public boolean IsBackCamera;
         public Size[] AvailableOutputSizes;
+        public Size[] AvailableJpegOutputSizes;
+        public Range<Integer>[] AvailableFpsRanges;
     }
 
     public interface CameraClosedListener {
         void onCameraClosed();
     }
 
+    public interface CaptureFailedListener {
+        void onCaptureFailed();
+    }
+
+    public interface StillCapturedListener {
+        void onStillCaptured(byte[] jpeg);
+    }
+
     private CameraManager mCameraManager;
     private ContextWrapper mContextWrapper;
     private CameraDevice mOpenCameraDevice;
+    // The camera can be stopped while it is still opening (e.g. short standby bursts), the close
+    // is then done as soon as it is opened
+    private boolean mIsOpening = false;
+    private boolean mIsCloseRequested = false;
+    // Characteristics do not change, they are only queried once
+    private List<CameraCharacteristicsWrapper> mCameras;
     private CameraCaptureSession mCameraCaptureSession;
     private CameraClosedListener mCameraClosedListener;
+    private CaptureFailedListener mCaptureFailedListener;
+    private StillCapturedListener mStillCapturedListener;
+    private ImageReader mStillImageReader;
+    private List<Surface> mRepeatingTargets;
+    private Surface mRepeatingExtraTarget;
+    // null keeps the frame rate of the preview template
+    private Range<Integer> mRepeatingFpsRange;
 
     public Camera2Wrapper(ContextWrapper contextWrapper) {
         mContextWrapper = contextWrapper;
@@ -68,49 +97,85 @@ public class Camera2Wrapper {
     }
 
 
-    public boolean startCaptureAsync(String cameraId, final List<Surface> targets) {
-        if (mOpenCameraDevice != null) {
+    // onDemandTargets are part of the capture session but only receive frames from captureOnceAsync
+    // stillCaptureSize enables the JPEG output used by captureStillAsync, null disables it
+    public boolean startCaptureAsync(String cameraId, final List<Surface> targets,
+                                     final List<Surface> onDemandTargets, Size stillCaptureSize) {
+        final List<Surface> sessionTargets = new ArrayList<>(targets);
+
+        sessionTargets.addAll(onDemandTargets);
+
+        if (isOpen()) {
             return false;
         }
 
+        mRepeatingTargets = targets;
+        mRepeatingExtraTarget = null;
+
         if (ContextCompat.checkSelfPermission(mContextWrapper, Manifest.permission.CAMERA) !=
                 PackageManager.PERMISSION_GRANTED) {
             return false;
         }
 
+        if (stillCaptureSize != null) {
+            mStillImageReader = ImageReader.newInstance(stillCaptureSize.getWidth(),
+                    stillCaptureSize.getHeight(), ImageFormat.JPEG, 1);
+            mStillImageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    Image image = reader.acquireNextImage();
+                    ByteBuffer jpegBuffer;
+                    byte[] jpeg;
+
+                    if (image == null) {
+                        return;
+                    }
+
+                    // The JPEG is encoded by the camera HAL, it only needs to be copied out
+                    jpegBuffer = image.getPlanes()[0].getBuffer();
+                    jpeg = new byte[jpegBuffer.remaining()];
+                    jpegBuffer.get(jpeg);
+                    image.close();
+
+                    if (mStillCapturedListener != null) {
+                        mStillCapturedListener.onStillCaptured(jpeg);
+                    }
+                }
+            }, null);
+            sessionTargets.add(mStillImageReader.getSurface());
+        }
+
+        mIsOpening = true;
+        mIsCloseRequested = false;
+
         try {
             mCameraManager.openCamera(cameraId, new CameraDevice.StateCallback() {
                 @Override
                 public void onOpened(@NonNull CameraDevice camera) {
+                    mIsOpening = false;
                     mOpenCameraDevice = camera;
 
                     Log.i(LOG_TAG, "camera " + camera.getId() + " opened");
 
+                    if (mIsCloseRequested) {
+                        camera.close();
+                        return;
+                    }
+
                     try {
-                        mOpenCameraDevice.createCaptureSession(targets, new CameraCaptureSession.StateCallback() {
+                        mOpenCameraDevice.createCaptureSession(sessionTargets, new CameraCaptureSession.StateCallback() {
                             @Override
                             public void onConfigured(@NonNull CameraCaptureSession session) {
                                 Log.i(LOG_TAG, "capture session of camera " +
                                         session.getDevice().getId() + " configured");
 
                                 // Prevent restarting the capture as soon as it has finished
-                                if (mOpenCameraDevice == null) {
+                                if (mOpenCameraDevice == null || mIsCloseRequested) {
                                     return;
                                 }
 
-                                try {
-                                    CaptureRequest.Builder captureRequestBuilder = session
-                                            .getDevice()
-                                            .createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-
-                                    for (Surface target : targets) {
-                                        captureRequestBuilder.addTarget(target);
-                                    }
-
-                                    session.setRepeatingRequest(captureRequestBuilder.build(), null, null);
+                                if (setRepeatingRequest(session)) {
                                     mCameraCaptureSession = session;
-                                } catch (CameraAccessException e) {
-                                    Log.e(LOG_TAG, e.getMessage());
                                 }
                             }
 
@@ -120,7 +185,9 @@ public class Camera2Wrapper {
                                         session.getDevice().getId() + " closed");
 
                                 mCameraCaptureSession = null;
-                                mOpenCameraDevice.close();
+                                if (mOpenCameraDevice != null) {
+                                    mOpenCameraDevice.close();
+                                }
                             }
 
                             @Override
@@ -138,6 +205,9 @@ public class Camera2Wrapper {
                 public void onClosed(@NonNull CameraDevice camera) {
                     Log.i(LOG_TAG, "camera " + camera.getId() + " closed");
                     mOpenCameraDevice = null;
+                    mCameraCaptureSession = null;
+                    mIsCloseRequested = false;
+                    closeStillImageReader();
 
                     if (mCameraClosedListener != null) {
                         mCameraClosedListener.onCameraClosed();
@@ -147,41 +217,116 @@ public class Camera2Wrapper {
                 @Override
                 public void onDisconnected(@NonNull CameraDevice camera) {
                     Log.i(LOG_TAG, "camera " + camera.getId() + " disconnected");
-                    mOpenCameraDevice = null;
-                    mCameraCaptureSession = null;
-
-                    if (mCameraClosedListener != null) {
-                        mCameraClosedListener.onCameraClosed();
-                    }
+                    // The listener is notified by onClosed()
+                    mIsOpening = false;
+                    camera.close();
                 }
 
                 @Override
                 public void onError(@NonNull CameraDevice camera, int error) {
                     Log.e(LOG_TAG, "camera " + camera.getId() + " error: " + error);
-                    mOpenCameraDevice = null;
+                    mIsOpening = false;
+                    camera.close();
                 }
             }, null);
-        } catch (CameraAccessException e) {
+        } catch (CameraAccessException | SecurityException e) {
             Log.e(LOG_TAG, e.getMessage());
+            mIsOpening = false;
+            closeStillImageReader();
             return false;
         }
 
         return true;
     }
 
+    // Closing the device directly also closes its session and is faster than closing the session
+    // first. Can be called while the camera is opening.
     public void stopCapture() {
-        mCameraCaptureSession.close();
+        if (mOpenCameraDevice != null) {
+            mOpenCameraDevice.close();
+        } else if (mIsOpening) {
+            mIsCloseRequested = true;
+        }
+    }
+
+    public boolean captureOnceAsync(Surface target, int template, Handler handler) {
+        CaptureRequest.Builder captureRequestBuilder;
+
+        if (!isCapturing()) {
+            return false;
+        }
+
+        try {
+            captureRequestBuilder = mOpenCameraDevice.createCaptureRequest(template);
+            captureRequestBuilder.addTarget(target);
+        } catch (CameraAccessException e) {
+            Log.e(LOG_TAG, e.getMessage());
+            return false;
+        }
+
+        return capture(captureRequestBuilder, handler);
+    }
+
+    public boolean captureStillAsync(int jpegQuality, Handler handler) {
+        CaptureRequest.Builder captureRequestBuilder;
+
+        if (!isCapturing() || mStillImageReader == null) {
+            return false;
+        }
+
+        try {
+            captureRequestBuilder = mOpenCameraDevice.createCaptureRequest(
+                    CameraDevice.TEMPLATE_STILL_CAPTURE);
+            captureRequestBuilder.addTarget(mStillImageReader.getSurface());
+            captureRequestBuilder.set(CaptureRequest.JPEG_QUALITY, (byte)jpegQuality);
+        } catch (CameraAccessException e) {
+            Log.e(LOG_TAG, e.getMessage());
+            return false;
+        }
+
+        return capture(captureRequestBuilder, handler);
+    }
+
+    // Adds an on-demand target to the repeating request (e.g. a video encoder), null removes it
+    public boolean setRepeatingExtraTarget(Surface extraTarget) {
+        if (!isCapturing()) {
+            return false;
+        }
+
+        mRepeatingExtraTarget = extraTarget;
+        return setRepeatingRequest(mCameraCaptureSession);
+    }
+
+    // Auto exposure target frame rate of the repeating request, null restores the template one.
+    // Kept across capture sessions, the new range applies to the current one if any.
+    public boolean setRepeatingFpsRange(Range<Integer> fpsRange) {
+        mRepeatingFpsRange = fpsRange;
+
+        if (!isCapturing()) {
+            return false;
+        }
+
+        return setRepeatingRequest(mCameraCaptureSession);
     }
 
     public boolean isCapturing() {
         return mCameraCaptureSession != null && mOpenCameraDevice != null;
     }
 
+    // Opening, capturing or not closed yet: onCameraClosed() is still to come
+    public boolean isOpen() {
+        return mIsOpening || mOpenCameraDevice != null;
+    }
+
 
     public List<CameraCharacteristicsWrapper> getCameras() {
         List<CameraCharacteristicsWrapper> cameras = new ArrayList<>();
         String[] cameraIds;
 
+        if (mCameras != null) {
+            return mCameras;
+        }
+
         try {
             cameraIds = mCameraManager.getCameraIdList();
         } catch (CameraAccessException e) {
@@ -223,10 +368,15 @@ public class Camera2Wrapper {
                     CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
             cameraCharacteristicsWrapper.AvailableOutputSizes =
                     streamConfigurationMap.getOutputSizes(ImageFormat.YUV_420_888);
+            cameraCharacteristicsWrapper.AvailableJpegOutputSizes =
+                    streamConfigurationMap.getOutputSizes(ImageFormat.JPEG);
+            cameraCharacteristicsWrapper.AvailableFpsRanges = cameraCharacteristics.get(
+                    CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
 
             cameras.add(cameraCharacteristicsWrapper);
         }
 
+        mCameras = cameras;
         return cameras;
     }
 
@@ -245,6 +395,75 @@ public class Camera2Wrapper {
         mCameraClosedListener = listener;
     }
 
+    public void setCaptureFailedListener(CaptureFailedListener listener) {
+        mCaptureFailedListener = listener;
+    }
+
+    public void setStillCapturedListener(StillCapturedListener listener) {
+        mStillCapturedListener = listener;
+    }
+
+
+    private boolean setRepeatingRequest(CameraCaptureSession session) {
+        try {
+            CaptureRequest.Builder captureRequestBuilder = session
+                    .getDevice()
+                    .createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+
+            for (Surface target : mRepeatingTargets) {
+                captureRequestBuilder.addTarget(target);
+            }
+
+            if (mRepeatingExtraTarget != null) {
+                captureRequestBuilder.addTarget(mRepeatingExtraTarget);
+            }
+
+            if (mRepeatingFpsRange != null) {
+                captureRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE,
+                        mRepeatingFpsRange);
+            }
+
+            session.setRepeatingRequest(captureRequestBuilder.build(), null, null);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.e(LOG_TAG, e.getMessage());
+            return false;
+        }
+
+        return true;
+    }
+
+    private boolean capture(CaptureRequest.Builder captureRequestBuilder, Handler handler) {
+        try {
+            mCameraCaptureSession.capture(captureRequestBuilder.build(),
+                    new CameraCaptureSession.CaptureCallback() {
+                        @Override
+                        public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                                    @NonNull CaptureRequest request,
+                                                    @NonNull CaptureFailure failure) {
+                            Log.w(LOG_TAG, "one-shot capture of camera " +
+                                    session.getDevice().getId() + " failed: " +
+                                    failure.getReason());
+
+                            if (mCaptureFailedListener != null) {
+                                mCaptureFailedListener.onCaptureFailed();
+                            }
+                        }
+                    }, handler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.e(LOG_TAG, e.getMessage());
+            return false;
+        }
+
+        return true;
+    }
+
+    private void closeStillImageReader() {
+        if (mStillImageReader != null) {
+            mStillImageReader.close();
+            mStillImageReader = null;
+        }
+    }
+
 
     public static Size findLowestOutputSizeAvailable(CameraCharacteristicsWrapper camera) {
         Size lowestOutputSizeAvailable = null;
@@ -261,6 +480,21 @@ public class Camera2Wrapper {
         return lowestOutputSizeAvailable;
     }
 
+    public static Size findHighestJpegOutputSizeAvailable(CameraCharacteristicsWrapper camera) {
+        Size highestOutputSizeAvailable = null;
+
+        for (Size outputSize : camera.AvailableJpegOutputSizes) {
+            if (highestOutputSizeAvailable == null ||
+                    (outputSize.getWidth() * outputSize.getHeight()) >
+                            (highestOutputSizeAvailable.getWidth() *
+                                    highestOutputSizeAvailable.getHeight())) {
+                highestOutputSizeAvailable = outputSize;
+            }
+        }
+
+        return highestOutputSizeAvailable;
+    }
+
     public static Size findLowestHDOutputSizeAvailable(CameraCharacteristicsWrapper camera) {
         final int HD_MIN_PIXELS = 1280 * 720;
         Integer lowestDiffWithHdMinPixels = null;
@@ -279,4 +513,52 @@ public class Camera2Wrapper {
 
         return lowestHDOutputSizeAvailable;
     }
+
+    // Range with the lowest maximum frame rate (then the lowest minimum), i.e. the one letting the
+    // sensor idle the most. null if the camera does not list its ranges.
+    public static Range<Integer> findLowestFpsRangeAvailable(CameraCharacteristicsWrapper camera) {
+        Range<Integer> lowestFpsRangeAvailable = null;
+
+        if (camera.AvailableFpsRanges == null) {
+            return null;
+        }
+
+        for (Range<Integer> fpsRange : camera.AvailableFpsRanges) {
+            if (lowestFpsRangeAvailable == null ||
+                    fpsRange.getUpper() < lowestFpsRangeAvailable.getUpper() ||
+                    (fpsRange.getUpper().equals(lowestFpsRangeAvailable.getUpper()) &&
+                            fpsRange.getLower() < lowestFpsRangeAvailable.getLower())) {
+                lowestFpsRangeAvailable = fpsRange;
+            }
+        }
+
+        return lowestFpsRangeAvailable;
+    }
+
+    // Fastest range not going over maxFps (then the one with the highest minimum), the lowest
+    // range if all go over it. null if the camera does not list its ranges.
+    public static Range<Integer> findFpsRangeAvailable(CameraCharacteristicsWrapper camera,
+                                                       int maxFps) {
+        Range<Integer> fpsRangeAvailable = null;
+
+        if (camera.AvailableFpsRanges == null) {
+            return null;
+        }
+
+        for (Range<Integer> fpsRange : camera.AvailableFpsRanges) {
+            if (fpsRange.getUpper() > maxFps) {
+                continue;
+            }
+
+            if (fpsRangeAvailable == null ||
+                    fpsRange.getUpper() > fpsRangeAvailable.getUpper() ||
+                    (fpsRange.getUpper().equals(fpsRangeAvailable.getUpper()) &&
+                            fpsRange.getLower() > fpsRangeAvailable.getLower())) {
+                fpsRangeAvailable = fpsRange;
+            }
+        }
+
+        return fpsRangeAvailable != null ? fpsRangeAvailable :
+                findLowestFpsRangeAvailable(camera);
+    }
 }
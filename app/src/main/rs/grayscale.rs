@@ -2,6 +2,12 @@
 #pragma rs java_package_name(com.fonguard)
 #pragma rs_fp_relaxed
 
+rs_allocation gLumaInput;
+uint32_t gLumaInputWidth;
+uint32_t gLumaInputHeight;
+uint32_t gLumaOutputWidth;
+uint32_t gLumaOutputHeight;
+
 uchar4 RS_KERNEL toGrayscale(uchar4 in)
 {
     float4 inF = rsUnpackColor8888(in);
@@ -9,3 +15,112 @@ uchar4 RS_KERNEL toGrayscale(uchar4 in)
 
     return rsPackColorTo8888(grayscale, grayscale, grayscale, inF.a);
 }
+
+// Box-downsamples the Y plane of gLumaInput (YUV allocation) to the size of the output allocation
+uchar RS_KERNEL downsampleLuma(uint32_t x, uint32_t y)
+{
+    uint32_t xStart = x * gLumaInputWidth / gLumaOutputWidth;
+    uint32_t xEnd = max((x + 1) * gLumaInputWidth / gLumaOutputWidth, xStart + 1);
+    uint32_t yStart = y * gLumaInputHeight / gLumaOutputHeight;
+    uint32_t yEnd = max((y + 1) * gLumaInputHeight / gLumaOutputHeight, yStart + 1);
+    uint32_t sum = 0;
+
+    for (uint32_t inY = yStart; inY < yEnd; ++inY) {
+        for (uint32_t inX = xStart; inX < xEnd; ++inX) {
+            sum += rsGetElementAtYuv_uchar_Y(gLumaInput, inX, inY);
+        }
+    }
+
+    return (uchar)(sum / ((xEnd - xStart) * (yEnd - yStart)));
+}
+
+rs_allocation gDiffInput;
+rs_allocation gDiffReference;
+rs_allocation gDiffTileColumnStarts;
+rs_allocation gDiffSpanMasks;
+int32_t gPixelValueDiffThreshold;
+
+// Counts the pixels that differ between gDiffInput and gDiffReference on row y, within the columns
+// of tile column x (the kernel runs over one element per row span of each tile column), and updates
+// the reference span in place with the input span. Spans of masked tiles are not read at all.
+uint32_t RS_KERNEL countLumaDiffSpan(uint32_t x, uint32_t y)
+{
+    uint32_t spanEnd = rsGetElementAt_uint(gDiffTileColumnStarts, x + 1);
+    uint32_t diffNb = 0;
+
+    if (rsGetElementAt_uchar(gDiffSpanMasks, x, y)) {
+        return 0;
+    }
+
+    for (uint32_t column = rsGetElementAt_uint(gDiffTileColumnStarts, x); column < spanEnd;
+            ++column) {
+        uchar pixel = rsGetElementAt_uchar(gDiffInput, column, y);
+        uchar referencePixel = rsGetElementAt_uchar(gDiffReference, column, y);
+
+        if (abs((int32_t)pixel - (int32_t)referencePixel) >= gPixelValueDiffThreshold) {
+            diffNb++;
+        }
+
+        rsSetElementAt_uchar(gDiffReference, pixel, column, y);
+    }
+
+    return diffNb;
+}
+
+// Same as countLumaDiffSpan for grayscale RGBA allocations (RGB components have the same value)
+uint32_t RS_KERNEL countGrayscaleDiffSpan(uint32_t x, uint32_t y)
+{
+    uint32_t spanEnd = rsGetElementAt_uint(gDiffTileColumnStarts, x + 1);
+    uint32_t diffNb = 0;
+
+    if (rsGetElementAt_uchar(gDiffSpanMasks, x, y)) {
+        return 0;
+    }
+
+    for (uint32_t column = rsGetElementAt_uint(gDiffTileColumnStarts, x); column < spanEnd;
+            ++column) {
+        uchar4 pixel = rsGetElementAt_uchar4(gDiffInput, column, y);
+        uchar4 referencePixel = rsGetElementAt_uchar4(gDiffReference, column, y);
+
+        if (abs((int32_t)pixel.r - (int32_t)referencePixel.r) >= gPixelValueDiffThreshold) {
+            diffNb++;
+        }
+
+        rsSetElementAt_uchar4(gDiffReference, pixel, column, y);
+    }
+
+    return diffNb;
+}
+
+// Element (x, y) of the NV21 layout of input, seen as width x (height * 3 / 2) bytes: the rows
+// below height are the Y plane, the others interleave the V and U samples of two input rows
+static uchar getNv21Element(rs_allocation input, uint32_t height, uint32_t x, uint32_t y)
+{
+    uint32_t chromaX;
+    uint32_t chromaY;
+
+    if (y < height) {
+        return rsGetElementAtYuv_uchar_Y(input, x, y);
+    }
+
+    chromaX = x & ~1u;
+    chromaY = (y - height) * 2;
+
+    return x & 1 ? rsGetElementAtYuv_uchar_U(input, chromaX, chromaY) :
+            rsGetElementAtYuv_uchar_V(input, chromaX, chromaY);
+}
+
+// Packs gLumaInput (YUV allocation, not downsampled) as NV21 for the pre-roll
+uchar RS_KERNEL packPreRollNv21(uint32_t x, uint32_t y)
+{
+    return getNv21Element(gLumaInput, gLumaInputHeight, x, y);
+}
+
+rs_allocation gSnapshotInput;
+uint32_t gSnapshotInputHeight;
+
+// Packs gSnapshotInput (YUV allocation) as NV21, a snapshot is copied out in one go
+uchar RS_KERNEL packSnapshotNv21(uint32_t x, uint32_t y)
+{
+    return getNv21Element(gSnapshotInput, gSnapshotInputHeight, x, y);
+}
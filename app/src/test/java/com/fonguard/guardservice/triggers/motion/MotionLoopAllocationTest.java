@@ -0,0 +1,193 @@
+/*
+ * FonGuard
+ * Copyright (C) 2021  Guillaume TRUCHOT <guillaume.truchot@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.fonguard.guardservice.triggers.motion;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+// Runs synthetic frames through the Java motion engine (downsample, mailbox, blur, frame diff,
+// background model, zones) and checks that, once warmed up, it allocates nothing per frame.
+public class MotionLoopAllocationTest {
+    private static final int INPUT_WIDTH = 320;
+    private static final int INPUT_HEIGHT = 240;
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+    private static final int BLUR_RADIUS = 2;
+    private static final int PIXEL_VALUE_DIFF_THRESHOLD = 16;
+    private static final int PIXEL_NUMBER_DIFF_THRESHOLD = 100;
+    private static final int WARM_UP_FRAMES_NB = 200;
+    private static final int FRAMES_NB = 1000;
+
+    private final com.sun.management.ThreadMXBean mThreadMXBean =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    private ByteBuffer[] mInputs;
+    private TileGrid mTileGrid;
+    private MotionZones mMotionZones;
+    private LumaFrameProcessor mLumaFrameProcessor;
+    private BackgroundModel mBackgroundModel;
+    private FrameMailbox<LumaFrame> mMailbox;
+    private LumaFrame mAcquiredFrame;
+    private LumaFrame mDetectedFrame;
+    private int[] mForegroundTileCounts;
+    private final List<String> mTriggeredZoneIds = new ArrayList<>();
+    private int mTriggeredFramesNb;
+
+
+    @After
+    public void tearDown() {
+        if (mLumaFrameProcessor != null) {
+            mLumaFrameProcessor.close();
+        }
+    }
+
+    @Test
+    public void motionLoop_allocatesNothingPerFrame() throws InterruptedException {
+        assertNoAllocationPerFrame(1);
+    }
+
+    @Test
+    public void motionLoopWithRowBands_allocatesNothingPerFrame() throws InterruptedException {
+        assertNoAllocationPerFrame(4);
+    }
+
+
+    private void assertNoAllocationPerFrame(int diffParallelism) throws InterruptedException {
+        long[] threadIds;
+        long allocatedBytes;
+
+        Assume.assumeTrue(mThreadMXBean.isThreadAllocatedMemorySupported());
+        mThreadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        setUpEngine(diffParallelism);
+        threadIds = findThreadIds(diffParallelism);
+
+        // Class loading, JIT and the lazily sized collections settle during the warm-up
+        runFrames(WARM_UP_FRAMES_NB);
+        mTriggeredFramesNb = 0;
+
+        allocatedBytes = getAllocatedBytes(threadIds);
+        runFrames(FRAMES_NB);
+        allocatedBytes = getAllocatedBytes(threadIds) - allocatedBytes;
+
+        // The frames must go through the full diff, not only the coarse early exit
+        assertTrue("no motion detected", mTriggeredFramesNb > 0);
+        // Only the allocation counters themselves may allocate, a few bytes whatever FRAMES_NB
+        assertTrue(allocatedBytes + " bytes allocated over " + FRAMES_NB + " frames",
+                allocatedBytes < FRAMES_NB);
+    }
+
+    private void setUpEngine(int diffParallelism) {
+        mTileGrid = new TileGrid(WIDTH, HEIGHT, 4, 3);
+        mTileGrid.setMasked(11);
+        mMotionZones = new MotionZones(mTileGrid.getTilesNb());
+        mMotionZones.addZone("door", Arrays.asList(0, 1, 4, 5), 0);
+
+        mLumaFrameProcessor = new LumaFrameProcessor(INPUT_WIDTH, INPUT_HEIGHT, WIDTH, HEIGHT,
+                BLUR_RADIUS, diffParallelism, mTileGrid.getTilesNb());
+        mBackgroundModel = new BackgroundModel(WIDTH, HEIGHT, 0.05f, 3);
+        mMailbox = new FrameMailbox<>(new LumaFrame(WIDTH, HEIGHT, mTileGrid.getTilesNb()));
+        mAcquiredFrame = new LumaFrame(WIDTH, HEIGHT, mTileGrid.getTilesNb());
+        mDetectedFrame = new LumaFrame(WIDTH, HEIGHT, mTileGrid.getTilesNb());
+        mForegroundTileCounts = new int[mTileGrid.getTilesNb()];
+
+        // A square moving over a gradient, the last input repeats the previous one (no change)
+        mInputs = new ByteBuffer[5];
+        for (int i = 0; i < mInputs.length; ++i) {
+            mInputs[i] = createInput(Math.min(i, mInputs.length - 2) * 60);
+        }
+    }
+
+    // The calling thread and the row band workers of the processor
+    private long[] findThreadIds(int diffParallelism) {
+        List<Long> threadIds = new ArrayList<>();
+        long[] ids;
+
+        threadIds.add(Thread.currentThread().getId());
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith("MotionRowBand-")) {
+                threadIds.add(thread.getId());
+            }
+        }
+        assertTrue("row band workers not found", threadIds.size() == diffParallelism);
+
+        ids = new long[threadIds.size()];
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = threadIds.get(i);
+        }
+
+        return ids;
+    }
+
+    private void runFrames(int framesNb) throws InterruptedException {
+        for (int i = 0; i < framesNb; ++i) {
+            // Acquire and preprocess stages, handing the frame over through the mailbox
+            mLumaFrameProcessor.downsample(mInputs[i % mInputs.length], INPUT_WIDTH, 1,
+                    mAcquiredFrame.Plane);
+            mAcquiredFrame = mMailbox.post(mAcquiredFrame);
+            mDetectedFrame = mMailbox.take(mDetectedFrame);
+            mLumaFrameProcessor.blur(mDetectedFrame.Plane);
+
+            // Detect stage, with and without the count early exit
+            mBackgroundModel.computeForegroundPixels(mDetectedFrame.Plane, 1,
+                    PIXEL_VALUE_DIFF_THRESHOLD, mTileGrid, mForegroundTileCounts);
+            mLumaFrameProcessor.computeDiffPixels(mDetectedFrame, PIXEL_VALUE_DIFF_THRESHOLD,
+                    i % 2 == 0 ? 0 : PIXEL_NUMBER_DIFF_THRESHOLD, mTileGrid);
+
+            // Publish stage
+            mTriggeredZoneIds.clear();
+            if (mDetectedFrame.DiffPixelsNb >= 0 && mMotionZones.findTriggeredZones(
+                    mDetectedFrame.TileCounts, PIXEL_NUMBER_DIFF_THRESHOLD, mTriggeredZoneIds)) {
+                mTriggeredFramesNb++;
+            }
+        }
+    }
+
+    private long getAllocatedBytes(long[] threadIds) {
+        long sum = 0;
+
+        for (long allocatedBytes : mThreadMXBean.getThreadAllocatedBytes(threadIds)) {
+            sum += allocatedBytes;
+        }
+
+        return sum;
+    }
+
+
+    private static ByteBuffer createInput(int squareX) {
+        ByteBuffer input = ByteBuffer.allocateDirect(INPUT_WIDTH * INPUT_HEIGHT);
+
+        for (int y = 0; y < INPUT_HEIGHT; ++y) {
+            for (int x = 0; x < INPUT_WIDTH; ++x) {
+                boolean isInSquare = x >= squareX && x < squareX + 60 && y >= 90 && y < 150;
+
+                input.put(y * INPUT_WIDTH + x, (byte)(isInSquare ? 240 : x * 128 / INPUT_WIDTH));
+            }
+        }
+
+        return input;
+    }
+}